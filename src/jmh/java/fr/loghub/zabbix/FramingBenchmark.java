@@ -0,0 +1,104 @@
+package fr.loghub.zabbix;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Framing of a request by {@link ZabbixProtocol}, the sent packet is read back from memory, so no network is involved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    /**
+     * A socket that gives back what was written to it.
+     */
+    private static class EchoSocket extends Socket {
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private final InputStream input = new InputStream() {
+            private ByteArrayInputStream current = new ByteArrayInputStream(new byte[0]);
+            @Override
+            public int read() throws IOException {
+                refill();
+                return current.read();
+            }
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                refill();
+                return current.read(b, off, len);
+            }
+            private void refill() {
+                if (current.available() == 0 && written.size() > 0) {
+                    current = new ByteArrayInputStream(written.toByteArray());
+                    written.reset();
+                }
+            }
+        };
+        @Override
+        public InputStream getInputStream() {
+            return input;
+        }
+        @Override
+        public OutputStream getOutputStream() {
+            return written;
+        }
+    }
+
+    @Param({"1", "100", "10000", "100000"})
+    private int batchSize;
+
+    @Param({"-1", "0"})
+    private int compressionThreshold;
+
+    private byte[] payload;
+    private ZabbixProtocol protocol;
+
+    @Setup
+    public void setup() {
+        StringBuilder buffer = new StringBuilder("{\"request\":\"sender data\",\"data\":[");
+        for (int i = 0; i < batchSize; i++) {
+            if (i > 0) {
+                buffer.append(',');
+            }
+            buffer.append("{\"host\":\"host").append(i % 100)
+                  .append("\",\"key\":\"net.if.in[eth").append(i % 4)
+                  .append(",bytes]\",\"value\":").append(i)
+                  .append(",\"clock\":1700000000,\"ns\":").append(i).append('}');
+        }
+        buffer.append("],\"clock\":1700000000,\"ns\":0}");
+        payload = buffer.toString().getBytes(StandardCharsets.UTF_8);
+        protocol = ZabbixProtocol.builder()
+                                 .connection(new EchoSocket())
+                                 .compressionThreshold(compressionThreshold)
+                                 .build();
+    }
+
+    @Benchmark
+    public byte[] sendRead() throws IOException {
+        protocol.send(payload);
+        return protocol.read();
+    }
+
+}
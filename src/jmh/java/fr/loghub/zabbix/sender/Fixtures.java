@@ -0,0 +1,50 @@
+package fr.loghub.zabbix.sender;
+
+import java.time.Instant;
+
+import fr.loghub.zabbix.TestFixtures;
+
+/**
+ * Shared values for the benchmarks.
+ */
+class Fixtures {
+
+    static final JsonHandler JSON_HANDLER = TestFixtures.JSON_HANDLER;
+
+    static DataObject[] values(int count) {
+        Instant now = Instant.now();
+        DataObject[] values = new DataObject[count];
+        for (int i = 0; i < count; i++) {
+            Object value;
+            switch (i % 3) {
+            case 0:
+                value = i;
+                break;
+            case 1:
+                value = i / 7.0;
+                break;
+            default:
+                value = "value " + i;
+            }
+            values[i] = DataObject.builder()
+                                  .host("host" + (i % 100))
+                                  .key("net.if.in", "eth" + (i % 4), "bytes")
+                                  .value(value)
+                                  .clock(now)
+                                  .build();
+        }
+        return values;
+    }
+
+    static SenderRequest request(int count) {
+        SenderRequest.SenderRequestBuilder builder = SenderRequest.builder();
+        for (DataObject value: values(count)) {
+            builder.data(value);
+        }
+        return builder.build();
+    }
+
+    private Fixtures() {
+    }
+
+}
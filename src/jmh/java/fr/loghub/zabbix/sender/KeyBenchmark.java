@@ -0,0 +1,58 @@
+package fr.loghub.zabbix.sender;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Formatting of item keys by {@link DataObject.Builder#key(String, Object...)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyBenchmark {
+
+    private final List<String> elements = List.of("eth0", "bytes", "in");
+
+    @Benchmark
+    public DataObject.Builder plain() {
+        return DataObject.builder().key("system.cpu.load");
+    }
+
+    @Benchmark
+    public DataObject.Builder varargs() {
+        return DataObject.builder().key("net.if.in", "eth0", "bytes");
+    }
+
+    @Benchmark
+    public DataObject.Builder list() {
+        return DataObject.builder().key("net.if.in", elements);
+    }
+
+    @Benchmark
+    public DataObject.Builder stream() {
+        return DataObject.builder().key("net.if.in", Stream.of("eth0", "bytes"));
+    }
+
+    // Producer threads looking up the same cached key
+    @Benchmark
+    @Threads(8)
+    public ItemKey concurrent() {
+        return ItemKey.of("net.if.in", "eth0", "bytes");
+    }
+
+}
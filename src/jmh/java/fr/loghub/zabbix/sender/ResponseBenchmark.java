@@ -0,0 +1,57 @@
+package fr.loghub.zabbix.sender;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of a usual response, with the generic {@link JsonHandler} and with the {@link ResponseParser}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+
+    private static final Pattern PATTERN = Pattern.compile("([a-z][a-z ]*): (\\d[\\d.]*)(?:; |$)");
+
+    private final byte[] response = "{\"response\":\"success\",\"info\":\"processed: 100; failed: 0; total: 100; seconds spent: 0.000452\"}"
+                                    .getBytes(StandardCharsets.UTF_8);
+
+    // The previous path, a generic JSON parsing and a regex on the info line
+    @Benchmark
+    public Map<String, Number> jsonHandler() {
+        Map<?, ?> responseObject = Fixtures.JSON_HANDLER.deserialize(new String(response, StandardCharsets.UTF_8), Map.class);
+        Matcher m = PATTERN.matcher(responseObject.get("info").toString());
+        Map<String, Number> infoValues = new HashMap<>();
+        while (m.find()) {
+            if ("seconds spent".equals(m.group(1))) {
+                infoValues.put(m.group(1), Float.parseFloat(m.group(2)));
+            } else {
+                infoValues.put(m.group(1), Integer.parseInt(m.group(2)));
+            }
+        }
+        return infoValues;
+    }
+
+    @Benchmark
+    public SenderResult parser() {
+        return ResponseParser.parse(response);
+    }
+
+}
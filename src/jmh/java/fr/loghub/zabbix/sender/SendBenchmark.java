@@ -0,0 +1,85 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ServerSocketFactory;
+import javax.net.ssl.SSLContext;
+
+import org.bouncycastle.operator.OperatorCreationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.loghub.zabbix.AutoCA;
+
+/**
+ * A full {@link ZabbixSender#send(DataObject...)} round trip with a {@link LoopbackServer}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendBenchmark {
+
+    @Param({"1", "100", "10000", "100000"})
+    private int batchSize;
+
+    @Param({"false", "true"})
+    private boolean tls;
+
+    @Param({"SOCKET", "NIO"})
+    private ZabbixSender.Transport transport;
+
+    @Param({"false", "true"})
+    private boolean pooled;
+
+    private DataObject[] values;
+    private LoopbackServer server;
+    private ZabbixSender sender;
+
+    @Setup
+    public void setup() throws IOException, GeneralSecurityException, OperatorCreationException {
+        values = Fixtures.values(batchSize);
+        ZabbixSender.Builder builder = ZabbixSender.builder()
+                                                   .jhandler(Fixtures.JSON_HANDLER)
+                                                   .transport(transport)
+                                                   .maxConnections(pooled ? 1 : 0)
+                                                   .socketTimeout(30, TimeUnit.SECONDS);
+        if (tls) {
+            KeyStore ks = AutoCA.getKeyStore("cn=localhost", InetAddress.getLoopbackAddress());
+            SSLContext ctx = AutoCA.createSSLContext(ks);
+            server = new LoopbackServer(ctx.getServerSocketFactory());
+            builder.sslContext(ctx);
+        } else {
+            server = new LoopbackServer(ServerSocketFactory.getDefault());
+        }
+        sender = builder.address(server.getAddress()).build();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sender.close();
+        server.close();
+    }
+
+    @Benchmark
+    public SenderResult send() throws IOException {
+        return sender.send(values);
+    }
+
+}
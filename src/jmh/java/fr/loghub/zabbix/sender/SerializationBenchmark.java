@@ -0,0 +1,104 @@
+package fr.loghub.zabbix.sender;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of a request, using the generic {@link JsonHandler} path and the {@link JsonEncoder} used by the sender.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"1", "100", "10000", "100000"})
+    private int batchSize;
+
+    private SenderRequest request;
+    private DataBatch batch;
+    private PreparedBatch prepared;
+    private int[] items;
+    private Instant clock;
+    private JsonEncoder encoder;
+
+    @Setup
+    public void setup() {
+        request = Fixtures.request(batchSize);
+        encoder = new JsonEncoder(4096, Fixtures.JSON_HANDLER::serialize);
+        clock = Instant.now();
+        batch = new DataBatch(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            int host = batch.host("host" + (i % 100));
+            int key = batch.key("net.if.in", "eth" + (i % 4), "bytes");
+            if (i % 2 == 0) {
+                batch.add(host, key, i, clock.getEpochSecond(), clock.getNano());
+            } else {
+                batch.add(host, key, i / 7.0, clock.getEpochSecond(), clock.getNano());
+            }
+        }
+        prepared = new PreparedBatch(batchSize);
+        items = new int[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            items[i] = prepared.item("host" + (i % 100), "net.if.in", "eth" + i, "bytes");
+        }
+    }
+
+    @Benchmark
+    public byte[] jsonHandler() {
+        return Fixtures.JSON_HANDLER.serialize(request.getJsonObject()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int encoder() {
+        try {
+            return encoder.reset().encode(request).getLength();
+        } finally {
+            encoder.reset();
+        }
+    }
+
+    @Benchmark
+    public int batch() {
+        try {
+            return encoder.reset().encode(batch, clock).getLength();
+        } finally {
+            encoder.reset();
+        }
+    }
+
+    /**
+     * Setting the values of a prepared batch and encoding it, like a collector sending the same items at each interval.
+     */
+    @Benchmark
+    public int prepared() {
+        for (int i = 0; i < items.length; i++) {
+            if (i % 2 == 0) {
+                prepared.set(items[i], i);
+            } else {
+                prepared.set(items[i], i / 7.0);
+            }
+        }
+        try {
+            return encoder.reset().encode(prepared, clock).getLength();
+        } finally {
+            encoder.reset();
+        }
+    }
+
+}
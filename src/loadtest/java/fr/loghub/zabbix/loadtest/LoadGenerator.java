@@ -0,0 +1,323 @@
+package fr.loghub.zabbix.loadtest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLContext;
+
+import org.bouncycastle.operator.OperatorCreationException;
+
+import fr.loghub.zabbix.AutoCA;
+import fr.loghub.zabbix.TestFixtures;
+import fr.loghub.zabbix.receiver.ZabbixReceiver;
+import fr.loghub.zabbix.sender.DataObject;
+import fr.loghub.zabbix.sender.Histogram;
+import fr.loghub.zabbix.sender.SenderResult;
+import fr.loghub.zabbix.sender.ZabbixSender;
+
+/**
+ * Send a configurable workload to a Zabbix trapper, or to a local mock, and report the throughput and the latency.
+ * <p>
+ * With a rate, requests are scheduled at fixed intervals, and the latency of each request is measured from the time
+ * it should have been sent. So a stall is accounted for all the requests it delayed, not only the one that waited: it's
+ * the coordinated omission correction. The service time, measured from the time the request was actually sent, is
+ * reported too. Without a rate, each thread sends as fast as it can.
+ * <p>
+ * The options are given as <code>--name=value</code>, see {@link #USAGE}. The exit code is 1 if some requests failed, if
+ * the schedule could not be followed or if the corrected p99 latency is more than <code>--max-p99</code>.
+ */
+public class LoadGenerator {
+
+    static final String USAGE = String.join("\n",
+        "Options:",
+        "  --target=host:port  the trapper to test, a local mock receiver is used if missing",
+        "  --hosts=100         the number of hosts",
+        "  --keys=10           the number of keys of each host",
+        "  --rate=10000        the values sent per second, 0 to send as fast as possible",
+        "  --batch=100         the values in each request",
+        "  --threads=4         the number of sending threads",
+        "  --reuse=true        reuse the connections, with a pool of one connection per thread",
+        "  --tls=false         use TLS, with a generated certificate for the mock or the default trust store",
+        "  --compression=false compress the requests",
+        "  --transport=SOCKET  SOCKET or NIO",
+        "  --duration=10       the measured duration, in seconds",
+        "  --warmup=2          the duration before measuring, in seconds",
+        "  --max-p99=0         the maximum corrected p99 latency in milliseconds, 0 for no limit");
+
+    private final InetSocketAddress target;
+    private final int hosts;
+    private final int keys;
+    private final double rate;
+    private final int batch;
+    private final int threads;
+    private final boolean reuse;
+    private final boolean tls;
+    private final boolean compression;
+    private final ZabbixSender.Transport transport;
+    private final long duration;
+    private final long warmup;
+    private final long maxP99;
+
+    private final String[] hostNames;
+    private final String[] keyNames;
+    private final Histogram latency = new Histogram();
+    private final Histogram serviceTime = new Histogram();
+    private final AtomicLong nextRequest = new AtomicLong();
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder values = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder failedValues = new LongAdder();
+    private final LongAdder missed = new LongAdder();
+
+    LoadGenerator(Map<String, String> options) {
+        Map<String, String> remaining = new HashMap<>(options);
+        String targetOption = remaining.remove("target");
+        if (targetOption != null) {
+            int colon = targetOption.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Invalid target: " + targetOption);
+            }
+            target = new InetSocketAddress(targetOption.substring(0, colon), Integer.parseInt(targetOption.substring(colon + 1)));
+        } else {
+            target = null;
+        }
+        hosts = Integer.parseInt(option(remaining, "hosts", "100"));
+        keys = Integer.parseInt(option(remaining, "keys", "10"));
+        rate = Double.parseDouble(option(remaining, "rate", "10000"));
+        batch = Integer.parseInt(option(remaining, "batch", "100"));
+        threads = Integer.parseInt(option(remaining, "threads", "4"));
+        reuse = Boolean.parseBoolean(option(remaining, "reuse", "true"));
+        tls = Boolean.parseBoolean(option(remaining, "tls", "false"));
+        compression = Boolean.parseBoolean(option(remaining, "compression", "false"));
+        transport = ZabbixSender.Transport.valueOf(option(remaining, "transport", "SOCKET").toUpperCase(Locale.ROOT));
+        duration = TimeUnit.SECONDS.toNanos(Long.parseLong(option(remaining, "duration", "10")));
+        warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(option(remaining, "warmup", "2")));
+        maxP99 = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(option(remaining, "max-p99", "0")));
+        if (! remaining.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options: " + remaining.keySet());
+        }
+        if (hosts <= 0 || keys <= 0 || batch <= 0 || threads <= 0 || duration <= 0 || rate < 0) {
+            throw new IllegalArgumentException("Invalid workload");
+        }
+        hostNames = new String[hosts];
+        for (int i = 0; i < hosts; i++) {
+            hostNames[i] = "host" + i;
+        }
+        keyNames = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            keyNames[i] = "load.item[" + i + "]";
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.remove(name);
+        return value != null ? value : defaultValue;
+    }
+
+    static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg: args) {
+            if (! arg.startsWith("--")) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            int equal = arg.indexOf('=');
+            if (equal < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, equal), arg.substring(equal + 1));
+            }
+        }
+        return options;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, GeneralSecurityException, OperatorCreationException {
+        LoadGenerator generator;
+        try {
+            generator = new LoadGenerator(parse(args));
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        boolean passed = generator.run(System.out);
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Run the workload and print the report.
+     *
+     * @return true if the run passed the checks
+     */
+    boolean run(PrintStream out) throws IOException, InterruptedException, GeneralSecurityException, OperatorCreationException {
+        SSLContext context = null;
+        if (tls && target == null) {
+            KeyStore ks = AutoCA.getKeyStore("cn=localhost", InetAddress.getLoopbackAddress());
+            context = AutoCA.createSSLContext(ks);
+        } else if (tls) {
+            context = SSLContext.getDefault();
+        }
+        InetSocketAddress address = target;
+        Closeable mock = null;
+        if (target == null && context != null) {
+            TlsTrapper trapper = new TlsTrapper(context);
+            address = trapper.getAddress();
+            mock = trapper;
+        } else if (target == null) {
+            ZabbixReceiver receiver = TestFixtures.receiver(List::size);
+            address = receiver.getAddress();
+            mock = receiver;
+        }
+        try {
+            ZabbixSender.Builder builder = ZabbixSender.builder()
+                                                       .address(address)
+                                                       .jhandler(TestFixtures.JSON_HANDLER)
+                                                       .transport(transport)
+                                                       .maxConnections(reuse ? threads : 0)
+                                                       .compressionThreshold(compression ? 0 : -1)
+                                                       .socketTimeout(30, TimeUnit.SECONDS);
+            if (context != null) {
+                builder.sslContext(context);
+            }
+            try (ZabbixSender sender = builder.build()) {
+                long start = System.nanoTime();
+                long measureStart = start + warmup;
+                long end = measureStart + duration;
+                List<Thread> workers = new ArrayList<>(threads);
+                for (int i = 0; i < threads; i++) {
+                    Thread worker = new Thread(() -> work(sender, start, measureStart, end), "LoadGenerator/" + i);
+                    worker.start();
+                    workers.add(worker);
+                }
+                for (Thread worker: workers) {
+                    worker.join();
+                }
+                if (rate > 0) {
+                    // The scheduled requests that no thread could start before the end
+                    long interval = interval();
+                    long scheduled = (end - start + interval - 1) / interval;
+                    missed.add(Math.max(0, scheduled - attempts.sum()));
+                }
+                return report(out, address, System.nanoTime() - measureStart);
+            }
+        } finally {
+            if (mock != null) {
+                mock.close();
+            }
+        }
+    }
+
+    private void work(ZabbixSender sender, long start, long measureStart, long end) {
+        long interval = rate > 0 ? interval() : 0;
+        while (true) {
+            long request = nextRequest.getAndIncrement();
+            long intended = interval > 0 ? start + request * interval : System.nanoTime();
+            if (intended - end >= 0 || System.nanoTime() - end >= 0) {
+                break;
+            }
+            attempts.increment();
+            long now;
+            while ((now = System.nanoTime()) - intended < 0) {
+                LockSupport.parkNanos(intended - now);
+            }
+            long sent = System.nanoTime();
+            try {
+                SenderResult result = sender.send(values(request));
+                if (result.getFailed() > 0) {
+                    failedValues.add(result.getFailed());
+                }
+            } catch (IOException | RuntimeException ex) {
+                errors.increment();
+            }
+            long done = System.nanoTime();
+            if (intended - measureStart >= 0) {
+                latency.record(done - intended);
+                serviceTime.record(done - sent);
+                requests.increment();
+                values.add(batch);
+            }
+        }
+    }
+
+    /**
+     * @return the interval between two requests of all the threads, in nanoseconds
+     */
+    private long interval() {
+        return Math.max(1, (long) (batch * 1e9 / rate));
+    }
+
+    /**
+     * The values of a request, going through all the keys of all the hosts.
+     */
+    private DataObject[] values(long request) {
+        DataObject[] data = new DataObject[batch];
+        Instant now = Instant.now();
+        for (int i = 0; i < batch; i++) {
+            long item = request * batch + i;
+            data[i] = DataObject.builder()
+                                .host(hostNames[(int) (item % hosts)])
+                                .key(keyNames[(int) ((item / hosts) % keys)])
+                                .value(item)
+                                .clock(now)
+                                .build();
+        }
+        return data;
+    }
+
+    private boolean report(PrintStream out, InetSocketAddress address, long elapsed) {
+        double seconds = elapsed / 1e9;
+        out.format(Locale.ROOT, "Target: %s%s, TLS: %s, compression: %s, reuse: %s, transport: %s%n",
+                   target == null ? "mock " : "", address, tls, compression, reuse, transport);
+        out.format(Locale.ROOT, "Workload: %d hosts x %d keys, %s values/s, %d values per request, %d threads%n",
+                   hosts, keys, rate > 0 ? String.format(Locale.ROOT, "%.0f", rate) : "max", batch, threads);
+        out.format(Locale.ROOT, "Requests: %d, values: %d, errors: %d, failed values: %d, missed: %d%n",
+                   requests.sum(), values.sum(), errors.sum(), failedValues.sum(), missed.sum());
+        out.format(Locale.ROOT, "Throughput: %.1f values/s, %.1f requests/s%n",
+                   values.sum() / seconds, requests.sum() / seconds);
+        out.format(Locale.ROOT, "%-18s %10s %10s %10s %10s %10s%n", "Latency (us)", "p50", "p90", "p99", "p99.9", "max");
+        printLatency(out, rate > 0 ? "corrected" : "latency", latency);
+        printLatency(out, "service time", serviceTime);
+        boolean passed = true;
+        if (errors.sum() > 0) {
+            out.format(Locale.ROOT, "%d requests failed%n", errors.sum());
+            passed = false;
+        }
+        if (missed.sum() > 0) {
+            out.format(Locale.ROOT, "%d requests could not be sent on schedule, the rate is too high%n", missed.sum());
+            passed = false;
+        }
+        if (maxP99 > 0 && latency.getValueAtPercentile(99) > maxP99) {
+            out.format(Locale.ROOT, "p99 latency above %d ms%n", TimeUnit.NANOSECONDS.toMillis(maxP99));
+            passed = false;
+        }
+        return passed;
+    }
+
+    private void printLatency(PrintStream out, String name, Histogram histogram) {
+        out.format(Locale.ROOT, "%-18s %10d %10d %10d %10d %10d%n", name,
+                   micros(histogram.getValueAtPercentile(50)), micros(histogram.getValueAtPercentile(90)),
+                   micros(histogram.getValueAtPercentile(99)), micros(histogram.getValueAtPercentile(99.9)),
+                   micros(histogram.getMax()));
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+}
@@ -0,0 +1,65 @@
+package fr.loghub.zabbix.loadtest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import javax.net.ssl.SSLContext;
+
+import fr.loghub.zabbix.ZabbixProtocol;
+
+/**
+ * A TLS trapper listening on the loopback, for load tests with TLS. Each connection is handled by its own thread and
+ * kept open for as long as the client wants, every request gets the same successful answer without being parsed.
+ */
+class TlsTrapper implements Closeable {
+
+    private static final byte[] RESPONSE = "{\"response\":\"success\",\"info\":\"processed: 1; failed: 0; total: 1; seconds spent: 0.000055\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final ServerSocket server;
+
+    TlsTrapper(SSLContext context) throws IOException {
+        server = context.getServerSocketFactory().createServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "TlsTrapper");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    InetSocketAddress getAddress() {
+        return (InetSocketAddress) server.getLocalSocketAddress();
+    }
+
+    private void accept() {
+        while (! server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Thread handler = new Thread(() -> handle(socket), "TlsTrapper/" + socket.getPort());
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException ex) {
+                // Closed
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (ZabbixProtocol protocol = new ZabbixProtocol(socket)) {
+            while (true) {
+                protocol.read();
+                protocol.send(RESPONSE);
+            }
+        } catch (IOException ex) {
+            // Client is gone
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+}
@@ -0,0 +1,21 @@
+package fr.loghub.zabbix;
+
+import java.io.IOException;
+
+/**
+ * The peer closed or reset the connection before sending any byte of a response. It's usually a kept alive connection
+ * closed by the peer while it was idle, so the request was not processed.
+ */
+public class ConnectionClosedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ConnectionClosedException() {
+        super("Connection closed");
+    }
+
+    public ConnectionClosedException(IOException cause) {
+        super("Connection closed: " + cause.getMessage(), cause);
+    }
+
+}
@@ -0,0 +1,81 @@
+package fr.loghub.zabbix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The body of a packet whose length is only known when it's closed. It's kept in memory up to a threshold, and then
+ * spilled to a temporary file. The packet is sent when the stream is closed.
+ */
+class DeferredPacketOutputStream extends OutputStream {
+
+    private final ZabbixProtocol protocol;
+    private final int memoryThreshold;
+    private byte[] buffer;
+    private long length = 0;
+    private Path spillFile = null;
+    private OutputStream spill = null;
+    private boolean closed = false;
+
+    DeferredPacketOutputStream(ZabbixProtocol protocol, int memoryThreshold) {
+        this.protocol = protocol;
+        this.memoryThreshold = memoryThreshold;
+        this.buffer = new byte[Math.min(memoryThreshold, 8192)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (spill == null && length + len > memoryThreshold) {
+            spillFile = Files.createTempFile("zabbix", ".body");
+            spill = Files.newOutputStream(spillFile);
+            spill.write(buffer, 0, (int) length);
+            buffer = null;
+        }
+        if (spill != null) {
+            spill.write(b, off, len);
+        } else {
+            if (length + len > buffer.length) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(memoryThreshold, Math.max(buffer.length * 2L, length + len)));
+            }
+            System.arraycopy(b, off, buffer, (int) length, len);
+        }
+        length += len;
+    }
+
+    /**
+     * Send the packet. A body kept in memory can be compressed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (spill == null) {
+            protocol.send(buffer, 0, (int) length);
+            buffer = null;
+        } else {
+            try {
+                spill.close();
+                try (InputStream body = Files.newInputStream(spillFile)) {
+                    protocol.send(length, body);
+                }
+            } finally {
+                Files.deleteIfExists(spillFile);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package fr.loghub.zabbix;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * A pool of direct buffers, shared by the connections of a sender, as allocating and freeing direct memory is slow.
+ * <p>
+ * Buffers are allocated with a capacity rounded up to a power of two, and a free list is kept for each capacity, with at
+ * most <code>maxPooled</code> buffers. A buffer must not be used any more once released.
+ */
+public class DirectBufferPool {
+
+    // Capacities up to 1 GiB are pooled
+    private static final int CAPACITIES = 31;
+
+    @Accessors(fluent = true)
+    public static class Builder {
+        /**
+         * The maximum number of free buffers kept for each capacity, 0 to never reuse them.
+         */
+        @Setter
+        private int maxPooled = 64;
+
+        public DirectBufferPool build() {
+            return new DirectBufferPool(this);
+        }
+    }
+    public static DirectBufferPool.Builder builder() {
+        return new DirectBufferPool.Builder();
+    }
+
+    @Getter
+    private final int maxPooled;
+    private final List<Queue<ByteBuffer>> free = new ArrayList<>(CAPACITIES);
+    private final AtomicIntegerArray freeCounts = new AtomicIntegerArray(CAPACITIES);
+    private final LongAdder allocated = new LongAdder();
+
+    private DirectBufferPool(Builder builder) {
+        if (builder.maxPooled < 0) {
+            throw new IllegalArgumentException("Invalid max pooled: " + builder.maxPooled);
+        }
+        maxPooled = builder.maxPooled;
+        for (int i = 0; i < CAPACITIES; i++) {
+            free.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * @param capacity the minimum capacity of the buffer
+     * @return a cleared buffer, with at least the requested capacity
+     */
+    public ByteBuffer acquire(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int index = index(capacity);
+        if (index >= CAPACITIES) {
+            allocated.increment();
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        ByteBuffer buffer = free.get(index).poll();
+        if (buffer != null) {
+            freeCounts.decrementAndGet(index);
+            return buffer.clear();
+        } else {
+            allocated.increment();
+            return ByteBuffer.allocateDirect(1 << index);
+        }
+    }
+
+    /**
+     * Give back a buffer acquired from this pool. It's dropped if its capacity is not a pooled one, or if enough buffers
+     * of its capacity are already free.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || ! buffer.isDirect() || Integer.bitCount(buffer.capacity()) != 1) {
+            return;
+        }
+        int index = index(buffer.capacity());
+        if (index < CAPACITIES && freeCounts.incrementAndGet(index) <= maxPooled) {
+            free.get(index).add(buffer);
+        } else if (index < CAPACITIES) {
+            freeCounts.decrementAndGet(index);
+        }
+    }
+
+    /**
+     * @return the number of buffers allocated, instead of being reused.
+     */
+    public long getAllocated() {
+        return allocated.sum();
+    }
+
+    private static int index(int capacity) {
+        return capacity <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+}
@@ -0,0 +1,121 @@
+package fr.loghub.zabbix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The body of a received packet, read directly from the connection. It never reads past the end of the packet, and
+ * closing it skips the unread part, so the connection can be used for the next packet.
+ */
+class PacketInputStream extends InputStream {
+
+    private final InputStream in;
+    private long remaining;
+
+    PacketInputStream(InputStream in, long length) {
+        this.in = in;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining == 0) {
+            return -1;
+        }
+        int b = in.read();
+        if (b < 0) {
+            throw new IOException("Connection closed");
+        }
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining == 0) {
+            return -1;
+        } else if (len == 0) {
+            return 0;
+        }
+        int read = in.read(b, off, (int) Math.min(len, remaining));
+        if (read < 0) {
+            throw new IOException("Connection closed");
+        }
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public void close() throws IOException {
+        byte[] skipped = new byte[(int) Math.min(8192, Math.max(remaining, 1))];
+        while (remaining > 0) {
+            read(skipped, 0, skipped.length);
+        }
+    }
+
+    /**
+     * A compressed body, inflated while it's read.
+     */
+    static class Inflated extends InputStream {
+        private final PacketInputStream compressed;
+        private final Inflater inflater = new Inflater();
+        private final byte[] input = new byte[8192];
+        private long remaining;
+
+        Inflated(PacketInputStream compressed, long size) {
+            this.compressed = compressed;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            } else if (len == 0) {
+                return 0;
+            }
+            try {
+                while (true) {
+                    int inflated = inflater.inflate(b, off, (int) Math.min(len, remaining));
+                    if (inflated > 0) {
+                        remaining -= inflated;
+                        return inflated;
+                    } else if (inflater.finished() || inflater.needsDictionary()) {
+                        throw new IOException("Invalid compressed data");
+                    } else if (inflater.needsInput()) {
+                        int read = compressed.read(input, 0, input.length);
+                        if (read < 0) {
+                            throw new IOException("Invalid compressed data");
+                        }
+                        inflater.setInput(input, 0, read);
+                    }
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException("Invalid compressed data", ex);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                compressed.close();
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package fr.loghub.zabbix;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The body of a packet whose length was announced in the header, already sent. Closing it checks that the body is
+ * complete and flushes it, the connection stays open.
+ */
+class PacketOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private long remaining;
+    private boolean closed = false;
+
+    PacketOutputStream(OutputStream out, long length) {
+        this.out = out;
+        this.remaining = length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        check(1);
+        out.write(b);
+        remaining--;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        check(len);
+        out.write(b, off, len);
+        remaining -= len;
+    }
+
+    private void check(int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        } else if (len > remaining) {
+            throw new IOException("Request body longer than announced");
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (! closed) {
+            closed = true;
+            if (remaining != 0) {
+                throw new IOException("Truncated request body");
+            }
+            out.flush();
+        }
+    }
+
+}
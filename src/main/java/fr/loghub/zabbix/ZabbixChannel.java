@@ -0,0 +1,529 @@
+package fr.loghub.zabbix;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * A Zabbix exchange using a non-blocking {@link SocketChannel} and an {@link SSLEngine} for TLS.
+ * <p>
+ * Header and body are sent with a single gathering write, the header using a direct buffer reused for each packet.
+ * The body stays in the heap buffer of the caller: without TLS, the channel still copies it to a temporary direct
+ * buffer, so the gathering write only saves the concatenation of the header and the body. The direct buffers, for the
+ * header and the TLS records, are borrowed from a {@link DirectBufferPool} and given back when the channel is closed.
+ * Responses are read in a buffer reused for each packet. Timeouts are enforced using a private selector.
+ */
+public class ZabbixChannel implements ZabbixConnection {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    @Accessors(fluent = true)
+    public static class Builder {
+        @Setter
+        private SocketAddress address;
+        /**
+         * If set, TLS will be used.
+         */
+        @Setter
+        private SSLContext sslContext = null;
+        @Setter
+        private SSLParameters sslParameters = null;
+        @Setter
+        private int connectTimeout = 3000;
+        @Setter
+        private int socketTimeout = 3000;
+        @Setter
+        private int compressionThreshold = -1;
+        @Setter
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        @Setter
+        private boolean largePacket = false;
+        /**
+         * The pool of the direct buffers, they are not reused if not set.
+         */
+        @Setter
+        private DirectBufferPool bufferPool = null;
+
+        /**
+         * Open the connection and do the TLS handshake if needed.
+         * @return a connected channel
+         * @throws IOException if the connection failed
+         */
+        public ZabbixChannel connect() throws IOException {
+            if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+                throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+            }
+            SocketChannel channel = SocketChannel.open();
+            Selector selector = null;
+            ZabbixChannel zchannel = null;
+            try {
+                channel.configureBlocking(false);
+                selector = Selector.open();
+                zchannel = new ZabbixChannel(this, channel, selector);
+                zchannel.connect(address, connectTimeout);
+                return zchannel;
+            } catch (IOException | RuntimeException ex) {
+                if (zchannel != null) {
+                    zchannel.releaseBuffers();
+                }
+                if (selector != null) {
+                    selector.close();
+                }
+                channel.close();
+                throw ex;
+            }
+        }
+    }
+    public static ZabbixChannel.Builder builder() {
+        return new ZabbixChannel.Builder();
+    }
+
+    @Getter
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final SSLContext sslContext;
+    private final SSLParameters sslParameters;
+    @Getter
+    private final int socketTimeout;
+    @Getter
+    private final int compressionThreshold;
+    @Getter
+    private final int compressionLevel;
+    @Getter
+    private final boolean largePacket;
+    private final DirectBufferPool bufferPool;
+    private ByteBuffer writeHeader;
+    private final byte[] headerBytes = new byte[ZabbixProtocol.LARGE_HEADER_SIZE];
+    private final byte[] sendHeaderBytes = new byte[ZabbixProtocol.HEADER_SIZE];
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    @Getter
+    private SSLEngine engine = null;
+    /**
+     * The duration of the TLS handshake, 0 without TLS.
+     */
+    @Getter
+    private long handshakeNanos = 0;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    // The body of the responses, grown for larger ones
+    private ByteBuffer readBuffer = ByteBuffer.allocate(256);
+    private boolean released = false;
+
+    private ZabbixChannel(Builder builder, SocketChannel channel, Selector selector) throws IOException {
+        this.channel = channel;
+        this.selector = selector;
+        this.key = channel.register(selector, 0);
+        this.sslContext = builder.sslContext;
+        this.sslParameters = builder.sslParameters;
+        this.socketTimeout = builder.socketTimeout;
+        this.compressionThreshold = builder.compressionThreshold;
+        this.compressionLevel = builder.compressionLevel;
+        this.largePacket = builder.largePacket;
+        this.bufferPool = builder.bufferPool != null ? builder.bufferPool : DirectBufferPool.builder().maxPooled(0).build();
+        this.writeHeader = bufferPool.acquire(ZabbixProtocol.LARGE_HEADER_SIZE);
+    }
+
+    private void connect(SocketAddress address, int connectTimeout) throws IOException {
+        if (! channel.connect(address)) {
+            while (! channel.finishConnect()) {
+                await(SelectionKey.OP_CONNECT, connectTimeout, "Connect timed out");
+            }
+        }
+        if (sslContext != null) {
+            if (address instanceof InetSocketAddress) {
+                // Host and port are needed for TLS session reuse
+                InetSocketAddress isa = (InetSocketAddress) address;
+                engine = sslContext.createSSLEngine(isa.getHostString(), isa.getPort());
+            } else {
+                engine = sslContext.createSSLEngine();
+            }
+            engine.setUseClientMode(true);
+            if (sslParameters != null) {
+                engine.setSSLParameters(sslParameters);
+            }
+            netIn = bufferPool.acquire(engine.getSession().getPacketBufferSize());
+            netOut = bufferPool.acquire(engine.getSession().getPacketBufferSize());
+            appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+            long start = System.nanoTime();
+            handshake();
+            handshakeNanos = System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public void send(byte[] buffer, int offset, int length) throws IOException {
+        ensureOpen();
+        if (compressionThreshold >= 0 && length >= compressionThreshold) {
+            byte[] payload = ZabbixProtocol.compress(compressionLevel, buffer, offset, length);
+            int size = payload.length - ZabbixProtocol.HEADER_SIZE;
+            if (ZabbixProtocol.checkLarge(Math.max(size, length), largePacket)) {
+                byte[] header = ZabbixProtocol.largeHeader(ZabbixProtocol.FLAG_PROTOCOL | ZabbixProtocol.FLAG_COMPRESSION, size, length);
+                write(header, 0, header.length, payload, ZabbixProtocol.HEADER_SIZE, size);
+            } else {
+                ZabbixProtocol.writeHeader(ZabbixProtocol.FLAG_PROTOCOL | ZabbixProtocol.FLAG_COMPRESSION, size, length, payload, 0);
+                write(null, 0, 0, payload, 0, payload.length);
+            }
+        } else if (ZabbixProtocol.checkLarge(length, largePacket)) {
+            byte[] header = ZabbixProtocol.largeHeader(ZabbixProtocol.FLAG_PROTOCOL, length, 0);
+            write(header, 0, header.length, buffer, offset, length);
+        } else {
+            ZabbixProtocol.writeHeader(ZabbixProtocol.FLAG_PROTOCOL, length, 0, sendHeaderBytes, 0);
+            write(sendHeaderBytes, 0, ZabbixProtocol.HEADER_SIZE, buffer, offset, length);
+        }
+    }
+
+    /**
+     * A gathering write of the header, using the direct buffer, and the body, wrapped as a heap buffer.
+     */
+    private void write(byte[] header, int headerOffset, int headerLength, byte[] body, int bodyOffset, int bodyLength) throws IOException {
+        writeHeader.clear();
+        if (header != null) {
+            writeHeader.put(header, headerOffset, headerLength);
+        }
+        writeHeader.flip();
+        gather[0] = writeHeader;
+        gather[1] = ByteBuffer.wrap(body, bodyOffset, bodyLength);
+        try {
+            if (engine == null) {
+                rawWrite(gather);
+            } else {
+                wrapWrite(gather);
+            }
+        } finally {
+            gather[1] = null;
+        }
+    }
+
+    @Override
+    public byte[] read() throws IOException {
+        ensureOpen();
+        readHeaderStart(ByteBuffer.wrap(headerBytes, 0, ZabbixProtocol.HEADER_SIZE));
+        int headerSize = ZabbixProtocol.checkHeader(headerBytes, largePacket);
+        if (headerSize > ZabbixProtocol.HEADER_SIZE) {
+            readFully(ByteBuffer.wrap(headerBytes, ZabbixProtocol.HEADER_SIZE, headerSize - ZabbixProtocol.HEADER_SIZE));
+        }
+        int size = ZabbixProtocol.arraySize(headerBytes);
+        if (readBuffer.capacity() < size) {
+            readBuffer = ByteBuffer.allocate(Math.max(size, readBuffer.capacity() * 2));
+        }
+        readBuffer.clear().limit(size);
+        readFully(readBuffer);
+        readBuffer.flip();
+        // The returned body is kept by the caller, so it can't be the reused buffer
+        if (ZabbixProtocol.isCompressed(headerBytes)) {
+            return ZabbixProtocol.decompress(readBuffer, (int) ZabbixProtocol.uncompressedSize(headerBytes));
+        } else {
+            return Arrays.copyOf(readBuffer.array(), size);
+        }
+    }
+
+    /**
+     * Once closed, the buffers might be used by another channel.
+     */
+    private void ensureOpen() throws IOException {
+        if (released) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * A connection closed or reset before the first byte throws a {@link ConnectionClosedException}.
+     */
+    private void readHeaderStart(ByteBuffer dst) throws IOException {
+        int read;
+        try {
+            read = engine == null ? rawRead(dst) : unwrapRead(dst);
+        } catch (SocketException ex) {
+            throw new ConnectionClosedException(ex);
+        }
+        if (read < 0) {
+            throw new ConnectionClosedException();
+        }
+        readFully(dst);
+    }
+
+    private void readFully(ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = engine == null ? rawRead(dst) : unwrapRead(dst);
+            if (read < 0) {
+                throw new IOException("Connection closed");
+            }
+        }
+    }
+
+    /**
+     * Wait for an operation, a wakeup is ignored and an interrupt throws an {@link InterruptedIOException} that is not a
+     * {@link SocketTimeoutException}, keeping the interrupt status.
+     */
+    private void await(int operation, int timeout, String message) throws IOException {
+        key.interestOps(operation);
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            long remaining = timeout;
+            while (selector.select(remaining) == 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Interrupted");
+                } else if (timeout > 0) {
+                    long nanos = deadline - System.nanoTime();
+                    if (nanos <= 0) {
+                        throw new SocketTimeoutException(message);
+                    }
+                    // Rounded up, as 0 would wait forever
+                    remaining = (nanos + 999_999) / 1_000_000;
+                }
+            }
+            selector.selectedKeys().clear();
+        } finally {
+            key.interestOps(0);
+        }
+    }
+
+    private void rawWrite(ByteBuffer... srcs) throws IOException {
+        while (hasRemaining(srcs)) {
+            if (channel.write(srcs) == 0) {
+                await(SelectionKey.OP_WRITE, socketTimeout, "Write timed out");
+            }
+        }
+    }
+
+    private int rawRead(ByteBuffer dst) throws IOException {
+        while (true) {
+            int read = channel.read(dst);
+            if (read != 0 || ! dst.hasRemaining()) {
+                return read;
+            }
+            await(SelectionKey.OP_READ, socketTimeout, "Read timed out");
+        }
+    }
+
+    private void wrapWrite(ByteBuffer... srcs) throws IOException {
+        do {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(srcs, netOut);
+            switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                netOut = grow(netOut, Math.max(netOut.capacity() * 2, engine.getSession().getPacketBufferSize()));
+                continue;
+            case CLOSED:
+                throw new IOException("Connection closed");
+            default:
+                netOut.flip();
+                rawWrite(netOut);
+                runTasks(result.getHandshakeStatus());
+            }
+        } while (hasRemaining(srcs));
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer b: buffers) {
+            if (b.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read some decrypted bytes.
+     * @return the number of bytes read, or -1 if the peer closed the connection
+     */
+    private int unwrapRead(ByteBuffer dst) throws IOException {
+        while (true) {
+            if (appIn.position() > 0) {
+                appIn.flip();
+                int count = Math.min(appIn.remaining(), dst.remaining());
+                ByteBuffer slice = appIn.duplicate();
+                slice.limit(slice.position() + count);
+                dst.put(slice);
+                appIn.position(appIn.position() + count);
+                appIn.compact();
+                return count;
+            }
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                netIn = ensureCapacity(netIn, engine.getSession().getPacketBufferSize());
+                if (rawRead(netIn) < 0) {
+                    return -1;
+                }
+                break;
+            case BUFFER_OVERFLOW:
+                appIn = ensureCapacity(appIn, engine.getSession().getApplicationBufferSize());
+                break;
+            case CLOSED:
+                return -1;
+            default:
+                // TLS 1.3 sends session tickets after the handshake
+                postHandshake(result.getHandshakeStatus());
+            }
+        }
+    }
+
+    private void handshake() throws IOException {
+        engine.beginHandshake();
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != SSLEngineResult.HandshakeStatus.FINISHED && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            SSLEngineResult result;
+            switch (status) {
+            case NEED_WRAP:
+                netOut.clear();
+                result = engine.wrap(EMPTY, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    netOut = grow(netOut, Math.max(netOut.capacity() * 2, engine.getSession().getPacketBufferSize()));
+                    break;
+                } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new IOException("Connection closed during handshake");
+                }
+                netOut.flip();
+                rawWrite(netOut);
+                status = result.getHandshakeStatus();
+                break;
+            case NEED_UNWRAP:
+            case NEED_UNWRAP_AGAIN:
+                netIn.flip();
+                result = engine.unwrap(netIn, appIn);
+                netIn.compact();
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    netIn = ensureCapacity(netIn, engine.getSession().getPacketBufferSize());
+                    if (rawRead(netIn) < 0) {
+                        throw new IOException("Connection closed during handshake");
+                    }
+                } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    appIn = ensureCapacity(appIn, engine.getSession().getApplicationBufferSize());
+                } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new IOException("Connection closed during handshake");
+                }
+                status = engine.getHandshakeStatus();
+                break;
+            case NEED_TASK:
+                runTasks(status);
+                status = engine.getHandshakeStatus();
+                break;
+            default:
+                throw new IllegalStateException("Unexpected handshake status " + status);
+            }
+        }
+    }
+
+    private void postHandshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        runTasks(status);
+        if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            wrapWrite(EMPTY);
+        }
+    }
+
+    private void runTasks(SSLEngineResult.HandshakeStatus status) {
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private ByteBuffer ensureCapacity(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        } else {
+            ByteBuffer newBuffer = buffer.isDirect()
+                                   ? bufferPool.acquire(buffer.position() + needed)
+                                   : ByteBuffer.allocate(buffer.position() + needed);
+            buffer.flip();
+            newBuffer.put(buffer);
+            bufferPool.release(buffer);
+            return newBuffer;
+        }
+    }
+
+    /**
+     * Replace an empty direct buffer with a bigger one.
+     */
+    private ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        bufferPool.release(buffer);
+        return bufferPool.acquire(capacity);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen() && channel.isConnected() && (engine == null || ! engine.isOutboundDone());
+    }
+
+    /**
+     * A non-blocking read, any data or EOF means the connection is not usable.
+     */
+    @Override
+    public boolean isAlive() {
+        try {
+            if (released) {
+                return false;
+            } else if (engine == null) {
+                return channel.read(ByteBuffer.allocate(1)) == 0;
+            } else {
+                return netIn.position() == 0 && appIn.position() == 0 && channel.read(netIn) == 0;
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (engine != null && channel.isOpen() && ! engine.isOutboundDone()) {
+                engine.closeOutbound();
+                try {
+                    netOut.clear();
+                    engine.wrap(EMPTY, netOut);
+                    netOut.flip();
+                    rawWrite(netOut);
+                } catch (IOException ex) {
+                    // Best effort close_notify
+                }
+            }
+        } finally {
+            try {
+                selector.close();
+            } finally {
+                try {
+                    channel.close();
+                } finally {
+                    releaseBuffers();
+                }
+            }
+        }
+    }
+
+    private void releaseBuffers() {
+        if (! released) {
+            released = true;
+            bufferPool.release(writeHeader);
+            bufferPool.release(netIn);
+            bufferPool.release(netOut);
+        }
+    }
+
+}
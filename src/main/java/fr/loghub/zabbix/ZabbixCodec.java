@@ -0,0 +1,97 @@
+package fr.loghub.zabbix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An incremental decoder of Zabbix packets, for non-blocking I/O where a packet can be received in many parts. It
+ * accepts the same packets as {@link ZabbixProtocol}.
+ * <p>
+ * An instance keeps the state of the packet being decoded, so it must be used by a single connection.
+ */
+public class ZabbixCodec {
+
+    private final int maxSize;
+    private final boolean largePacket;
+    private final byte[] header = new byte[ZabbixProtocol.LARGE_HEADER_SIZE];
+    private int headerRead = 0;
+    private int headerSize = 0;
+    private byte[] body = null;
+    private int bodyRead = 0;
+
+    /**
+     * @param maxSize the maximum size of a packet body, compressed or not
+     * @param largePacket accept packets using the large packet header
+     */
+    public ZabbixCodec(int maxSize, boolean largePacket) {
+        this.maxSize = maxSize;
+        this.largePacket = largePacket;
+    }
+
+    /**
+     * Consume bytes from a buffer, until a packet is complete or the buffer is empty. Bytes of the next packet are
+     * left in the buffer.
+     * @param input a buffer ready to be read
+     * @return the body of the packet or null if more bytes are needed
+     * @throws IOException if the packet is invalid or too big
+     */
+    public byte[] decode(ByteBuffer input) throws IOException {
+        while (input.hasRemaining()) {
+            if (body == null) {
+                int wanted = (headerSize == 0 ? ZabbixProtocol.HEADER_SIZE : headerSize) - headerRead;
+                int count = Math.min(wanted, input.remaining());
+                input.get(header, headerRead, count);
+                headerRead += count;
+                if (headerSize == 0 && headerRead == ZabbixProtocol.HEADER_SIZE) {
+                    headerSize = ZabbixProtocol.checkHeader(header, largePacket);
+                }
+                if (headerRead < headerSize || headerSize == 0) {
+                    continue;
+                }
+                long size = ZabbixProtocol.checkSizes(header);
+                if (size > maxSize || (ZabbixProtocol.isCompressed(header) && ZabbixProtocol.uncompressedSize(header) > maxSize)) {
+                    throw new IOException("Oversize request");
+                }
+                body = new byte[(int) size];
+                bodyRead = 0;
+            }
+            int count = Math.min(body.length - bodyRead, input.remaining());
+            input.get(body, bodyRead, count);
+            bodyRead += count;
+            if (bodyRead == body.length) {
+                return complete();
+            }
+        }
+        return null;
+    }
+
+    private byte[] complete() throws IOException {
+        byte[] payload = ZabbixProtocol.isCompressed(header) ? ZabbixProtocol.decompress(body, (int) ZabbixProtocol.uncompressedSize(header)) : body;
+        headerRead = 0;
+        headerSize = 0;
+        body = null;
+        bodyRead = 0;
+        return payload;
+    }
+
+    /**
+     * @return true if some bytes of a packet were consumed, but the packet is not complete yet.
+     */
+    public boolean isPending() {
+        return headerRead > 0;
+    }
+
+    /**
+     * Frame a body with a standard header, it's never compressed.
+     * @param payload the packet body
+     * @return a buffer ready to be written
+     */
+    public static ByteBuffer encode(byte[] payload) {
+        ZabbixProtocol.checkLarge(payload.length, false);
+        byte[] packet = new byte[ZabbixProtocol.HEADER_SIZE + payload.length];
+        ZabbixProtocol.writeHeader(ZabbixProtocol.FLAG_PROTOCOL, payload.length, 0, packet, 0);
+        System.arraycopy(payload, 0, packet, ZabbixProtocol.HEADER_SIZE, payload.length);
+        return ByteBuffer.wrap(packet);
+    }
+
+}
@@ -0,0 +1,50 @@
+package fr.loghub.zabbix;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A connection to a Zabbix peer, that exchanges framed packets.
+ */
+public interface ZabbixConnection extends Closeable {
+
+    /**
+     * @param request the request body to send
+     * @throws IOException if communication failed
+     * @throws IllegalArgumentException if the packet size is too big.
+     */
+    default void send(byte[] request) throws IOException {
+        send(request, 0, request.length);
+    }
+
+    /**
+     * Send a request body stored in a part of a buffer. If <code>offset</code> is at least
+     * {@link ZabbixProtocol#HEADER_SIZE}, the header might be written in the buffer, just before the body, so the buffer
+     * must be owned by the caller.
+     *
+     * @param buffer the buffer holding the request body
+     * @param offset the start of the body in the buffer
+     * @param length the size of the body
+     * @throws IOException if communication failed
+     * @throws IllegalArgumentException if the packet size is too big.
+     */
+    void send(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * @return the body of the next packet.
+     * @throws IOException if communication failed or the packet is invalid
+     */
+    byte[] read() throws IOException;
+
+    /**
+     * @return false if the connection is known to be closed, without any I/O.
+     */
+    boolean isOpen();
+
+    /**
+     * Check that the peer did not close the connection. It might block for a short time.
+     * @return true if the connection can be used for another exchange.
+     */
+    boolean isAlive();
+
+}
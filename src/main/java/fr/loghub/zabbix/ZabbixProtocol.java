@@ -1,27 +1,95 @@
 package fr.loghub.zabbix;
 
-import java.io.Closeable;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
 
 /**
  * An implementation of a Zabbix exchange using the standard Zabbix header.
- * It does not handle compression nor large packet.
+ * It handles compression and, if enabled, large packet.
  */
-public class ZabbixProtocol implements Closeable {
+public class ZabbixProtocol implements ZabbixConnection {
     private static final byte[] ZABBIX_MAGIC;
     static {
         ZABBIX_MAGIC = "ZBXD".getBytes(StandardCharsets.US_ASCII);
     }
-    private static final int HEADER_SIZE = ZABBIX_MAGIC.length + 1 + 4 + 4;
+    /**
+     * The size of the standard header. A request body that starts at least at this offset in its buffer can be sent
+     * with a single write, the header being written in place before the body.
+     */
+    public static final int HEADER_SIZE = ZABBIX_MAGIC.length + 1 + 4 + 4;
+    static final int LARGE_HEADER_SIZE = ZABBIX_MAGIC.length + 1 + 8 + 8;
+    private static final int MAX_SIZE = 1073741824;
+    // The biggest array that can be allocated
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    static final byte FLAG_PROTOCOL = 0x01;
+    static final byte FLAG_COMPRESSION = 0x02;
+    static final byte FLAG_LARGE = 0x04;
 
+    @Accessors(fluent = true)
+    public static class Builder {
+        @Setter
+        private Socket connection;
+        /**
+         * The minimum size of a request to be compressed, a negative value disable compression.
+         */
+        @Setter
+        private int compressionThreshold = -1;
+        @Setter
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        /**
+         * Accept and send packets with a 64 bits length, used when a packet is bigger than 1 GiB. Only recent Zabbix
+         * servers and proxies accept them.
+         */
+        @Setter
+        private boolean largePacket = false;
+
+        public ZabbixProtocol build() {
+            return new ZabbixProtocol(this);
+        }
+    }
+    public static ZabbixProtocol.Builder builder() {
+        return new ZabbixProtocol.Builder();
+    }
+
+    @Getter
     private final Socket connection;
+    @Getter
+    private final int compressionThreshold;
+    @Getter
+    private final int compressionLevel;
+    @Getter
+    private final boolean largePacket;
 
     public ZabbixProtocol(Socket connection) {
         this.connection = connection;
+        this.compressionThreshold = -1;
+        this.compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        this.largePacket = false;
+    }
+
+    private ZabbixProtocol(Builder builder) {
+        if (builder.compressionLevel < Deflater.DEFAULT_COMPRESSION || builder.compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + builder.compressionLevel);
+        }
+        this.connection = builder.connection;
+        this.compressionThreshold = builder.compressionThreshold;
+        this.compressionLevel = builder.compressionLevel;
+        this.largePacket = builder.largePacket;
     }
 
     /**
@@ -30,59 +98,351 @@ public class ZabbixProtocol implements Closeable {
      * @throws IOException if communication failed
      * @throws IllegalArgumentException if the packet size is too big.
      */
+    @Override
     public void send(byte[] request) throws IOException {
-        if (request.length > 1073741824) {
+        send(request, 0, request.length);
+    }
+
+    /**
+     * Send a request body stored in a part of a buffer. If <code>offset</code> is at least {@link #HEADER_SIZE}, the
+     * header is written in the buffer, just before the body, so the buffer must be owned by the caller.
+     *
+     * @param buffer the buffer holding the request body
+     * @param offset the start of the body in the buffer
+     * @param length the size of the body
+     * @throws IOException if communication failed
+     * @throws IllegalArgumentException if the packet size is too big.
+     */
+    @Override
+    public void send(byte[] buffer, int offset, int length) throws IOException {
+        OutputStream outputStream = connection.getOutputStream();
+        if (compressionThreshold >= 0 && length >= compressionThreshold) {
+            byte[] payload = compress(compressionLevel, buffer, offset, length);
+            int size = payload.length - HEADER_SIZE;
+            if (checkLarge(Math.max(size, length), largePacket)) {
+                outputStream.write(largeHeader(FLAG_PROTOCOL | FLAG_COMPRESSION, size, length));
+                outputStream.write(payload, HEADER_SIZE, size);
+            } else {
+                writeHeader(FLAG_PROTOCOL | FLAG_COMPRESSION, size, length, payload, 0);
+                outputStream.write(payload);
+            }
+        } else if (checkLarge(length, largePacket)) {
+            outputStream.write(largeHeader(FLAG_PROTOCOL, length, 0));
+            outputStream.write(buffer, offset, length);
+        } else if (offset >= HEADER_SIZE) {
+            writeHeader(FLAG_PROTOCOL, length, 0, buffer, offset - HEADER_SIZE);
+            outputStream.write(buffer, offset - HEADER_SIZE, HEADER_SIZE + length);
+        } else {
+            byte[] payload = new byte[HEADER_SIZE + length];
+            writeHeader(FLAG_PROTOCOL, length, 0, payload, 0);
+            System.arraycopy(buffer, offset, payload, HEADER_SIZE, length);
+            outputStream.write(payload);
+        }
+        outputStream.flush();
+    }
+
+    static void writeHeader(int flags, int size, int reserved, byte[] buffer, int offset) {
+        System.arraycopy(ZABBIX_MAGIC, 0, buffer, offset, ZABBIX_MAGIC.length);
+        buffer[offset + 4] = (byte) flags;
+        writeInt(size, buffer, offset + 5);
+        writeInt(reserved, buffer, offset + 9);
+    }
+
+    /**
+     * Send a request body read from a stream, without buffering it. It's never compressed.
+     *
+     * @param length the exact number of bytes that will be read from the body
+     * @param body the request body to send
+     * @throws IOException if communication failed or the body is shorter than announced
+     * @throws IllegalArgumentException if the packet size is too big.
+     */
+    public void send(long length, InputStream body) throws IOException {
+        if (length < 0) {
+            throw new IllegalArgumentException("Invalid request size: " + length);
+        }
+        byte[] header;
+        if (checkLarge(length, largePacket)) {
+            header = largeHeader(FLAG_PROTOCOL, length, 0);
+        } else {
+            header = new byte[HEADER_SIZE];
+            writeHeader(FLAG_PROTOCOL, (int) length, 0, header, 0);
+        }
+        OutputStream outputStream = connection.getOutputStream();
+        outputStream.write(header);
+        byte[] buffer = new byte[(int) Math.min(65536, Math.max(length, 1))];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = body.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("Truncated request body");
+            }
+            outputStream.write(buffer, 0, read);
+            remaining -= read;
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Start a packet with a known body length, the header is sent immediately. The body is written directly to the
+     * connection, through a small buffer, and it's never compressed. Closing the stream ends the packet, without
+     * closing the connection. Use {@link java.nio.channels.Channels#newChannel(OutputStream)} to get a
+     * {@link java.nio.channels.WritableByteChannel}.
+     *
+     * @param length the exact number of bytes that will be written
+     * @return the stream for the body, closing it fails if fewer bytes were written
+     * @throws IOException if communication failed
+     * @throws IllegalArgumentException if the packet size is too big.
+     */
+    public OutputStream sendStream(long length) throws IOException {
+        if (length < 0) {
+            throw new IllegalArgumentException("Invalid request size: " + length);
+        }
+        byte[] header;
+        if (checkLarge(length, largePacket)) {
+            header = largeHeader(FLAG_PROTOCOL, length, 0);
+        } else {
+            header = new byte[HEADER_SIZE];
+            writeHeader(FLAG_PROTOCOL, (int) length, 0, header, 0);
+        }
+        OutputStream outputStream = new BufferedOutputStream(connection.getOutputStream(), (int) Math.min(8192, length + header.length));
+        outputStream.write(header);
+        return new PacketOutputStream(outputStream, length);
+    }
+
+    /**
+     * Start a packet whose body length is not known yet. As the length is needed in the header, the body is kept in
+     * memory up to 1 MiB, and then in a temporary file. The packet is sent when the stream is closed.
+     *
+     * @return the stream for the body
+     */
+    public OutputStream sendDeferredStream() {
+        return sendDeferredStream(1024 * 1024);
+    }
+
+    /**
+     * Start a packet whose body length is not known yet. As the length is needed in the header, the body is kept in
+     * memory up to <code>memoryThreshold</code>, and then in a temporary file. The packet is sent when the stream is
+     * closed, a body kept in memory can be compressed.
+     *
+     * @param memoryThreshold the maximum size of the body kept in memory
+     * @return the stream for the body
+     */
+    public OutputStream sendDeferredStream(int memoryThreshold) {
+        if (memoryThreshold < 0) {
+            throw new IllegalArgumentException("Invalid memory threshold: " + memoryThreshold);
+        }
+        return new DeferredPacketOutputStream(this, memoryThreshold);
+    }
+
+    /**
+     * Check if a large header is needed for the given size.
+     * @throws IllegalArgumentException if a large header is needed but not allowed.
+     */
+    static boolean checkLarge(long size, boolean largePacket) {
+        if (size <= MAX_SIZE) {
+            return false;
+        } else if (largePacket) {
+            return true;
+        } else {
             throw new IllegalArgumentException("Oversize request");
         }
-        byte[] payload = Arrays.copyOf(ZABBIX_MAGIC, HEADER_SIZE + request.length);
-        payload[4] = 1;
-        writeInt(request.length, payload, 5);
-        System.arraycopy(request, 0, payload, 13, request.length);
-        connection.getOutputStream().write(payload);
-        connection.getOutputStream().flush();
     }
 
+    static byte[] largeHeader(int flags, long size, long reserved) {
+        byte[] header = Arrays.copyOf(ZABBIX_MAGIC, LARGE_HEADER_SIZE);
+        header[4] = (byte) (flags | FLAG_LARGE);
+        writeLong(size, header, 5);
+        writeLong(reserved, header, 13);
+        return header;
+    }
+
+    /**
+     * Deflate the request directly after the header, the header content is not written.
+     */
+    static byte[] compress(int compressionLevel, byte[] request, int offset, int length) {
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            deflater.setInput(request, offset, length);
+            deflater.finish();
+            byte[] payload = new byte[(int) Math.min(MAX_ARRAY_SIZE, (long) HEADER_SIZE + deflateBound(length))];
+            int written = HEADER_SIZE;
+            while (! deflater.finished()) {
+                if (written == payload.length) {
+                    payload = Arrays.copyOf(payload, (int) Math.min(MAX_ARRAY_SIZE, payload.length * 2L));
+                }
+                written += deflater.deflate(payload, written, payload.length - written);
+            }
+            return written == payload.length ? payload : Arrays.copyOf(payload, written);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Same bound as zlib's compressBound
+     */
+    private static long deflateBound(int length) {
+        return (long) length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+    }
+
+    @Override
     public byte[] read() throws IOException {
         InputStream inputStream = connection.getInputStream();
 
-        byte[] headerBuffer = new byte[HEADER_SIZE];
+        byte[] headerBuffer = new byte[LARGE_HEADER_SIZE];
+        readHeaderStart(inputStream, headerBuffer);
+        int headerSize = checkHeader(headerBuffer, largePacket);
+        if (headerSize > HEADER_SIZE) {
+            readFully(inputStream, headerBuffer, HEADER_SIZE, headerSize - HEADER_SIZE);
+        }
+        int size = arraySize(headerBuffer);
+        byte[] payloadBuffer = new byte[size];
+        readFully(inputStream, payloadBuffer, 0, size);
+
+        return isCompressed(headerBuffer) ? decompress(payloadBuffer, (int) uncompressedSize(headerBuffer)) : payloadBuffer;
+   }
+
+    /**
+     * Read the header of the next packet, and return its body as a stream, read directly from the connection. A
+     * compressed body is inflated while it's read. Closing the stream skips the unread part of the body, without
+     * closing the connection.
+     *
+     * @return the stream for the body
+     * @throws IOException if communication failed or the header is invalid
+     */
+    public InputStream readStream() throws IOException {
+        InputStream inputStream = connection.getInputStream();
+
+        byte[] headerBuffer = new byte[LARGE_HEADER_SIZE];
+        readHeaderStart(inputStream, headerBuffer);
+        int headerSize = checkHeader(headerBuffer, largePacket);
+        if (headerSize > HEADER_SIZE) {
+            readFully(inputStream, headerBuffer, HEADER_SIZE, headerSize - HEADER_SIZE);
+        }
+        long size = checkSizes(headerBuffer);
+        PacketInputStream body = new PacketInputStream(inputStream, size);
+        return isCompressed(headerBuffer) ? new PacketInputStream.Inflated(body, uncompressedSize(headerBuffer)) : body;
+    }
+
+    /**
+     * Read the standard header, a connection closed or reset before the first byte throws a
+     * {@link ConnectionClosedException}.
+     */
+    private static void readHeaderStart(InputStream inputStream, byte[] headerBuffer) throws IOException {
+        int read;
+        try {
+            read = inputStream.read(headerBuffer, 0, HEADER_SIZE);
+        } catch (SocketException ex) {
+            throw new ConnectionClosedException(ex);
+        }
+        if (read < 0) {
+            throw new ConnectionClosedException();
+        }
+        readFully(inputStream, headerBuffer, read, HEADER_SIZE - read);
+    }
 
-        int headerReadCount = 0;
-        int headerRead = 0;
-        while (headerReadCount < HEADER_SIZE && (headerRead = inputStream.read(headerBuffer, headerReadCount, HEADER_SIZE - headerReadCount)) > 0) {
-            headerReadCount += headerRead;
+    private static void readFully(InputStream inputStream, byte[] buffer, int offset, int length) throws IOException {
+        int readCount = 0;
+        int read = 0;
+        while (readCount < length && (read = inputStream.read(buffer, offset + readCount, length - readCount)) > 0) {
+            readCount += read;
         }
-        if (headerRead < 0) {
+        if (read < 0) {
             throw new IOException("Connection closed");
         }
+    }
 
+    /**
+     * Check the magic and the flags of a header, using the first {@link #HEADER_SIZE} bytes.
+     * @return the real size of the header
+     */
+    static int checkHeader(byte[] headerBuffer, boolean largePacket) throws IOException {
         boolean magicStatus = Arrays.equals(headerBuffer, 0, ZABBIX_MAGIC.length, ZABBIX_MAGIC, 0, ZABBIX_MAGIC.length);
         if (! magicStatus) {
             throw new IOException("Not a Zabbix connection");
         }
-        if (headerBuffer[4] != 1) {
+        byte flags = headerBuffer[4];
+        if ((flags & FLAG_PROTOCOL) == 0 || (flags & ~(FLAG_PROTOCOL | FLAG_COMPRESSION | FLAG_LARGE)) != 0) {
             throw new IOException("Not supported Zabbix exchange");
         }
-        int size = readInt(headerBuffer, 5);
-        if (size > 1073741824) {
+        if ((flags & FLAG_LARGE) != 0) {
+            if (! largePacket) {
+                throw new IOException("Not supported Zabbix exchange");
+            }
+            return LARGE_HEADER_SIZE;
+        } else {
+            return HEADER_SIZE;
+        }
+    }
+
+    /**
+     * Check the sizes announced by a complete header. A large packet can announce any size, so the body might not fit
+     * in an array.
+     * @return the size of the payload
+     */
+    static long checkSizes(byte[] headerBuffer) throws IOException {
+        boolean large = (headerBuffer[4] & FLAG_LARGE) != 0;
+        long size = large ? readLong(headerBuffer, 5) : readInt(headerBuffer, 5);
+        long reserved = large ? readLong(headerBuffer, 13) : readInt(headerBuffer, 9);
+        long maxSize = large ? Long.MAX_VALUE : MAX_SIZE;
+        if (size < 0 || size > maxSize) {
             throw new IOException("Oversize response");
         }
-        int reserved = readInt(headerBuffer, 9);
-        if (reserved != 0) {
+        if (isCompressed(headerBuffer) && (reserved < 0 || reserved > maxSize)) {
+            throw new IOException("Oversize response");
+        } else if (! isCompressed(headerBuffer) && reserved != 0) {
             throw new IOException("Not supported Zabbix exchange");
         }
-        byte[] payloadBuffer = new byte[size];
-        int readCount = 0;
-        int read = 0;
-        while (readCount < size && (read = inputStream.read(payloadBuffer, readCount, size - readCount)) > 0) {
-            readCount += read;
-        }
-        if (read < 0) {
-            throw new IOException("Connection closed");
+        return size;
+    }
+
+    /**
+     * Check the sizes of a complete header, for a packet read in an array.
+     * @return the size of the payload
+     */
+    static int arraySize(byte[] headerBuffer) throws IOException {
+        long size = checkSizes(headerBuffer);
+        if (size > MAX_ARRAY_SIZE || (isCompressed(headerBuffer) && uncompressedSize(headerBuffer) > MAX_ARRAY_SIZE)) {
+            throw new IOException("Oversize response, it can only be read as a stream");
         }
+        return (int) size;
+    }
 
-        return payloadBuffer;
-   }
+    static boolean isCompressed(byte[] headerBuffer) {
+        return (headerBuffer[4] & FLAG_COMPRESSION) != 0;
+    }
+
+    static long uncompressedSize(byte[] headerBuffer) {
+        return (headerBuffer[4] & FLAG_LARGE) != 0 ? readLong(headerBuffer, 13) : readInt(headerBuffer, 9);
+    }
+
+    static byte[] decompress(byte[] compressed, int size) throws IOException {
+        return decompress(ByteBuffer.wrap(compressed), size);
+    }
+
+    static byte[] decompress(ByteBuffer compressed, int size) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] payloadBuffer = new byte[size];
+            int length = 0;
+            while (length < size && ! inflater.finished()) {
+                int inflated = inflater.inflate(payloadBuffer, length, size - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != size || ! inflater.finished()) {
+                throw new IOException("Invalid compressed data");
+            }
+            return payloadBuffer;
+        } catch (DataFormatException ex) {
+            throw new IOException("Invalid compressed data", ex);
+        } finally {
+            inflater.end();
+        }
+    }
 
     static int readInt(byte[] buffer, int offset) {
         return (buffer[offset + 3] & 0xFF) << 24
@@ -98,6 +458,44 @@ public class ZabbixProtocol implements Closeable {
         buffer[offset] = (byte) (value & 0xFF);
     }
 
+    static long readLong(byte[] buffer, int offset) {
+        return (readInt(buffer, offset + 4) & 0xFFFFFFFFL) << 32 | readInt(buffer, offset) & 0xFFFFFFFFL;
+    }
+
+    static void writeLong(long value, byte[] buffer, int offset) {
+        writeInt((int) value, buffer, offset);
+        writeInt((int) (value >> 32), buffer, offset + 4);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return ! connection.isClosed() && ! connection.isInputShutdown() && ! connection.isOutputShutdown();
+    }
+
+    /**
+     * Wait 1 ms for the peer to close the connection. Any data or EOF means the connection is not usable.
+     */
+    @Override
+    public boolean isAlive() {
+        int timeout = 0;
+        try {
+            timeout = connection.getSoTimeout();
+            connection.setSoTimeout(1);
+            connection.getInputStream().read();
+            return false;
+        } catch (SocketTimeoutException ex) {
+            return true;
+        } catch (IOException ex) {
+            return false;
+        } finally {
+            try {
+                connection.setSoTimeout(timeout);
+            } catch (IOException ex) {
+                // The next exchange will fail
+            }
+        }
+    }
+
     /**
      * Closes this stream and releases any system resources associated
      * with it. If the stream is already closed then invoking this
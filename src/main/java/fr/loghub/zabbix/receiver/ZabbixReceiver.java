@@ -0,0 +1,500 @@
+package fr.loghub.zabbix.receiver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.loghub.zabbix.ZabbixCodec;
+import fr.loghub.zabbix.sender.DataObject;
+import fr.loghub.zabbix.sender.JsonHandler;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * A receiver of <code>sender data</code> requests, as sent by {@link fr.loghub.zabbix.sender.ZabbixSender} or
+ * zabbix_sender. It can be used as a local stand-in of a Zabbix trapper.
+ * <p>
+ * All the connections are handled by a single thread, using a selector. Decoded requests are given to a pool of
+ * workers that parse them and hand the values to a {@link Sink}. A connection can send many requests, one after the
+ * other, it's closed by the peer or when idle.
+ */
+public class ZabbixReceiver implements Closeable {
+
+    @FunctionalInterface
+    public interface Sink {
+        /**
+         * Process the values of a request. It's called concurrently by the workers.
+         * @param values the received values
+         * @return the number of values processed, the others are reported as failed to the sender
+         * @throws IOException if the values can't be processed, the request fails
+         */
+        int accept(List<DataObject> values) throws IOException;
+    }
+
+    @Accessors(fluent = true)
+    public static class Builder {
+        private String host;
+        private int port;
+        private SocketAddress address;
+        @Setter
+        private JsonHandler jhandler;
+        @Setter
+        private Sink sink;
+        /**
+         * The number of threads that parse requests and call the sink.
+         */
+        @Setter
+        private int workers = Runtime.getRuntime().availableProcessors();
+        @Setter
+        private int maxConnections = 65536;
+        /**
+         * The maximum size of a request, compressed or not.
+         */
+        @Setter
+        private int maxPacketSize = 64 * 1024 * 1024;
+        private long idleTimeout = 30000;
+        @Setter
+        private int backlog = 1024;
+        @Setter
+        private boolean largePacket = false;
+        @Setter
+        private String name = "ZabbixReceiver";
+
+        public Builder idleTimeout(long value, TimeUnit unit) {
+            idleTimeout = TimeUnit.MILLISECONDS.convert(value, unit);
+            if (idleTimeout <= 0) {
+                throw new IllegalArgumentException("Out of range timeout: " + idleTimeout + "ms");
+            }
+            return this;
+        }
+        public Builder host(String host) {
+            this.host = host;
+            this.address = null;
+            return this;
+        }
+        public Builder port(int port) {
+            this.port = port;
+            this.address = null;
+            return this;
+        }
+        public Builder address(SocketAddress address) {
+            this.address = address;
+            this.port = -1;
+            this.host = null;
+            return this;
+        }
+
+        /**
+         * Bind the listening socket and start the receiver.
+         */
+        public ZabbixReceiver bind() throws IOException {
+            return new ZabbixReceiver(this);
+        }
+    }
+    public static ZabbixReceiver.Builder builder() {
+        return new ZabbixReceiver.Builder();
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ZabbixCodec codec;
+        private ByteBuffer leftover = null;
+        private ByteBuffer output = null;
+        private boolean processing = false;
+        private long lastActivity;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.codec = new ZabbixCodec(maxPacketSize, largePacket);
+            this.lastActivity = System.nanoTime();
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        void read() throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            lastActivity = System.nanoTime();
+            readBuffer.flip();
+            decode(readBuffer);
+        }
+
+        private void decode(ByteBuffer input) throws IOException {
+            byte[] payload = codec.decode(input);
+            if (payload != null) {
+                if (input.hasRemaining()) {
+                    // A pipelined request, kept until the response is sent
+                    leftover = ByteBuffer.allocate(input.remaining()).put(input).flip();
+                }
+                processing = true;
+                key.interestOps(0);
+                try {
+                    workersPool.execute(() -> process(this, payload));
+                } catch (RejectedExecutionException ex) {
+                    close();
+                }
+            }
+        }
+
+        void respond(byte[] response) {
+            if (! channel.isOpen()) {
+                return;
+            }
+            output = ZabbixCodec.encode(response);
+            try {
+                write();
+            } catch (IOException | CancelledKeyException ex) {
+                close();
+            }
+        }
+
+        void write() throws IOException {
+            channel.write(output);
+            lastActivity = System.nanoTime();
+            if (output.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                output = null;
+                processing = false;
+                key.interestOps(SelectionKey.OP_READ);
+                if (leftover != null) {
+                    ByteBuffer input = leftover;
+                    leftover = null;
+                    decode(input);
+                }
+            }
+        }
+
+        boolean isIdle(long now) {
+            return ! processing && now - lastActivity > TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        }
+
+        void close() {
+            if (! channel.isOpen()) {
+                return;
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // Nothing to do, it's discarded anyway
+            }
+            connections.decrementAndGet();
+        }
+    }
+
+    @Getter
+    private final InetSocketAddress address;
+    @Getter
+    private final int maxConnections;
+    @Getter
+    private final int maxPacketSize;
+    @Getter
+    private final long idleTimeout;
+    @Getter
+    private final boolean largePacket;
+    private final JsonHandler jhandler;
+    private final Sink sink;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService workersPool;
+    private final Thread eventLoop;
+    // Shared by all connections, only used by the event loop
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong values = new AtomicLong();
+    private volatile boolean running = true;
+
+    private ZabbixReceiver(Builder builder) throws IOException {
+        if (builder.jhandler == null) {
+            throw new IllegalArgumentException("Missing JSON handler");
+        }
+        if (builder.sink == null) {
+            throw new IllegalArgumentException("Missing sink");
+        }
+        if (builder.workers <= 0 || builder.maxConnections <= 0 || builder.maxPacketSize <= 0) {
+            throw new IllegalArgumentException("Invalid receiver definition");
+        }
+        jhandler = builder.jhandler;
+        sink = builder.sink;
+        maxConnections = builder.maxConnections;
+        maxPacketSize = builder.maxPacketSize;
+        idleTimeout = builder.idleTimeout;
+        largePacket = builder.largePacket;
+        SocketAddress bindAddress;
+        if (builder.address != null) {
+            bindAddress = builder.address;
+        } else if (builder.host != null) {
+            bindAddress = new InetSocketAddress(builder.host, builder.port);
+        } else {
+            bindAddress = new InetSocketAddress(builder.port);
+        }
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(bindAddress, builder.backlog);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException | RuntimeException ex) {
+            server.close();
+            selector.close();
+            throw ex;
+        }
+        address = (InetSocketAddress) server.getLocalAddress();
+        AtomicInteger workerCount = new AtomicInteger();
+        workersPool = Executors.newFixedThreadPool(builder.workers, r -> {
+            Thread t = new Thread(r, builder.name + "/" + workerCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        eventLoop = new Thread(this::run, builder.name);
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+    }
+
+    private void run() {
+        long lastCheck = System.nanoTime();
+        long checkInterval = TimeUnit.MILLISECONDS.toNanos(Math.min(idleTimeout, 1000));
+        while (running) {
+            try {
+                selector.select(TimeUnit.NANOSECONDS.toMillis(checkInterval));
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                while (i.hasNext()) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    handle(key);
+                }
+                long now = System.nanoTime();
+                if (now - lastCheck > checkInterval) {
+                    lastCheck = now;
+                    closeIdle(now);
+                }
+            } catch (IOException ex) {
+                // Only a failing selector, nothing can be done
+                running = false;
+            }
+        }
+        for (SelectionKey key: selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            // Stopping anyway
+        }
+    }
+
+    private void handle(SelectionKey key) throws IOException {
+        if (! key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.read();
+            } else if (key.isWritable()) {
+                connection.write();
+            }
+        } catch (IOException | CancelledKeyException ex) {
+            // Invalid packet or broken connection
+            connection.close();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            if (connections.get() >= maxConnections) {
+                rejected.incrementAndGet();
+                channel.close();
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connections.incrementAndGet();
+                accepted.incrementAndGet();
+                new Connection(channel);
+            } catch (IOException ex) {
+                connections.decrementAndGet();
+                channel.close();
+            }
+        }
+    }
+
+    private void closeIdle(long now) {
+        for (SelectionKey key: selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.isIdle(now)) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse a request and call the sink, in a worker thread.
+     */
+    private void process(Connection connection, byte[] payload) {
+        long start = System.nanoTime();
+        requests.incrementAndGet();
+        Map<String, Object> response;
+        try {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> request = jhandler.deserialize(new String(payload, StandardCharsets.UTF_8), Map.class);
+            if (request == null || ! "sender data".equals(request.get("request"))) {
+                throw new IOException("Unsupported request");
+            }
+            Object data = request.get("data");
+            if (! (data instanceof List)) {
+                throw new IOException("Missing data");
+            }
+            List<?> entries = (List<?>) data;
+            Instant clock = parseClock(request, Instant.now());
+            List<DataObject> parsed = new ArrayList<>(entries.size());
+            for (Object entry: entries) {
+                DataObject value = parseValue(entry, clock);
+                if (value != null) {
+                    parsed.add(value);
+                }
+            }
+            int processed = parsed.isEmpty() ? 0 : sink.accept(Collections.unmodifiableList(parsed));
+            values.addAndGet(processed);
+            String info = String.format(Locale.ROOT, "processed: %d; failed: %d; total: %d; seconds spent: %.6f",
+                                        processed, entries.size() - processed, entries.size(),
+                                        (System.nanoTime() - start) / 1e9);
+            response = Map.of("response", "success", "info", info);
+        } catch (IOException | RuntimeException ex) {
+            response = Map.of("response", "failed", "info", String.valueOf(ex.getMessage()));
+        }
+        byte[] responseBuffer = jhandler.serialize(response).getBytes(StandardCharsets.UTF_8);
+        tasks.add(() -> connection.respond(responseBuffer));
+        selector.wakeup();
+    }
+
+    private DataObject parseValue(Object entry, Instant defaultClock) {
+        if (! (entry instanceof Map)) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> values = (Map<String, Object>) entry;
+        Object host = values.get("host");
+        Object key = values.get("key");
+        if (host == null || ! (key instanceof String) || ((String) key).isBlank()) {
+            return null;
+        }
+        return DataObject.builder()
+                         .host(host.toString())
+                         .key((String) key)
+                         .value(values.get("value"))
+                         .clock(parseClock(values, defaultClock))
+                         .build();
+    }
+
+    private Instant parseClock(Map<String, Object> values, Instant defaultClock) {
+        Object clock = values.get("clock");
+        Object ns = values.get("ns");
+        if (clock instanceof Number) {
+            return Instant.ofEpochSecond(((Number) clock).longValue(), ns instanceof Number ? ((Number) ns).longValue() : 0);
+        } else {
+            return defaultClock;
+        }
+    }
+
+    /**
+     * @return the number of open connections.
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * @return the number of accepted connections.
+     */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * @return the number of connections refused because of the connection limit.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of requests received.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of values processed by the sink.
+     */
+    public long getValues() {
+        return values.get();
+    }
+
+    /**
+     * Stop listening and close all the connections. Requests being processed are not answered.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            eventLoop.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        server.close();
+        workersPool.shutdownNow();
+    }
+
+}
@@ -0,0 +1,36 @@
+package fr.loghub.zabbix.sender;
+
+import lombok.Builder;
+import lombok.Data;
+import lombok.Getter;
+
+/**
+ * An item of a host, as returned by an <code>active checks</code> request.
+ */
+@Builder @Data
+public class ActiveCheck {
+
+    @Getter
+    private final String key;
+    /**
+     * The id of the item, only sent by Zabbix 6.4 and later, or else -1.
+     */
+    @Getter @Builder.Default
+    private final long itemid = -1;
+    /**
+     * The update interval, like <code>30</code>, <code>1m</code> or with custom intervals.
+     */
+    @Getter
+    private final String delay;
+    /**
+     * For log items, the size of the log already received by the server.
+     */
+    @Getter
+    private final long lastlogsize;
+    /**
+     * For log items, the modification time of the last log file received.
+     */
+    @Getter
+    private final long mtime;
+
+}
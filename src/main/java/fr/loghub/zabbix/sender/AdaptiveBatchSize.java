@@ -0,0 +1,146 @@
+package fr.loghub.zabbix.sender;
+
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * Choose the number of values sent in each batch to an endpoint, to stay under a latency target.
+ * <p>
+ * It's an AIMD controller: when a full batch was sent faster than the target, the size is increased by a fixed step.
+ * When a send is slower than the target, fails or is spooled, the size is multiplied by a factor smaller than 1. The
+ * time spent by the server, as reported in its responses, also limits the growth: the size is never increased beyond
+ * what the server could process within the target, at the cost per value of the last batch.
+ * <p>
+ * It's thread safe, but each instance should follow a single endpoint.
+ */
+public class AdaptiveBatchSize {
+
+    @Accessors(fluent = true)
+    public static class Builder {
+        @Setter
+        private int minSize = 1;
+        @Setter
+        private int maxSize = 10000;
+        @Setter
+        private int initialSize = 100;
+        @Setter
+        private int increment = 100;
+        @Setter
+        private double decreaseFactor = 0.5;
+        private long latencyTarget = TimeUnit.SECONDS.toNanos(1);
+
+        public Builder latencyTarget(long value, TimeUnit unit) {
+            latencyTarget = unit.toNanos(value);
+            return this;
+        }
+
+        public AdaptiveBatchSize build() {
+            return new AdaptiveBatchSize(this);
+        }
+    }
+    public static AdaptiveBatchSize.Builder builder() {
+        return new AdaptiveBatchSize.Builder();
+    }
+
+    @Getter
+    private final int minSize;
+    @Getter
+    private final int maxSize;
+    @Getter
+    private final int increment;
+    @Getter
+    private final double decreaseFactor;
+    /**
+     * The latency target, in nanoseconds.
+     */
+    @Getter
+    private final long latencyTarget;
+    private int size;
+    private long increases = 0;
+    private long decreases = 0;
+
+    private AdaptiveBatchSize(Builder builder) {
+        if (builder.minSize <= 0 || builder.maxSize < builder.minSize) {
+            throw new IllegalArgumentException("Invalid batch size range: " + builder.minSize + "-" + builder.maxSize);
+        }
+        if (builder.initialSize < builder.minSize || builder.initialSize > builder.maxSize) {
+            throw new IllegalArgumentException("Initial batch size out of range: " + builder.initialSize);
+        }
+        if (builder.increment <= 0 || builder.decreaseFactor <= 0 || builder.decreaseFactor >= 1) {
+            throw new IllegalArgumentException("Invalid batch size steps");
+        }
+        if (builder.latencyTarget <= 0) {
+            throw new IllegalArgumentException("Invalid latency target: " + builder.latencyTarget + "ns");
+        }
+        minSize = builder.minSize;
+        maxSize = builder.maxSize;
+        increment = builder.increment;
+        decreaseFactor = builder.decreaseFactor;
+        latencyTarget = builder.latencyTarget;
+        size = builder.initialSize;
+    }
+
+    /**
+     * @return the number of values to put in the next batch.
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of times the size was increased.
+     */
+    public synchronized long getIncreases() {
+        return increases;
+    }
+
+    /**
+     * @return the number of times the size was decreased.
+     */
+    public synchronized long getDecreases() {
+        return decreases;
+    }
+
+    /**
+     * A batch was sent and the server answered.
+     *
+     * @param values the number of values in the batch
+     * @param result the result, with the time spent by the server
+     * @param nanos the round-trip time of the send
+     */
+    public synchronized void sent(int values, SenderResult result, long nanos) {
+        if (result.isSpooled() || nanos > latencyTarget) {
+            decrease();
+        } else if (values >= size && size < maxSize) {
+            // Only a full batch tells that a bigger one is needed
+            int next = size + increment;
+            if (result.getSpentSeconds() > 0 && values > 0) {
+                double nanosPerValue = result.getSpentSeconds() * 1e9 / values;
+                next = (int) Math.min(next, Math.max(size, latencyTarget / nanosPerValue));
+            }
+            if (next > size) {
+                size = Math.min(next, maxSize);
+                increases++;
+            }
+        }
+    }
+
+    /**
+     * A batch failed, like a timeout.
+     */
+    public synchronized void failed() {
+        decrease();
+    }
+
+    private void decrease() {
+        int next = Math.max(minSize, (int) (size * decreaseFactor));
+        if (next < size) {
+            size = next;
+            decreases++;
+        }
+    }
+
+}
@@ -0,0 +1,275 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * Aggregate numeric values by host and key over a window, and send only the aggregated values when the window ends.
+ * <p>
+ * Recording a value only updates striped accumulators, so it's not contended even when many threads record the same
+ * item. At the end of a window, the accumulators of an item are swapped as a whole, so the aggregated values are
+ * always computed from the same set of values. The aggregated values have the clock of the end of the window. If more than one aggregation is used, the name
+ * of the key is suffixed by the aggregation, so <code>net.if.in[eth0]</code> becomes <code>net.if.in.max[eth0]</code>.
+ * <p>
+ * Items are kept once recorded, an aggregator is meant for a stable set of items.
+ */
+public class Aggregator implements Closeable {
+
+    public enum Aggregation {
+        LAST,
+        MIN,
+        MAX,
+        AVG,
+        SUM,
+        COUNT,
+    }
+
+    @Accessors(fluent = true)
+    public static class Builder {
+        @Setter
+        private ZabbixSender sender;
+        private long window = 60000;
+        private Set<Aggregation> aggregations = EnumSet.of(Aggregation.LAST);
+        @Setter
+        private String name = "ZabbixAggregator";
+
+        public Builder window(long value, TimeUnit unit) {
+            window = TimeUnit.MILLISECONDS.convert(value, unit);
+            if (window <= 0) {
+                throw new IllegalArgumentException("Out of range window: " + window + "ms");
+            }
+            return this;
+        }
+        public Builder aggregations(Aggregation first, Aggregation... others) {
+            aggregations = EnumSet.of(first, others);
+            return this;
+        }
+
+        public Aggregator build() {
+            return new Aggregator(this);
+        }
+    }
+    public static Aggregator.Builder builder() {
+        return new Aggregator.Builder();
+    }
+
+    // The values of an item during one window
+    private static class Cell {
+        // Threads recording in this cell, the flush waits for them once the cell is retired
+        private final LongAdder writers = new LongAdder();
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+        private final DoubleAccumulator min = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+        private final DoubleAccumulator max = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+        private volatile double last;
+    }
+
+    private static class Accumulator {
+        private final String host;
+        private final String key;
+        private final AtomicReference<Cell> current = new AtomicReference<>(new Cell());
+        // Ids in the batch, only used by the flushing thread
+        private int hostId = -1;
+        private int[] keyIds;
+        Accumulator(String host, String key) {
+            this.host = host;
+            this.key = key;
+        }
+        void record(double value) {
+            while (true) {
+                Cell cell = current.get();
+                cell.writers.increment();
+                try {
+                    // The cell was retired by a flush, record in the new one
+                    if (current.get() == cell) {
+                        cell.sum.add(value);
+                        cell.min.accumulate(value);
+                        cell.max.accumulate(value);
+                        cell.last = value;
+                        cell.count.increment();
+                        return;
+                    }
+                } finally {
+                    cell.writers.decrement();
+                }
+            }
+        }
+        /**
+         * @return the cell of the window that ends, once all the values are recorded in it.
+         */
+        Cell retire() {
+            Cell cell = current.getAndSet(new Cell());
+            while (cell.writers.sum() != 0) {
+                Thread.onSpinWait();
+            }
+            return cell;
+        }
+    }
+
+    @Getter
+    private final ZabbixSender sender;
+    @Getter
+    private final long window;
+    @Getter
+    private final Set<Aggregation> aggregations;
+    private final Aggregation[] aggregationList;
+    private final Map<String, Map<String, Accumulator>> series = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final DataBatch batch = new DataBatch();
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private Aggregator(Builder builder) {
+        if (builder.sender == null) {
+            throw new IllegalArgumentException("Missing sender");
+        }
+        sender = builder.sender;
+        window = builder.window;
+        aggregations = Set.copyOf(builder.aggregations);
+        aggregationList = builder.aggregations.toArray(Aggregation[]::new);
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, builder.name);
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleAtFixedRate(this::flush, window, window, TimeUnit.MILLISECONDS);
+    }
+
+    public void record(String host, String key, double value) {
+        series.computeIfAbsent(host, h -> new ConcurrentHashMap<>())
+              .computeIfAbsent(key, k -> new Accumulator(host, k))
+              .record(value);
+    }
+
+    public void record(String host, ItemKey key, double value) {
+        record(host, key.getKey(), value);
+    }
+
+    /**
+     * Record a value, its clock is ignored.
+     * @throws IllegalArgumentException if the value is not a number
+     */
+    public void record(DataObject data) {
+        if (! (data.getValue() instanceof Number)) {
+            throw new IllegalArgumentException("Not a numeric value: " + data.getValue());
+        }
+        record(data.getHost(), data.getKey(), ((Number) data.getValue()).doubleValue());
+    }
+
+    private synchronized void flush() {
+        Instant now = Instant.now();
+        long seconds = now.getEpochSecond();
+        int nanos = now.getNano();
+        batch.clear();
+        for (Map<String, Accumulator> keys: series.values()) {
+            for (Accumulator accumulator: keys.values()) {
+                if (accumulator.current.get().count.sum() == 0) {
+                    continue;
+                }
+                Cell cell = accumulator.retire();
+                long count = cell.count.sum();
+                double sum = cell.sum.sum();
+                double min = cell.min.get();
+                double max = cell.max.get();
+                if (accumulator.hostId < 0) {
+                    register(accumulator);
+                }
+                for (int i = 0; i < aggregationList.length; i++) {
+                    int host = accumulator.hostId;
+                    int key = accumulator.keyIds[i];
+                    switch (aggregationList[i]) {
+                    case LAST:
+                        batch.add(host, key, cell.last, seconds, nanos);
+                        break;
+                    case MIN:
+                        batch.add(host, key, min, seconds, nanos);
+                        break;
+                    case MAX:
+                        batch.add(host, key, max, seconds, nanos);
+                        break;
+                    case AVG:
+                        batch.add(host, key, sum / count, seconds, nanos);
+                        break;
+                    case SUM:
+                        batch.add(host, key, sum, seconds, nanos);
+                        break;
+                    case COUNT:
+                        batch.add(host, key, count, seconds, nanos);
+                        break;
+                    }
+                }
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            sender.send(now, batch);
+            flushed.addAndGet(batch.size());
+        } catch (IOException | RuntimeException ex) {
+            failures.incrementAndGet();
+        }
+    }
+
+    private void register(Accumulator accumulator) {
+        accumulator.hostId = batch.host(accumulator.host);
+        accumulator.keyIds = new int[aggregationList.length];
+        for (int i = 0; i < aggregationList.length; i++) {
+            String key = aggregationList.length == 1 ? accumulator.key : suffix(accumulator.key, aggregationList[i]);
+            accumulator.keyIds[i] = batch.key(key);
+        }
+    }
+
+    private static String suffix(String key, Aggregation aggregation) {
+        String suffix = "." + aggregation.name().toLowerCase(Locale.ROOT);
+        int bracket = key.indexOf('[');
+        return bracket < 0 ? key + suffix : key.substring(0, bracket) + suffix + key.substring(bracket);
+    }
+
+    /**
+     * @return the number of aggregated values sent.
+     */
+    public long getFlushed() {
+        return flushed.get();
+    }
+
+    /**
+     * @return the number of windows that could not be sent.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Send the current window and stop. The sender is not closed.
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(sender.getConnectTimeout() + sender.getSocketTimeout(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+}
@@ -0,0 +1,276 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * A non-blocking front-end to a {@link ZabbixSender}. Values are queued and a background thread sends them in batches,
+ * when a batch reaches its size or byte budget or when the linger time expires.
+ * <p>
+ * Each offered value returns the future result of the batch it was sent with.
+ * <p>
+ * With an {@link AdaptiveBatchSize}, the number of values in each batch follows the latency of the sends instead of
+ * the fixed <code>batchSize</code>.
+ */
+public class AsyncZabbixSender implements Closeable {
+
+    public enum OverflowPolicy {
+        /**
+         * Wait until some space is available in the queue.
+         */
+        BLOCK,
+        /**
+         * Discard the oldest queued value to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Discard the offered value.
+         */
+        DROP_NEWEST,
+    }
+
+    @Accessors(fluent = true)
+    public static class Builder {
+        @Setter
+        private ZabbixSender sender;
+        @Setter
+        private int queueCapacity = 10000;
+        @Setter
+        private int batchSize = 1000;
+        @Setter
+        private long maxBatchBytes = 1024 * 1024;
+        private long linger = 100;
+        @Setter
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        @Setter
+        private String name = "ZabbixSenderFlusher";
+        /**
+         * Choose the batch size from the latency of the sends, <code>batchSize</code> is then ignored.
+         */
+        @Setter
+        private AdaptiveBatchSize adaptiveBatchSize = null;
+
+        public Builder linger(long value, TimeUnit unit) {
+            linger = TimeUnit.MILLISECONDS.convert(value, unit);
+            if (linger < 0) {
+                throw new IllegalArgumentException("Out of range linger: " + linger + "ms");
+            }
+            return this;
+        }
+
+        public AsyncZabbixSender build() {
+            return new AsyncZabbixSender(this);
+        }
+    }
+    public static AsyncZabbixSender.Builder builder() {
+        return new AsyncZabbixSender.Builder();
+    }
+
+    private static class Entry {
+        private final DataObject data;
+        private final int size;
+        private final CompletableFuture<SenderResult> result = new CompletableFuture<>();
+        Entry(DataObject data) {
+            this.data = data;
+            this.size = data.estimateSize();
+        }
+    }
+
+    @Getter
+    private final ZabbixSender sender;
+    @Getter
+    private final int batchSize;
+    @Getter
+    private final long maxBatchBytes;
+    @Getter
+    private final long linger;
+    @Getter
+    private final OverflowPolicy overflowPolicy;
+    @Getter
+    private final AdaptiveBatchSize adaptiveBatchSize;
+    private final BlockingQueue<Entry> queue;
+    private final Thread flusher;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private volatile boolean running = true;
+
+    private AsyncZabbixSender(Builder builder) {
+        if (builder.sender == null) {
+            throw new IllegalArgumentException("Missing sender");
+        }
+        if (builder.batchSize <= 0 || builder.queueCapacity <= 0 || builder.maxBatchBytes <= 0) {
+            throw new IllegalArgumentException("Invalid batch definition");
+        }
+        sender = builder.sender;
+        batchSize = builder.batchSize;
+        maxBatchBytes = builder.maxBatchBytes;
+        linger = builder.linger;
+        overflowPolicy = builder.overflowPolicy;
+        adaptiveBatchSize = builder.adaptiveBatchSize;
+        queue = new ArrayBlockingQueue<>(builder.queueCapacity);
+        flusher = new Thread(this::run, builder.name);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queue a value to be sent. It only blocks if the queue is full and the overflow policy is {@link OverflowPolicy#BLOCK}.
+     * @param data the value to send
+     * @return the result of the batch that contains this value. It fails with a {@link RejectedExecutionException} if the value was dropped.
+     */
+    public CompletableFuture<SenderResult> offer(DataObject data) {
+        Entry entry = new Entry(data);
+        if (! running) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Sender closed"));
+        }
+        switch (overflowPolicy) {
+        case BLOCK:
+            try {
+                while (! queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+                    if (! running) {
+                        return CompletableFuture.failedFuture(new RejectedExecutionException("Sender closed"));
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return CompletableFuture.failedFuture(new RejectedExecutionException("Interrupted", ex));
+            }
+            break;
+        case DROP_NEWEST:
+            if (! queue.offer(entry)) {
+                dropped.incrementAndGet();
+                return CompletableFuture.failedFuture(new RejectedExecutionException("Queue full"));
+            }
+            break;
+        case DROP_OLDEST:
+            while (! queue.offer(entry)) {
+                Entry oldest = queue.poll();
+                if (oldest != null) {
+                    dropped.incrementAndGet();
+                    oldest.result.completeExceptionally(new RejectedExecutionException("Queue full"));
+                }
+            }
+            break;
+        }
+        return entry.result;
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>(getCurrentBatchSize());
+        Entry pending = null;
+        while (running || pending != null || ! queue.isEmpty()) {
+            try {
+                Entry first = pending != null ? pending : queue.poll(100, TimeUnit.MILLISECONDS);
+                pending = null;
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long bytes = first.size;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+                int limit = getCurrentBatchSize();
+                while (batch.size() < limit) {
+                    long remaining = deadline - System.nanoTime();
+                    Entry next = running && remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    } else if (bytes + next.size > maxBatchBytes) {
+                        pending = next;
+                        break;
+                    } else {
+                        batch.add(next);
+                        bytes += next.size;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // Flush what is available and then check if still running
+            }
+            if (! batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Entry> batch) {
+        DataObject[] values = new DataObject[batch.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = batch.get(i).data;
+        }
+        batches.incrementAndGet();
+        // The time spent waiting for the rate or connection limits is not a latency of the server
+        long[] latency = new long[1];
+        try {
+            SenderResult result = sender.send(Instant.now(), values, l -> latency[0] = l);
+            if (adaptiveBatchSize != null) {
+                adaptiveBatchSize.sent(values.length, result, latency[0]);
+            }
+            batch.forEach(e -> e.result.complete(result));
+        } catch (IOException | RuntimeException ex) {
+            if (adaptiveBatchSize != null) {
+                adaptiveBatchSize.failed();
+            }
+            batch.forEach(e -> e.result.completeExceptionally(ex));
+        }
+    }
+
+    /**
+     * @return the number of values waiting to be sent.
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return the maximum number of values in the next batch, chosen by the {@link AdaptiveBatchSize} if there is one.
+     */
+    public int getCurrentBatchSize() {
+        return adaptiveBatchSize != null ? adaptiveBatchSize.getSize() : batchSize;
+    }
+
+    /**
+     * @return the number of values discarded by the overflow policy.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of batches sent.
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Stop accepting new values, wait for the queued values to be sent. The wrapped sender is not closed.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        // Values offered while closing
+        Entry late;
+        while ((late = queue.poll()) != null) {
+            late.result.completeExceptionally(new RejectedExecutionException("Sender closed"));
+        }
+    }
+
+}
@@ -0,0 +1,287 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.loghub.zabbix.ConnectionClosedException;
+import fr.loghub.zabbix.ZabbixConnection;
+
+/**
+ * A pool of Zabbix connections, kept open between exchanges.
+ * <p>
+ * Most Zabbix servers close the connection after each response, a connection is only reused if it's still open when
+ * borrowed. If a reused connection fails before the peer could have received the request, because the write failed or
+ * the connection was closed or reset before any response, the exchange is retried once on a fresh connection. Other
+ * failures, like a read timeout, are never retried, as the values might have been stored.
+ */
+class ConnectionPool implements Closeable {
+
+    @FunctionalInterface
+    interface Connector {
+        ZabbixConnection connect() throws IOException;
+    }
+
+    private class PooledConnection implements ZabbixConnection {
+        private final ZabbixConnection protocol;
+        private long lastUsed;
+        private int requests;
+        // The request was fully written during the last exchange
+        private boolean written;
+        PooledConnection(ZabbixConnection protocol) {
+            this.protocol = protocol;
+            this.lastUsed = System.nanoTime();
+            this.requests = 0;
+        }
+        byte[] exchange(byte[] buffer, int offset, int length) throws IOException {
+            written = false;
+            send(buffer, offset, length);
+            written = true;
+            return read();
+        }
+        @Override
+        public void send(byte[] buffer, int offset, int length) throws IOException {
+            requests++;
+            protocol.send(buffer, offset, length);
+        }
+        @Override
+        public byte[] read() throws IOException {
+            byte[] response = protocol.read();
+            lastUsed = System.nanoTime();
+            return response;
+        }
+        @Override
+        public boolean isOpen() {
+            return protocol.isOpen();
+        }
+        @Override
+        public boolean isAlive() {
+            return protocol.isAlive();
+        }
+        boolean isReusable(long now) {
+            return protocol.isOpen()
+                   && (maxRequests <= 0 || requests < maxRequests)
+                   && (now - lastUsed) < idleTimeout;
+        }
+        @Override
+        public void close() {
+            try {
+                protocol.close();
+            } catch (IOException ex) {
+                // Nothing to do, it's discarded anyway
+            }
+        }
+    }
+
+    private final Connector connector;
+    private final int maxConnections;
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle;
+    private final long idleTimeout;
+    private final int maxRequests;
+    private final boolean testOnBorrow;
+    private final long borrowTimeout;
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private volatile boolean closed = false;
+
+    ConnectionPool(Connector connector, int maxConnections, long idleTimeout, int maxRequests, boolean testOnBorrow, long borrowTimeout) {
+        this.connector = connector;
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections, true);
+        this.idle = new ArrayDeque<>(maxConnections);
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        this.maxRequests = maxRequests;
+        this.testOnBorrow = testOnBorrow;
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    /**
+     * @throws RequestNotSentException if the exchange failed before the request was fully written
+     */
+    byte[] exchange(byte[] buffer, int offset, int length) throws IOException {
+        try {
+            acquire();
+        } catch (IOException ex) {
+            throw new RequestNotSentException(ex);
+        }
+        try {
+            PooledConnection connection = pollIdle();
+            boolean reused = connection != null;
+            if (! reused) {
+                connection = create();
+            }
+            IOException failure;
+            try {
+                byte[] response = connection.exchange(buffer, offset, length);
+                release(connection);
+                return response;
+            } catch (IOException ex) {
+                evict(connection);
+                if (! reused || ! isRetryable(connection, ex)) {
+                    throw notSent(connection, ex);
+                }
+                failure = ex;
+            }
+            // The peer closed the reused connection, try again with a new one
+            try {
+                connection = create();
+            } catch (IOException ex) {
+                ex.addSuppressed(failure);
+                throw ex;
+            }
+            try {
+                byte[] response = connection.exchange(buffer, offset, length);
+                release(connection);
+                return response;
+            } catch (IOException ex) {
+                evict(connection);
+                IOException thrown = notSent(connection, ex);
+                thrown.addSuppressed(failure);
+                throw thrown;
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Borrow a connection for many exchanges, like the requests of a pipelined session. It must be given back with
+     * {@link #giveBack(ZabbixConnection, boolean)}.
+     */
+    ZabbixConnection borrow() throws IOException {
+        acquire();
+        try {
+            PooledConnection connection = pollIdle();
+            return connection != null ? connection : create();
+        } catch (IOException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * @param reusable false if the connection failed, it's evicted
+     */
+    void giveBack(ZabbixConnection connection, boolean reusable) {
+        try {
+            if (reusable) {
+                release((PooledConnection) connection);
+            } else {
+                evict((PooledConnection) connection);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static IOException notSent(PooledConnection connection, IOException ex) {
+        return connection.written ? ex : new RequestNotSentException(ex);
+    }
+
+    /**
+     * A failure is retried only if the peer can't have processed the request.
+     */
+    private static boolean isRetryable(PooledConnection connection, IOException ex) {
+        if (ex instanceof SocketTimeoutException) {
+            return false;
+        } else {
+            return ! connection.written || ex instanceof ConnectionClosedException;
+        }
+    }
+
+    private void acquire() throws IOException {
+        if (closed) {
+            throw new IOException("Connection pool closed");
+        }
+        try {
+            if (! permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Connection pool exhausted");
+            }
+            borrowed.incrementAndGet();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection", ex);
+        }
+    }
+
+    private PooledConnection pollIdle() {
+        long now = System.nanoTime();
+        while (true) {
+            PooledConnection connection;
+            synchronized (idle) {
+                connection = idle.pollFirst();
+            }
+            if (connection == null) {
+                return null;
+            } else if (connection.isReusable(now) && (! testOnBorrow || connection.protocol.isAlive())) {
+                return connection;
+            } else {
+                evict(connection);
+            }
+        }
+    }
+
+    private PooledConnection create() throws IOException {
+        PooledConnection connection;
+        try {
+            connection = new PooledConnection(connector.connect());
+        } catch (IOException ex) {
+            throw new RequestNotSentException(ex);
+        }
+        created.incrementAndGet();
+        return connection;
+    }
+
+    private void release(PooledConnection connection) {
+        if (! closed && connection.isReusable(connection.lastUsed)) {
+            synchronized (idle) {
+                idle.offerFirst(connection);
+            }
+        } else {
+            evict(connection);
+        }
+    }
+
+    private void evict(PooledConnection connection) {
+        evicted.incrementAndGet();
+        connection.close();
+    }
+
+    PoolStatistics getStatistics() {
+        int idleCount;
+        synchronized (idle) {
+            idleCount = idle.size();
+        }
+        return PoolStatistics.builder()
+                             .borrowed(borrowed.get())
+                             .active(maxConnections - permits.availablePermits())
+                             .idle(idleCount)
+                             .created(created.get())
+                             .evicted(evicted.get())
+                             .build();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        while (true) {
+            PooledConnection connection;
+            synchronized (idle) {
+                connection = idle.pollFirst();
+            }
+            if (connection == null) {
+                break;
+            } else {
+                evict(connection);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package fr.loghub.zabbix.sender;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of numeric values, stored in columns of primitive values. Adding a value allocates nothing, so it's suited
+ * to send many samples with {@link ZabbixSender#send(DataBatch)}.
+ * <p>
+ * Hosts and keys are registered once and then given by their id. They are kept when the batch is cleared, so a batch
+ * can be reused for each send. A batch is not thread safe.
+ */
+public class DataBatch {
+
+    // Encoded once, as JSON strings
+    private final List<byte[]> hostNames = new ArrayList<>();
+    private final Map<String, Integer> hostIds = new HashMap<>();
+    private final List<byte[]> keyNames = new ArrayList<>();
+    private final Map<String, Integer> keyIds = new HashMap<>();
+    private final JsonEncoder nameEncoder = new JsonEncoder(64, null);
+
+    private int size = 0;
+    private int[] hosts;
+    private int[] keys;
+    private long[] values;
+    private boolean[] doubles;
+    private long[] seconds;
+    private int[] nanos;
+
+    public DataBatch() {
+        this(64);
+    }
+
+    public DataBatch(int initialCapacity) {
+        hosts = new int[initialCapacity];
+        keys = new int[initialCapacity];
+        values = new long[initialCapacity];
+        doubles = new boolean[initialCapacity];
+        seconds = new long[initialCapacity];
+        nanos = new int[initialCapacity];
+    }
+
+    /**
+     * @return the id of a host, registering it if needed.
+     */
+    public int host(String name) {
+        return register(name, hostIds, hostNames);
+    }
+
+    /**
+     * @return the id of a key, registering it if needed. It's formatted like {@link DataObject.Builder#key(String, Object...)}.
+     */
+    public int key(String name, Object... elements) {
+        if (elements.length == 0) {
+            return register(name, keyIds, keyNames);
+        } else {
+            return key(ItemKey.of(name, elements));
+        }
+    }
+
+    public int key(ItemKey key) {
+        Integer id = keyIds.get(key.getKey());
+        if (id == null) {
+            id = keyNames.size();
+            keyNames.add(key.getJson());
+            keyIds.put(key.getKey(), id);
+        }
+        return id;
+    }
+
+    private int register(String name, Map<String, Integer> ids, List<byte[]> names) {
+        if (name == null) {
+            throw new IllegalArgumentException("Missing name");
+        }
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            nameEncoder.reset().writeString(name);
+            names.add(nameEncoder.toByteArray());
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    public DataBatch add(int host, int key, long value, long epochSecond, int nano) {
+        int i = next(host, key, epochSecond, nano);
+        values[i] = value;
+        doubles[i] = false;
+        return this;
+    }
+
+    public DataBatch add(int host, int key, double value, long epochSecond, int nano) {
+        int i = next(host, key, epochSecond, nano);
+        values[i] = Double.doubleToRawLongBits(value);
+        doubles[i] = true;
+        return this;
+    }
+
+    public DataBatch add(String host, String key, long value, Instant clock) {
+        return add(host(host), key(key), value, clock.getEpochSecond(), clock.getNano());
+    }
+
+    public DataBatch add(String host, String key, double value, Instant clock) {
+        return add(host(host), key(key), value, clock.getEpochSecond(), clock.getNano());
+    }
+
+    private int next(int host, int key, long epochSecond, int nano) {
+        if (host < 0 || host >= hostNames.size() || key < 0 || key >= keyNames.size()) {
+            throw new IllegalArgumentException("Unknown host or key id");
+        }
+        if (size == hosts.length) {
+            int capacity = Math.max(16, size * 2);
+            hosts = Arrays.copyOf(hosts, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+            doubles = Arrays.copyOf(doubles, capacity);
+            seconds = Arrays.copyOf(seconds, capacity);
+            nanos = Arrays.copyOf(nanos, capacity);
+        }
+        hosts[size] = host;
+        keys[size] = key;
+        seconds[size] = epochSecond;
+        nanos[size] = nano;
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Remove the values, the registered hosts and keys are kept.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    void encode(JsonEncoder encoder, int i) {
+        encoder.writeRaw(JsonEncoder.HOST);
+        encoder.writeRaw(hostNames.get(hosts[i]));
+        encoder.writeRaw(JsonEncoder.KEY);
+        encoder.writeRaw(keyNames.get(keys[i]));
+        encoder.writeRaw(JsonEncoder.VALUE);
+        if (doubles[i]) {
+            encoder.writeDouble(Double.longBitsToDouble(values[i]));
+        } else {
+            encoder.writeLong(values[i]);
+        }
+        encoder.writeRaw(JsonEncoder.CLOCK);
+        encoder.writeLong(seconds[i]);
+        encoder.writeRaw(JsonEncoder.NS);
+        encoder.writeLong(nanos[i]);
+        encoder.writeByte('}');
+    }
+
+}
@@ -1,15 +1,16 @@
 package fr.loghub.zabbix.sender;
 
 import java.time.Instant;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.Setter;
+import lombok.ToString;
 import lombok.experimental.Accessors;
 
 @Data
@@ -21,38 +22,46 @@ public class DataObject {
         private Instant clock = Instant.now();
         @Setter
         private String host;
-        private  String key;
+        private String key;
+        private ItemKey itemKey;
         @Setter
         private Object value;
         private Builder() {
         }
+        /**
+         * Without parameters, the name is used as is, so it can be an already formatted key. With parameters, the key is
+         * built by {@link ItemKey#of(String, Object...)}, so the name must be a valid Zabbix key name and the parameters
+         * are quoted when needed.
+         */
         public Builder key(String name, Object... elements) {
             if (elements.length == 0) {
-                return keyResolver(name, null);
+                if (name == null || name.isBlank()) {
+                    throw new IllegalArgumentException("Invalid key definition");
+                }
+                key = name;
+                itemKey = null;
+                return this;
             } else {
-                return keyResolver(name, Arrays.stream(elements));
+                return keyResolver(name, elements);
             }
         }
         public Builder key(String name, List<?> elements) {
-            return keyResolver(name, elements.stream());
+            return keyResolver(name, elements.toArray());
         }
         public Builder key(String name, Stream<?> elements) {
-            return keyResolver(name, elements);
+            return keyResolver(name, elements.toArray());
         }
-        private Builder keyResolver(String name, Stream<?> elements) {
-            if (name == null || name.isBlank()) {
+        public Builder key(ItemKey key) {
+            this.key = key.getKey();
+            this.itemKey = key;
+            return this;
+        }
+        private Builder keyResolver(String name, Object[] elements) {
+            // A key with only an empty parameter, like name[], is refused
+            if (elements.length == 0 || (elements.length == 1 && (elements[0] == null || elements[0].toString().isBlank()))) {
                 throw new IllegalArgumentException("Invalid key definition");
-            } else if (elements == null) {
-                key = name;
-            } else {
-                String values = elements.map(Object::toString).collect(Collectors.joining(","));
-                if (values.isBlank()) {
-                    throw new IllegalArgumentException("Invalid key definition");
-                } else {
-                    key = String.format("%s[%s]", name, values);
-                }
             }
-            return this;
+            return key(ItemKey.of(name, elements));
         }
         public DataObject build() {
             return new DataObject(this);
@@ -70,12 +79,24 @@ public class DataObject {
     private final String key;
     @Getter
     private final Object value;
+    // Only if the key was built from parameters
+    @Getter(AccessLevel.PACKAGE) @EqualsAndHashCode.Exclude @ToString.Exclude
+    private final ItemKey itemKey;
 
     private DataObject(Builder builder) {
         clock = builder.clock;
         host = builder.host;
         key = builder.key;
         value = builder.value;
+        itemKey = builder.itemKey;
+    }
+
+    /**
+     * An estimation of the size of the JSON serialization of this object, used to size batches.
+     */
+    int estimateSize() {
+        // {"host":"","key":"","value":"","clock":,"ns":} is 46 bytes, plus 10 digits for the clock and 9 for ns
+        return 65 + (host != null ? host.length() : 4) + (key != null ? key.length() : 4) + String.valueOf(value).length();
     }
 
     public Object getJsonObject() {
@@ -0,0 +1,85 @@
+package fr.loghub.zabbix.sender;
+
+/**
+ * Receive the events of the send path of a {@link ZabbixSender}, to know where the time is spent. All the methods do
+ * nothing by default, they are called from the sending threads, so they must be fast and thread safe.
+ * <p>
+ * {@link SenderMetrics} is an implementation that keeps histograms and can be exposed with JMX.
+ */
+public interface Instrumentation {
+
+    enum Phase {
+        /**
+         * Waiting for a rate limit or a connection limit of the sender.
+         */
+        THROTTLE,
+        /**
+         * Opening the TCP connection.
+         */
+        CONNECT,
+        /**
+         * The TLS handshake.
+         */
+        HANDSHAKE,
+        /**
+         * Encoding the request in JSON.
+         */
+        SERIALIZE,
+        /**
+         * Writing the request, including compression.
+         */
+        WRITE,
+        /**
+         * Waiting for and reading the response, it includes the processing time of the server.
+         */
+        READ,
+        /**
+         * Parsing the response.
+         */
+        PARSE,
+    }
+
+    Instrumentation NONE = new Instrumentation() { };
+
+    /**
+     * @param phase the phase that ended successfully
+     * @param nanos its duration
+     */
+    default void phase(Phase phase, long nanos) {
+        // Nothing done
+    }
+
+    /**
+     * @param bytes the size of a request body, before compression
+     */
+    default void written(long bytes) {
+        // Nothing done
+    }
+
+    /**
+     * @param bytes the size of a response body, after decompression
+     */
+    default void read(long bytes) {
+        // Nothing done
+    }
+
+    /**
+     * @param phase the phase that failed
+     * @param failure the cause
+     */
+    default void failed(Phase phase, Throwable failure) {
+        // Nothing done
+    }
+
+    /**
+     * A send is done, the server answered.
+     *
+     * @param values the number of values sent
+     * @param result the result, with the time spent by the server
+     * @param nanos the duration of the whole send
+     */
+    default void sent(int values, SenderResult result, long nanos) {
+        // Nothing done
+    }
+
+}
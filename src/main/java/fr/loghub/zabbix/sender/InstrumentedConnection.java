@@ -0,0 +1,64 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.IOException;
+
+import fr.loghub.zabbix.ZabbixConnection;
+import fr.loghub.zabbix.sender.Instrumentation.Phase;
+
+/**
+ * A connection that reports the duration of writes and reads to an {@link Instrumentation}.
+ */
+class InstrumentedConnection implements ZabbixConnection {
+
+    private final ZabbixConnection connection;
+    private final Instrumentation instrumentation;
+
+    InstrumentedConnection(ZabbixConnection connection, Instrumentation instrumentation) {
+        this.connection = connection;
+        this.instrumentation = instrumentation;
+    }
+
+    @Override
+    public void send(byte[] buffer, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        try {
+            connection.send(buffer, offset, length);
+        } catch (IOException | RuntimeException ex) {
+            instrumentation.failed(Phase.WRITE, ex);
+            throw ex;
+        }
+        instrumentation.phase(Phase.WRITE, System.nanoTime() - start);
+        instrumentation.written(length);
+    }
+
+    @Override
+    public byte[] read() throws IOException {
+        long start = System.nanoTime();
+        byte[] response;
+        try {
+            response = connection.read();
+        } catch (IOException | RuntimeException ex) {
+            instrumentation.failed(Phase.READ, ex);
+            throw ex;
+        }
+        instrumentation.phase(Phase.READ, System.nanoTime() - start);
+        instrumentation.read(response.length);
+        return response;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return connection.isOpen();
+    }
+
+    @Override
+    public boolean isAlive() {
+        return connection.isAlive();
+    }
+
+    @Override
+    public void close() throws IOException {
+        connection.close();
+    }
+
+}
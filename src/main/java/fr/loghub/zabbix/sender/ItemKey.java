@@ -0,0 +1,177 @@
+package fr.loghub.zabbix.sender;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * An item key, made of a name and optional parameters. It's formatted, validated and encoded once, and instances
+ * are cached, so a key used again costs only the formatting of its parameters and a lookup.
+ * <p>
+ * Parameters are quoted when Zabbix requires it: if they contain a comma or a right square bracket, or start with a
+ * double quote, a left square bracket or a space. A quoted parameter can't end with a backslash.
+ */
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
+public final class ItemKey {
+
+    private static final Pattern NAME = Pattern.compile("[0-9A-Za-z_.\\-]+");
+
+    // Evicted with the CLOCK algorithm: a hit only marks the key, without locking, and a single thread sweeps the cache
+    // when it's full, evicting the keys not used since the previous sweep, so hot keys stay cached
+    static final int MAX_CACHED = 10000;
+    private static final int SWEPT_SIZE = MAX_CACHED - MAX_CACHED / 10;
+    private static final Map<Lookup, ItemKey> CACHE = new ConcurrentHashMap<>(256);
+    private static final AtomicBoolean SWEEPING = new AtomicBoolean(false);
+
+    // Keyed by the formatted parameters, a mutable parameter can't make a cached key stale
+    private static class Lookup {
+        private final String name;
+        private final String[] parameters;
+        private final int hash;
+        Lookup(String name, String[] parameters) {
+            this.name = name;
+            this.parameters = parameters;
+            this.hash = 31 * name.hashCode() + Arrays.hashCode(parameters);
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (! (o instanceof Lookup)) {
+                return false;
+            }
+            Lookup other = (Lookup) o;
+            return hash == other.hash && name.equals(other.name) && Arrays.equals(parameters, other.parameters);
+        }
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    @Getter
+    private final String name;
+    @Getter
+    private final List<String> parameters;
+    @Getter @EqualsAndHashCode.Include
+    private final String key;
+    // The key as a JSON string, encoded in UTF-8
+    private final byte[] json;
+    // Used since the previous sweep of the cache
+    private volatile boolean referenced = false;
+
+    private ItemKey(String name, String[] parameters) {
+        if (! NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid key definition");
+        }
+        this.name = name;
+        if (parameters.length == 0) {
+            this.parameters = List.of();
+            this.key = name;
+        } else {
+            StringBuilder buffer = new StringBuilder(name).append('[');
+            for (int i = 0; i < parameters.length; i++) {
+                if (i > 0) {
+                    buffer.append(',');
+                }
+                quote(parameters[i], buffer);
+            }
+            this.parameters = List.of(parameters);
+            this.key = buffer.append(']').toString();
+        }
+        JsonEncoder encoder = new JsonEncoder(key.length() + 2, null);
+        encoder.writeString(key);
+        this.json = encoder.toByteArray();
+    }
+
+    private static void quote(String value, StringBuilder buffer) {
+        boolean quoted = value.indexOf(',') >= 0 || value.indexOf(']') >= 0
+                         || (! value.isEmpty() && (value.charAt(0) == '"' || value.charAt(0) == '[' || value.charAt(0) == ' '));
+        if (! quoted) {
+            buffer.append(value);
+        } else if (value.endsWith("\\")) {
+            throw new IllegalArgumentException("Invalid key parameter, it ends with a backslash: " + value);
+        } else {
+            buffer.append('"').append(value.replace("\"", "\\\"")).append('"');
+        }
+    }
+
+    /**
+     * Get an item key, from the cache if it was already used.
+     * @param name the key name, made of alphanumeric characters, underscores, dots and dashes
+     * @param parameters the parameters, converted using <code>toString()</code>
+     * @throws IllegalArgumentException if the name is invalid or a parameter can't be quoted
+     */
+    public static ItemKey of(String name, Object... parameters) {
+        if (name == null) {
+            throw new IllegalArgumentException("Invalid key definition");
+        }
+        String[] values = new String[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            values[i] = parameters[i] == null ? "" : parameters[i].toString();
+        }
+        Lookup lookup = new Lookup(name, values);
+        ItemKey key = CACHE.get(lookup);
+        if (key != null) {
+            // Only written when needed, a hot key is read by many threads
+            if (! key.referenced) {
+                key.referenced = true;
+            }
+            return key;
+        }
+        ItemKey created = new ItemKey(name, values);
+        key = CACHE.putIfAbsent(lookup, created);
+        if (key == null) {
+            if (CACHE.size() > MAX_CACHED) {
+                sweep();
+            }
+            return created;
+        } else {
+            return key;
+        }
+    }
+
+    /**
+     * Evict the keys not used since the previous sweep, down to 90% of the maximum size. Other threads don't wait for
+     * the sweep, so the cache can be slightly over its size for a while.
+     */
+    private static void sweep() {
+        while (CACHE.size() > MAX_CACHED && SWEEPING.compareAndSet(false, true)) {
+            try {
+                // A second pass if all the keys were used
+                for (int pass = 0; pass < 2 && CACHE.size() > SWEPT_SIZE; pass++) {
+                    Iterator<ItemKey> i = CACHE.values().iterator();
+                    while (i.hasNext() && CACHE.size() > SWEPT_SIZE) {
+                        ItemKey key = i.next();
+                        if (key.referenced) {
+                            key.referenced = false;
+                        } else {
+                            i.remove();
+                        }
+                    }
+                }
+            } finally {
+                SWEEPING.set(false);
+            }
+        }
+    }
+
+    static int cached() {
+        return CACHE.size();
+    }
+
+    byte[] getJson() {
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+
+}
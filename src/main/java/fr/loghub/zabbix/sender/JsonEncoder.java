@@ -0,0 +1,448 @@
+package fr.loghub.zabbix.sender;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import fr.loghub.zabbix.ZabbixProtocol;
+
+/**
+ * A JSON encoder specialised for Zabbix requests. It writes UTF-8 directly in a reusable buffer, the first
+ * {@link ZabbixProtocol#HEADER_SIZE} bytes are left free for the header.
+ * <p>
+ * Values that are not strings, numbers, booleans, maps, collections or arrays are serialized using a fallback function
+ * that must return a JSON fragment, or as a JSON string of their <code>toString()</code>.
+ */
+class JsonEncoder {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DOT_ZERO = ".0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REQUEST_START = "{\"request\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DATA_START = ",\"data\":[".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DATA_END = "],\"clock\":".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] HOST = "{\"host\":".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] KEY = ",\"key\":".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] VALUE = ",\"value\":".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] CLOCK = ",\"clock\":".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] NS = ",\"ns\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ID = ",\"id\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AGENT_HOST = ",\"host\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HOST_METADATA = ",\"host_metadata\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SESSION = ",\"session\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONFIG_REVISION = ",\"config_revision\":".getBytes(StandardCharsets.US_ASCII);
+
+    // Buffers bigger than that are not kept after a request
+    private static final int MAX_RETAINED = 1024 * 1024;
+
+    private final int initialCapacity;
+    private final Function<Object, String> fallback;
+    private byte[] buffer;
+    private int position;
+
+    JsonEncoder(int initialCapacity, Function<Object, String> fallback) {
+        this.initialCapacity = initialCapacity;
+        this.fallback = fallback;
+        this.buffer = new byte[ZabbixProtocol.HEADER_SIZE + initialCapacity];
+        this.position = ZabbixProtocol.HEADER_SIZE;
+    }
+
+    JsonEncoder reset() {
+        if (buffer.length > ZabbixProtocol.HEADER_SIZE + MAX_RETAINED) {
+            buffer = new byte[ZabbixProtocol.HEADER_SIZE + initialCapacity];
+        }
+        position = ZabbixProtocol.HEADER_SIZE;
+        return this;
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int getOffset() {
+        return ZabbixProtocol.HEADER_SIZE;
+    }
+
+    int getLength() {
+        return position - ZabbixProtocol.HEADER_SIZE;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOfRange(buffer, ZabbixProtocol.HEADER_SIZE, position);
+    }
+
+    JsonEncoder encode(SenderRequest request) {
+        writeRaw(REQUEST_START);
+        writeString(request.getRequest());
+        writeRaw(DATA_START);
+        List<DataObject> data = request.getData();
+        for (int i = 0; i < data.size(); i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            encode(data.get(i));
+        }
+        writeRaw(DATA_END);
+        writeLong(request.getClock().getEpochSecond());
+        writeRaw(NS);
+        writeLong(request.getClock().getNano());
+        writeByte('}');
+        return this;
+    }
+
+    JsonEncoder encode(DataBatch batch, Instant clock) {
+        writeRaw(REQUEST_START);
+        writeString("sender data");
+        writeRaw(DATA_START);
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            batch.encode(this, i);
+        }
+        writeRaw(DATA_END);
+        writeLong(clock.getEpochSecond());
+        writeRaw(NS);
+        writeLong(clock.getNano());
+        writeByte('}');
+        return this;
+    }
+
+    JsonEncoder encode(PreparedBatch batch, Instant clock) {
+        byte[] clockSuffix = batch.clockSuffix(clock);
+        writeRaw(REQUEST_START);
+        writeString("sender data");
+        writeRaw(DATA_START);
+        batch.encode(this, clockSuffix);
+        writeRaw(DATA_END);
+        writeRaw(clockSuffix, CLOCK.length, clockSuffix.length - CLOCK.length);
+        return this;
+    }
+
+    /**
+     * An <code>active checks</code> request, to get the items of a host.
+     *
+     * @param revision the last configuration revision received, or -1 if none
+     */
+    JsonEncoder encodeActiveChecks(String host, String hostMetadata, String session, long revision) {
+        writeRaw(REQUEST_START);
+        writeString("active checks");
+        writeRaw(AGENT_HOST);
+        writeString(host);
+        if (hostMetadata != null) {
+            writeRaw(HOST_METADATA);
+            writeString(hostMetadata);
+        }
+        writeRaw(SESSION);
+        writeString(session);
+        if (revision >= 0) {
+            writeRaw(CONFIG_REVISION);
+            writeLong(revision);
+        }
+        writeByte('}');
+        return this;
+    }
+
+    /**
+     * An <code>agent data</code> request. Each value gets an id, starting from <code>firstId</code>, the server skips
+     * the ids of a session that it already received. Values without a host get the given one.
+     */
+    JsonEncoder encodeAgentData(String session, String host, List<DataObject> data, long firstId, Instant clock) {
+        writeRaw(REQUEST_START);
+        writeString("agent data");
+        writeRaw(SESSION);
+        writeString(session);
+        writeRaw(DATA_START);
+        for (int i = 0; i < data.size(); i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            DataObject value = data.get(i);
+            encodeFields(value, value.getHost() != null ? value.getHost() : host);
+            writeRaw(ID);
+            writeLong(firstId + i);
+            writeByte('}');
+        }
+        writeRaw(DATA_END);
+        writeLong(clock.getEpochSecond());
+        writeRaw(NS);
+        writeLong(clock.getNano());
+        writeByte('}');
+        return this;
+    }
+
+    JsonEncoder encode(DataObject data) {
+        encodeFields(data, data.getHost());
+        writeByte('}');
+        return this;
+    }
+
+    /**
+     * Write a value, without the closing brace.
+     */
+    private void encodeFields(DataObject data, String host) {
+        writeRaw(HOST);
+        writeString(host);
+        writeRaw(KEY);
+        if (data.getItemKey() != null) {
+            writeRaw(data.getItemKey().getJson());
+        } else {
+            writeString(data.getKey());
+        }
+        writeRaw(VALUE);
+        writeValue(data.getValue());
+        writeRaw(CLOCK);
+        writeLong(data.getClock().getEpochSecond());
+        writeRaw(NS);
+        writeLong(data.getClock().getNano());
+    }
+
+    /**
+     * Copy an encoded request, replacing its clock. The values keep their own clock.
+     */
+    JsonEncoder restamp(byte[] request, Instant clock) {
+        int end = lastIndexOf(request, DATA_END);
+        if (end < 0) {
+            writeRaw(request);
+        } else {
+            writeRaw(request, 0, end);
+            writeRaw(DATA_END);
+            writeLong(clock.getEpochSecond());
+            writeRaw(NS);
+            writeLong(clock.getNano());
+            writeByte('}');
+        }
+        return this;
+    }
+
+    private static int lastIndexOf(byte[] buffer, byte[] pattern) {
+        for (int i = buffer.length - pattern.length; i >= 0; i--) {
+            if (Arrays.equals(buffer, i, i + pattern.length, pattern, 0, pattern.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    void writeValue(Object value) {
+        if (value == null) {
+            writeRaw(NULL);
+        } else if (value instanceof CharSequence) {
+            writeString((CharSequence) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof Double) {
+            writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            writeFloat((Float) value);
+        } else if (value instanceof BigInteger || value instanceof BigDecimal) {
+            writeAscii(value.toString());
+        } else if (value instanceof Boolean) {
+            writeRaw((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Map) {
+            writeByte('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> e: ((Map<?, ?>) value).entrySet()) {
+                if (! first) {
+                    writeByte(',');
+                }
+                first = false;
+                writeString(String.valueOf(e.getKey()));
+                writeByte(':');
+                writeValue(e.getValue());
+            }
+            writeByte('}');
+        } else if (value instanceof Iterable) {
+            writeByte('[');
+            boolean first = true;
+            for (Object o: (Iterable<?>) value) {
+                if (! first) {
+                    writeByte(',');
+                }
+                first = false;
+                writeValue(o);
+            }
+            writeByte(']');
+        } else if (value.getClass().isArray()) {
+            writeByte('[');
+            int length = Array.getLength(value);
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    writeByte(',');
+                }
+                writeValue(Array.get(value, i));
+            }
+            writeByte(']');
+        } else if (fallback != null) {
+            writeUtf8(fallback.apply(value));
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    void writeDouble(double value) {
+        if (Double.isFinite(value)) {
+            if (value == (long) value && Math.abs(value) < 1e15) {
+                writeLong((long) value);
+                writeRaw(DOT_ZERO);
+            } else {
+                writeAscii(Double.toString(value));
+            }
+        } else {
+            // NaN and infinity are not valid JSON numbers
+            writeString(Double.toString(value));
+        }
+    }
+
+    void writeFloat(float value) {
+        if (Float.isFinite(value)) {
+            writeAscii(Float.toString(value));
+        } else {
+            writeString(Float.toString(value));
+        }
+    }
+
+    void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeRaw(MIN_LONG);
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        int end = position + digits;
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        position = end;
+    }
+
+    void writeString(CharSequence value) {
+        if (value == null) {
+            writeRaw(NULL);
+            return;
+        }
+        int length = value.length();
+        writeByte('"');
+        int i = 0;
+        while (i < length) {
+            i = writeChars(value, i, Math.min(length, i + 4096));
+        }
+        writeByte('"');
+    }
+
+    /**
+     * Write a chunk of a string, the buffer is resized only once for the chunk.
+     * @return the index of the next character to write, it might be after <code>end</code> for a surrogate pair.
+     */
+    private int writeChars(CharSequence value, int start, int end) {
+        // Worst case is 6 bytes for an escaped control character
+        ensure((end - start) * 6);
+        byte[] b = buffer;
+        int p = position;
+        int i;
+        for (i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                b[p++] = (byte) c;
+            } else if (c == '"' || c == '\\') {
+                b[p++] = '\\';
+                b[p++] = (byte) c;
+            } else if (c < 0x20) {
+                b[p++] = '\\';
+                switch (c) {
+                case '\n':
+                    b[p++] = 'n';
+                    break;
+                case '\r':
+                    b[p++] = 'r';
+                    break;
+                case '\t':
+                    b[p++] = 't';
+                    break;
+                default:
+                    b[p++] = 'u';
+                    b[p++] = '0';
+                    b[p++] = '0';
+                    b[p++] = HEX[c >> 4];
+                    b[p++] = HEX[c & 0xF];
+                }
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xC0 | (c >> 6));
+                b[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                b[p++] = (byte) (0xF0 | (cp >> 18));
+                b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                b[p++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Same replacement as String.getBytes
+                b[p++] = '?';
+            } else {
+                b[p++] = (byte) (0xE0 | (c >> 12));
+                b[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                b[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        position = p;
+        return i;
+    }
+
+    void writeRaw(byte[] bytes) {
+        writeRaw(bytes, 0, bytes.length);
+    }
+
+    void writeRaw(byte[] bytes, int offset, int length) {
+        ensure(length);
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    void writeByte(char c) {
+        ensure(1);
+        buffer[position++] = (byte) c;
+    }
+
+    private void writeAscii(String value) {
+        int length = value.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            buffer[position++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void writeUtf8(String value) {
+        writeRaw(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void ensure(int needed) {
+        if (position + needed > buffer.length) {
+            long newSize = Math.max((long) buffer.length * 2, (long) position + needed);
+            if (newSize > Integer.MAX_VALUE - 8) {
+                if (position + (long) needed > Integer.MAX_VALUE - 8) {
+                    throw new IllegalArgumentException("Oversize request");
+                }
+                newSize = Integer.MAX_VALUE - 8;
+            }
+            buffer = Arrays.copyOf(buffer, (int) newSize);
+        }
+    }
+
+}
@@ -0,0 +1,320 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * Send values to many Zabbix servers or proxies. Each value is routed by its host, using consistent hashing, so a host
+ * is always sent to the same endpoint while it's available. A batch is split in one request per endpoint, sent in
+ * parallel.
+ * <p>
+ * An endpoint that fails <code>failureThreshold</code> times in a row is not used for <code>openDuration</code> ms,
+ * its hosts are sent to the next endpoints on the ring. A request that could not be written, because the endpoint
+ * could not be reached, is immediately sent again to the next endpoint. A request that failed after it was written,
+ * like with a read timeout, is not sent again, as the endpoint might have stored its values: they are counted as
+ * failed. A request refused by the server is not an endpoint failure, and is not sent again either. Endpoints that
+ * use a {@link Spool} never fail, so they should not be given a spool.
+ */
+public class MultiZabbixSender implements Closeable {
+
+    @Accessors(fluent = true)
+    public static class Builder {
+        private final List<ZabbixSender> senders = new ArrayList<>();
+        /**
+         * The number of points of each endpoint on the hash ring.
+         */
+        @Setter
+        private int virtualNodes = 160;
+        @Setter
+        private int failureThreshold = 3;
+        private long openDuration = 30000;
+
+        public Builder sender(ZabbixSender sender) {
+            senders.add(sender);
+            return this;
+        }
+        public Builder senders(Collection<ZabbixSender> senders) {
+            this.senders.addAll(senders);
+            return this;
+        }
+        public Builder openDuration(long value, TimeUnit unit) {
+            openDuration = TimeUnit.MILLISECONDS.convert(value, unit);
+            if (openDuration < 0) {
+                throw new IllegalArgumentException("Out of range duration: " + openDuration + "ms");
+            }
+            return this;
+        }
+
+        public MultiZabbixSender build() {
+            return new MultiZabbixSender(this);
+        }
+    }
+    public static MultiZabbixSender.Builder builder() {
+        return new MultiZabbixSender.Builder();
+    }
+
+    private class Endpoint {
+        private final ZabbixSender sender;
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile long openUntil;
+        Endpoint(ZabbixSender sender) {
+            this.sender = sender;
+        }
+        boolean isAvailable(long now) {
+            // Once the open duration is expired, requests are tried again
+            return failures.get() < failureThreshold || now - openUntil >= 0;
+        }
+        void success() {
+            failures.set(0);
+        }
+        void failure() {
+            if (failures.incrementAndGet() >= failureThreshold) {
+                openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(openDuration);
+            }
+        }
+    }
+
+    @Getter
+    private final int failureThreshold;
+    @Getter
+    private final long openDuration;
+    private final Endpoint[] endpoints;
+    // The hash ring, sorted by hash
+    private final int[] ringHashes;
+    private final Endpoint[] ringEndpoints;
+
+    private MultiZabbixSender(Builder builder) {
+        if (builder.senders.isEmpty()) {
+            throw new IllegalArgumentException("No endpoints");
+        }
+        if (builder.virtualNodes <= 0 || builder.failureThreshold <= 0) {
+            throw new IllegalArgumentException("Invalid multi sender definition");
+        }
+        failureThreshold = builder.failureThreshold;
+        openDuration = builder.openDuration;
+        endpoints = builder.senders.stream().map(Endpoint::new).toArray(Endpoint[]::new);
+        long[] points = new long[endpoints.length * builder.virtualNodes];
+        for (int i = 0; i < endpoints.length; i++) {
+            String name = endpoints[i].sender.getAddress().toString();
+            for (int j = 0; j < builder.virtualNodes; j++) {
+                // The hash in the high bits, the endpoint index in the low bits, so sorting keeps both
+                points[i * builder.virtualNodes + j] = ((long) hash(name + "#" + j) << 32) | i;
+            }
+        }
+        Arrays.sort(points);
+        ringHashes = new int[points.length];
+        ringEndpoints = new Endpoint[points.length];
+        for (int i = 0; i < points.length; i++) {
+            ringHashes[i] = (int) (points[i] >> 32);
+            ringEndpoints[i] = endpoints[(int) points[i]];
+        }
+    }
+
+    /**
+     * String.hashCode is stable across JVM, but badly distributed for similar strings, so it's mixed using the
+     * MurmurHash3 finalizer.
+     */
+    private static int hash(String value) {
+        int h = value == null ? 0 : value.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return the first available endpoint after the hash of the host, or null if none is available.
+     */
+    private Endpoint route(String host, Set<Endpoint> excluded, long now) {
+        int start = Arrays.binarySearch(ringHashes, hash(host));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        Endpoint fallback = null;
+        for (int i = 0; i < ringEndpoints.length; i++) {
+            Endpoint candidate = ringEndpoints[(start + i) % ringEndpoints.length];
+            if (excluded.contains(candidate)) {
+                continue;
+            } else if (candidate.isAvailable(now)) {
+                return candidate;
+            } else if (fallback == null) {
+                fallback = candidate;
+            }
+        }
+        // All endpoints are open, try anyway the first one still usable
+        return fallback;
+    }
+
+    private Map<Endpoint, List<DataObject>> split(Collection<DataObject> values, Set<Endpoint> excluded, List<DataObject> unrouted) {
+        long now = System.nanoTime();
+        Map<Endpoint, List<DataObject>> requests = new LinkedHashMap<>();
+        for (DataObject value: values) {
+            Endpoint endpoint = route(value.getHost(), excluded, now);
+            if (endpoint == null) {
+                unrouted.add(value);
+            } else {
+                requests.computeIfAbsent(endpoint, e -> new ArrayList<>()).add(value);
+            }
+        }
+        return requests;
+    }
+
+    public SenderResult send(DataObject... dataObjectList) throws IOException {
+        return send(Instant.now(), dataObjectList);
+    }
+
+    /**
+     * Send values, split by endpoint.
+     * @return the sum of the results of all endpoints. Values that could not be sent to any endpoint, or whose request
+     * was refused or failed after it was written, are counted as failed. The result of each endpoint is given by
+     * <code>SenderResult.getEndpoints()</code>. Every endpoint is waited for, even if the thread is interrupted, but an
+     * interrupt stops the failover to other endpoints, and the interrupt status is kept.
+     * @throws IOException if no values could be sent.
+     */
+    public SenderResult send(Instant clock, DataObject... dataObjectList) throws IOException {
+        Set<Endpoint> excluded = new HashSet<>();
+        List<DataObject> undelivered = new ArrayList<>();
+        Map<SocketAddress, SenderResult> results = new LinkedHashMap<>();
+        IOException failure = null;
+        Map<Endpoint, List<DataObject>> requests = split(Arrays.asList(dataObjectList), excluded, undelivered);
+        while (! requests.isEmpty()) {
+            Map<Endpoint, CompletableFuture<SenderResult>> pending = new LinkedHashMap<>();
+            requests.forEach((e, v) -> pending.put(e, sendAsync(e, clock, v)));
+            // Wait for every endpoint, even if interrupted, to know what was delivered
+            CompletableFuture.allOf(pending.values().toArray(CompletableFuture<?>[]::new)).handle((r, t) -> r).join();
+            List<DataObject> failed = new ArrayList<>();
+            for (Map.Entry<Endpoint, CompletableFuture<SenderResult>> e: pending.entrySet()) {
+                Endpoint endpoint = e.getKey();
+                Throwable cause;
+                try {
+                    SenderResult result = e.getValue().join();
+                    endpoint.success();
+                    results.merge(endpoint.sender.getAddress(), result, MultiZabbixSender::merge);
+                    continue;
+                } catch (CompletionException ex) {
+                    cause = ex.getCause();
+                } catch (CancellationException ex) {
+                    cause = ex;
+                }
+                if (cause instanceof RequestRefusedException) {
+                    // The endpoint works, another one would refuse the values too
+                    endpoint.success();
+                    undelivered.addAll(requests.get(endpoint));
+                } else if (cause instanceof RequestNotSentException) {
+                    endpoint.failure();
+                    excluded.add(endpoint);
+                    failed.addAll(requests.get(endpoint));
+                } else {
+                    // The values might have been stored, sending them elsewhere could duplicate them
+                    endpoint.failure();
+                    undelivered.addAll(requests.get(endpoint));
+                }
+                if (failure == null) {
+                    failure = cause instanceof IOException ? (IOException) cause : new IOException("Send failed: " + cause.getMessage(), cause);
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                // Interrupted, no other endpoint is tried
+                undelivered.addAll(failed);
+                failed.clear();
+            }
+            requests = split(failed, excluded, undelivered);
+        }
+        if (results.isEmpty() && failure != null) {
+            throw failure;
+        }
+        SenderResult total = results.values().stream().reduce(SenderResult.builder().processed(0).failed(0).total(0).spentSeconds(0).build(), MultiZabbixSender::merge);
+        return SenderResult.builder()
+                           .processed(total.getProcessed())
+                           .failed(total.getFailed() + undelivered.size())
+                           .total(total.getTotal() + undelivered.size())
+                           .spentSeconds(total.getSpentSeconds())
+                           .spooled(total.isSpooled())
+                           .rejected(total.getRejected())
+                           .unresolved(total.getUnresolved())
+                           .endpoints(results)
+                           .build();
+    }
+
+    private static CompletableFuture<SenderResult> sendAsync(Endpoint endpoint, Instant clock, List<DataObject> values) {
+        try {
+            return endpoint.sender.sendAsync(clock, values.toArray(DataObject[]::new));
+        } catch (RuntimeException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+    }
+
+    /**
+     * Add the counts of two results, unknown counts are ignored.
+     */
+    private static SenderResult merge(SenderResult a, SenderResult b) {
+        return SenderResult.builder()
+                           .processed(Math.max(a.getProcessed(), 0) + Math.max(b.getProcessed(), 0))
+                           .failed(Math.max(a.getFailed(), 0) + Math.max(b.getFailed(), 0))
+                           .total(Math.max(a.getTotal(), 0) + Math.max(b.getTotal(), 0))
+                           .spentSeconds(Math.max(a.getSpentSeconds(), b.getSpentSeconds()))
+                           .spooled(a.isSpooled() || b.isSpooled())
+                           .rejected(concat(a.getRejected(), b.getRejected()))
+                           .unresolved(concat(a.getUnresolved(), b.getUnresolved()))
+                           .build();
+    }
+
+    private static List<DataObject> concat(List<DataObject> a, List<DataObject> b) {
+        if (a.isEmpty()) {
+            return b;
+        } else if (b.isEmpty()) {
+            return a;
+        } else {
+            List<DataObject> values = new ArrayList<>(a.size() + b.size());
+            values.addAll(a);
+            values.addAll(b);
+            return values;
+        }
+    }
+
+    /**
+     * @return the address of each endpoint and if it's used, it's false when the endpoint failed too often.
+     */
+    public Map<SocketAddress, Boolean> getAvailability() {
+        long now = System.nanoTime();
+        Map<SocketAddress, Boolean> availability = new LinkedHashMap<>();
+        for (Endpoint endpoint: endpoints) {
+            availability.put(endpoint.sender.getAddress(), endpoint.isAvailable(now));
+        }
+        return availability;
+    }
+
+    /**
+     * Close all the senders.
+     */
+    @Override
+    public void close() {
+        for (Endpoint endpoint: endpoints) {
+            endpoint.sender.close();
+        }
+    }
+
+}
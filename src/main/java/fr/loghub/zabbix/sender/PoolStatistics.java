@@ -0,0 +1,39 @@
+package fr.loghub.zabbix.sender;
+
+import lombok.Builder;
+import lombok.Data;
+import lombok.Getter;
+
+/**
+ * A snapshot of the connection pool activity of a {@link ZabbixSender}.
+ */
+@Builder @Data
+public class PoolStatistics {
+
+    /**
+     * The total number of connections handed to a send operation.
+     */
+    @Getter
+    private final long borrowed;
+    /**
+     * The number of connections currently used by a send operation.
+     */
+    @Getter
+    private final int active;
+    /**
+     * The number of connections currently waiting in the pool.
+     */
+    @Getter
+    private final int idle;
+    /**
+     * The total number of connections opened.
+     */
+    @Getter
+    private final long created;
+    /**
+     * The total number of connections closed by the pool, because they were stale, expired or broken.
+     */
+    @Getter
+    private final long evicted;
+
+}
@@ -0,0 +1,230 @@
+package fr.loghub.zabbix.sender;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A fixed set of items, sent again and again with new values, like the items of a collector sent at each interval.
+ * <p>
+ * Items are declared once, the static part of their JSON, with the host and the key, is encoded at that time. Then
+ * for each send, only the values and the clocks are formatted, so the cost of a send depends on the size of the values,
+ * not of the whole request. Values without their own clock use the clock of the send, that is formatted only once.
+ * <p>
+ * An item without a value is not sent. The values are kept after a send, {@link #clear()} removes them. A batch is not
+ * thread safe.
+ */
+public class PreparedBatch {
+
+    private static final byte UNSET = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte STRING = 3;
+
+    // {"host":...,"key":...,"value": for each item
+    private final List<byte[]> templates = new ArrayList<>();
+    private final Map<List<String>, Integer> ids = new HashMap<>();
+    private final JsonEncoder templateEncoder = new JsonEncoder(64, null);
+
+    private int size = 0;
+    private byte[] types;
+    private long[] values;
+    private String[] strings;
+    // Only used for items with their own clock, the others have Long.MIN_VALUE
+    private long[] seconds;
+    private int[] nanos;
+
+    public PreparedBatch() {
+        this(64);
+    }
+
+    public PreparedBatch(int initialCapacity) {
+        types = new byte[initialCapacity];
+        values = new long[initialCapacity];
+        strings = new String[initialCapacity];
+        seconds = new long[initialCapacity];
+        nanos = new int[initialCapacity];
+    }
+
+    /**
+     * Declare an item. The key is formatted like {@link DataObject.Builder#key(String, Object...)}.
+     *
+     * @return the id of the item, the same id if it was already declared
+     */
+    public int item(String host, String key, Object... elements) {
+        if (elements.length == 0) {
+            if (key == null || key.isBlank()) {
+                throw new IllegalArgumentException("Invalid key definition");
+            }
+            return declare(host, key, null);
+        } else {
+            return item(host, ItemKey.of(key, elements));
+        }
+    }
+
+    public int item(String host, ItemKey key) {
+        return declare(host, key.getKey(), key);
+    }
+
+    private int declare(String host, String key, ItemKey itemKey) {
+        if (host == null) {
+            throw new IllegalArgumentException("Missing host");
+        }
+        List<String> lookup = List.of(host, key);
+        Integer id = ids.get(lookup);
+        if (id == null) {
+            id = templates.size();
+            templateEncoder.reset();
+            templateEncoder.writeRaw(JsonEncoder.HOST);
+            templateEncoder.writeString(host);
+            templateEncoder.writeRaw(JsonEncoder.KEY);
+            if (itemKey != null) {
+                templateEncoder.writeRaw(itemKey.getJson());
+            } else {
+                templateEncoder.writeString(key);
+            }
+            templateEncoder.writeRaw(JsonEncoder.VALUE);
+            templates.add(templateEncoder.toByteArray());
+            ids.put(lookup, id);
+            if (id == types.length) {
+                int capacity = Math.max(16, id * 2);
+                types = Arrays.copyOf(types, capacity);
+                values = Arrays.copyOf(values, capacity);
+                strings = Arrays.copyOf(strings, capacity);
+                seconds = Arrays.copyOf(seconds, capacity);
+                nanos = Arrays.copyOf(nanos, capacity);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @return the number of declared items.
+     */
+    public int items() {
+        return templates.size();
+    }
+
+    public PreparedBatch set(int item, long value) {
+        values[check(item, LONG)] = value;
+        return this;
+    }
+
+    public PreparedBatch set(int item, double value) {
+        values[check(item, DOUBLE)] = Double.doubleToRawLongBits(value);
+        return this;
+    }
+
+    public PreparedBatch set(int item, String value) {
+        strings[check(item, STRING)] = value;
+        return this;
+    }
+
+    public PreparedBatch set(int item, long value, long epochSecond, int nano) {
+        set(item, value);
+        return clock(item, epochSecond, nano);
+    }
+
+    public PreparedBatch set(int item, double value, long epochSecond, int nano) {
+        set(item, value);
+        return clock(item, epochSecond, nano);
+    }
+
+    public PreparedBatch set(int item, String value, long epochSecond, int nano) {
+        set(item, value);
+        return clock(item, epochSecond, nano);
+    }
+
+    private PreparedBatch clock(int item, long epochSecond, int nano) {
+        seconds[item] = epochSecond;
+        nanos[item] = nano;
+        return this;
+    }
+
+    private int check(int item, byte type) {
+        if (item < 0 || item >= templates.size()) {
+            throw new IllegalArgumentException("Unknown item id");
+        }
+        if (types[item] == UNSET) {
+            size++;
+        }
+        types[item] = type;
+        strings[item] = null;
+        seconds[item] = Long.MIN_VALUE;
+        return item;
+    }
+
+    /**
+     * @return the number of items with a value.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Remove the values, the declared items are kept.
+     */
+    public void clear() {
+        Arrays.fill(types, UNSET);
+        Arrays.fill(strings, null);
+        size = 0;
+    }
+
+    /**
+     * Encode the values, separated by commas.
+     *
+     * @param clockSuffix the encoded end of the values without their own clock
+     */
+    void encode(JsonEncoder encoder, byte[] clockSuffix) {
+        boolean first = true;
+        int count = templates.size();
+        for (int i = 0; i < count; i++) {
+            byte type = types[i];
+            if (type == UNSET) {
+                continue;
+            }
+            if (! first) {
+                encoder.writeByte(',');
+            }
+            first = false;
+            encoder.writeRaw(templates.get(i));
+            if (type == LONG) {
+                encoder.writeLong(values[i]);
+            } else if (type == DOUBLE) {
+                encoder.writeDouble(Double.longBitsToDouble(values[i]));
+            } else {
+                encoder.writeString(strings[i]);
+            }
+            if (seconds[i] == Long.MIN_VALUE) {
+                encoder.writeRaw(clockSuffix);
+            } else {
+                encoder.writeRaw(JsonEncoder.CLOCK);
+                encoder.writeLong(seconds[i]);
+                encoder.writeRaw(JsonEncoder.NS);
+                encoder.writeLong(nanos[i]);
+                encoder.writeByte('}');
+            }
+        }
+    }
+
+    /**
+     * @return the end of a value with the given clock, <code>,"clock":...,"ns":...}</code>
+     */
+    byte[] clockSuffix(Instant clock) {
+        templateEncoder.reset();
+        templateEncoder.writeRaw(JsonEncoder.CLOCK);
+        templateEncoder.writeLong(clock.getEpochSecond());
+        templateEncoder.writeRaw(JsonEncoder.NS);
+        templateEncoder.writeLong(clock.getNano());
+        templateEncoder.writeByte('}');
+        return templateEncoder.toByteArray();
+    }
+
+}
@@ -0,0 +1,176 @@
+package fr.loghub.zabbix.sender;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * A token bucket that limits a rate of permits, like values or bytes per second, with bursts.
+ * <p>
+ * It's implemented with the generic cell rate algorithm: a single atomic long holds the theoretical arrival time of
+ * the next permit, and acquiring permits is a compare and set, without locks nor a refill thread. A request for more
+ * permits than the burst is allowed when the bucket is full, so it's never refused forever.
+ * <p>
+ * Permits can be waited for by blocking the caller, with {@link #acquire(long)}, tried with {@link #tryAcquire(long)}
+ * or waited for asynchronously with {@link #acquireAsync(long)}.
+ */
+public class RateLimiter {
+
+    @Accessors(fluent = true)
+    public static class Builder {
+        /**
+         * The number of permits per second.
+         */
+        @Setter
+        private double rate;
+        /**
+         * The number of permits that can be acquired at once after an idle period, one second of rate by default.
+         */
+        @Setter
+        private long burst = -1;
+
+        public RateLimiter build() {
+            return new RateLimiter(this);
+        }
+    }
+    public static RateLimiter.Builder builder() {
+        return new RateLimiter.Builder();
+    }
+
+    @Getter
+    private final double rate;
+    @Getter
+    private final long burst;
+    private final double nanosPerPermit;
+    private final long tolerance;
+    private final AtomicLong arrival;
+    private final LongAdder throttledNanos = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private RateLimiter(Builder builder) {
+        if (! (builder.rate > 0) || Double.isInfinite(builder.rate)) {
+            throw new IllegalArgumentException("Invalid rate: " + builder.rate);
+        }
+        rate = builder.rate;
+        burst = builder.burst < 0 ? Math.max(1, (long) rate) : builder.burst;
+        if (burst == 0) {
+            throw new IllegalArgumentException("Invalid burst: " + burst);
+        }
+        nanosPerPermit = 1e9 / rate;
+        tolerance = cost(burst);
+        arrival = new AtomicLong(System.nanoTime());
+    }
+
+    private long cost(long permits) {
+        return (long) Math.min(Long.MAX_VALUE / 4, Math.ceil(permits * nanosPerPermit));
+    }
+
+    /**
+     * Take permits, even if they are not available yet. The wait is counted as throttled time.
+     *
+     * @return how long to wait before using them, in nanoseconds.
+     */
+    long reserve(long permits) {
+        long cost = cost(permits);
+        long limit = Math.max(tolerance, cost);
+        long now = System.nanoTime();
+        while (true) {
+            long current = arrival.get();
+            long next = (current - now > 0 ? current : now) + cost;
+            if (arrival.compareAndSet(current, next)) {
+                long wait = next - limit - now;
+                if (wait > 0) {
+                    throttled.increment();
+                    throttledNanos.add(wait);
+                    return wait;
+                } else {
+                    return 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Give back permits that were acquired but not used.
+     */
+    void release(long permits) {
+        arrival.addAndGet(-cost(permits));
+    }
+
+    /**
+     * Acquire permits, waiting until they are available.
+     *
+     * @return the time spent waiting, in nanoseconds
+     * @throws InterruptedException if interrupted while waiting, the permits are still taken
+     */
+    public long acquire(long permits) throws InterruptedException {
+        long wait = reserve(permits);
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return wait;
+    }
+
+    /**
+     * Acquire permits only if they are available now.
+     *
+     * @return true if the permits were acquired.
+     */
+    public boolean tryAcquire(long permits) {
+        long cost = cost(permits);
+        long limit = Math.max(tolerance, cost);
+        long now = System.nanoTime();
+        while (true) {
+            long current = arrival.get();
+            long next = (current - now > 0 ? current : now) + cost;
+            if (next - limit - now > 0) {
+                rejected.increment();
+                return false;
+            } else if (arrival.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Acquire permits without blocking the caller.
+     *
+     * @return a future completed when the permits are available
+     */
+    public CompletableFuture<Void> acquireAsync(long permits) {
+        long wait = reserve(permits);
+        if (wait > 0) {
+            return CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS));
+        } else {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * @return the total time callers waited for permits, in nanoseconds.
+     */
+    public long getThrottledNanos() {
+        return throttledNanos.sum();
+    }
+
+    /**
+     * @return the number of acquisitions that had to wait.
+     */
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    /**
+     * @return the number of refused {@link #tryAcquire(long)}.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+}
@@ -0,0 +1,17 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.IOException;
+
+/**
+ * An exchange failed before the request was fully written, because the server could not be reached or the write
+ * failed. The server can't have processed the request, so it can safely be sent elsewhere.
+ */
+public class RequestNotSentException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RequestNotSentException(IOException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+}
@@ -0,0 +1,17 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.IOException;
+
+/**
+ * The server answered, but refused the request. The exchange itself succeeded, so sending the same request again,
+ * to this server or to another one, would not help.
+ */
+public class RequestRefusedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RequestRefusedException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,248 @@
+package fr.loghub.zabbix.sender;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parse a Zabbix response like <code>{"response":"success","info":"processed: 1; failed: 0; total: 1; seconds spent: 0.000052"}</code>
+ * directly from its bytes, without creating strings or maps.
+ * <p>
+ * It only handles the usual successful responses, anything unexpected returns null, so the caller can use a generic
+ * JSON parser.
+ */
+final class ResponseParser {
+
+    private static final byte[] RESPONSE = bytes("response");
+    private static final byte[] INFO = bytes("info");
+    private static final byte[] SUCCESS = bytes("success");
+    private static final byte[] PROCESSED = bytes("processed");
+    private static final byte[] FAILED = bytes("failed");
+    private static final byte[] TOTAL = bytes("total");
+    private static final byte[] SECONDS_SPENT = bytes("seconds spent");
+    private static final float[] POWERS_OF_TEN = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+    private final byte[] buffer;
+    private int position = 0;
+    // The bounds of the last string read, without the quotes
+    private int stringStart;
+    private int stringEnd;
+
+    private ResponseParser(byte[] buffer) {
+        this.buffer = buffer;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the result, or null if the response is not a usual successful response.
+     */
+    static SenderResult parse(byte[] response) {
+        try {
+            return new ResponseParser(response).parse();
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            // Truncated response
+            return null;
+        }
+    }
+
+    private SenderResult parse() {
+        boolean success = false;
+        int infoStart = -1;
+        int infoEnd = -1;
+        skipSpaces();
+        if (buffer[position++] != '{') {
+            return null;
+        }
+        skipSpaces();
+        if (buffer[position] == '}') {
+            return null;
+        }
+        while (true) {
+            skipSpaces();
+            if (! readString()) {
+                return null;
+            }
+            int keyStart = stringStart;
+            int keyEnd = stringEnd;
+            skipSpaces();
+            if (buffer[position++] != ':') {
+                return null;
+            }
+            skipSpaces();
+            if (buffer[position] == '"') {
+                if (! readString()) {
+                    return null;
+                }
+                if (equals(RESPONSE, keyStart, keyEnd)) {
+                    success = equals(SUCCESS, stringStart, stringEnd);
+                } else if (equals(INFO, keyStart, keyEnd)) {
+                    infoStart = stringStart;
+                    infoEnd = stringEnd;
+                }
+            } else if (! skipScalar()) {
+                return null;
+            }
+            skipSpaces();
+            byte next = buffer[position++];
+            if (next == '}') {
+                break;
+            } else if (next != ',') {
+                return null;
+            }
+        }
+        skipSpaces();
+        if (position != buffer.length || ! success || infoStart < 0) {
+            return null;
+        } else {
+            return parseInfo(infoStart, infoEnd);
+        }
+    }
+
+    private void skipSpaces() {
+        while (position < buffer.length && (buffer[position] == ' ' || buffer[position] == '\n' || buffer[position] == '\r' || buffer[position] == '\t')) {
+            position++;
+        }
+    }
+
+    /**
+     * Read a string without escape sequences.
+     */
+    private boolean readString() {
+        if (buffer[position++] != '"') {
+            return false;
+        }
+        stringStart = position;
+        while (buffer[position] != '"') {
+            if (buffer[position] == '\\') {
+                return false;
+            }
+            position++;
+        }
+        stringEnd = position++;
+        return true;
+    }
+
+    /**
+     * Skip a number, <code>true</code>, <code>false</code> or <code>null</code>.
+     */
+    private boolean skipScalar() {
+        int start = position;
+        while (position < buffer.length) {
+            byte b = buffer[position];
+            if ((b >= '0' && b <= '9') || (b >= 'a' && b <= 'z') || b == '-' || b == '+' || b == '.' || b == 'E') {
+                position++;
+            } else {
+                break;
+            }
+        }
+        return position > start;
+    }
+
+    private boolean equals(byte[] expected, int start, int end) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse entries like <code>processed: 1; failed: 0</code>, unknown ones are ignored.
+     */
+    private SenderResult parseInfo(int start, int end) {
+        SenderResult.SenderResultBuilder builder = SenderResult.builder();
+        position = start;
+        while (position < end) {
+            int labelStart = position;
+            while (position < end && buffer[position] != ':') {
+                position++;
+            }
+            int labelEnd = position;
+            if (position + 1 >= end || buffer[position + 1] != ' ') {
+                return null;
+            }
+            position += 2;
+            if (equals(SECONDS_SPENT, labelStart, labelEnd)) {
+                float seconds = parseFloat(end);
+                if (Float.isNaN(seconds)) {
+                    return null;
+                }
+                builder.spentSeconds(seconds);
+            } else {
+                int value = parseInt(end);
+                if (value < 0) {
+                    return null;
+                } else if (equals(PROCESSED, labelStart, labelEnd)) {
+                    builder.processed(value);
+                } else if (equals(FAILED, labelStart, labelEnd)) {
+                    builder.failed(value);
+                } else if (equals(TOTAL, labelStart, labelEnd)) {
+                    builder.total(value);
+                }
+            }
+            if (position < end) {
+                if (position + 1 >= end || buffer[position] != ';' || buffer[position + 1] != ' ') {
+                    return null;
+                }
+                position += 2;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the value, or -1 if it's not a positive int.
+     */
+    private int parseInt(int end) {
+        int start = position;
+        long value = 0;
+        while (position < end && buffer[position] >= '0' && buffer[position] <= '9' && position - start < 10) {
+            value = value * 10 + (buffer[position++] - '0');
+        }
+        if (position == start || value > Integer.MAX_VALUE || (position < end && buffer[position] != ';')) {
+            return -1;
+        }
+        return (int) value;
+    }
+
+    /**
+     * @return the value, or NaN if it's not a positive decimal number.
+     */
+    private float parseFloat(int end) {
+        int start = position;
+        long mantissa = 0;
+        int decimals = -1;
+        while (position < end && buffer[position] != ';') {
+            byte b = buffer[position++];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                return Float.NaN;
+            }
+            if (position - start > 18) {
+                return Float.NaN;
+            }
+        }
+        if (position == start) {
+            return Float.NaN;
+        }
+        decimals = Math.max(decimals, 0);
+        if (mantissa <= (1 << 24) && decimals < POWERS_OF_TEN.length) {
+            // Both are exact floats, so the division is correctly rounded
+            return mantissa / POWERS_OF_TEN[decimals];
+        } else {
+            return Float.parseFloat(new String(buffer, start, position - start, StandardCharsets.US_ASCII));
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+package fr.loghub.zabbix.sender;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+
+/**
+ * An {@link Instrumentation} that keeps histograms of the latency of each phase, of the whole send and of the time
+ * spent by the server, with counters of bytes, values and failures. Comparing the send latency, the read latency and
+ * the server latency tells if slowness comes from the client, the network or Zabbix.
+ * <p>
+ * It can be registered in the platform MBean server with {@link #register(String)}.
+ */
+public class SenderMetrics implements Instrumentation, SenderMetricsMXBean {
+
+    private final Map<Phase, Histogram> phases = new EnumMap<>(Phase.class);
+    private final Histogram sendLatency = new Histogram();
+    private final Histogram serverLatency = new Histogram();
+    private final Histogram batchSizes = new Histogram();
+    private final LongAdder values = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private ObjectName registeredName = null;
+
+    public SenderMetrics() {
+        for (Phase phase: Phase.values()) {
+            phases.put(phase, new Histogram());
+        }
+    }
+
+    @Override
+    public void phase(Phase phase, long nanos) {
+        phases.get(phase).record(nanos);
+    }
+
+    @Override
+    public void written(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    @Override
+    public void read(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    @Override
+    public void failed(Phase phase, Throwable failure) {
+        failures.computeIfAbsent(phase + "/" + failure.getClass().getName(), k -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void sent(int values, SenderResult result, long nanos) {
+        sendLatency.record(nanos);
+        batchSizes.record(values);
+        this.values.add(values);
+        if (result.getSpentSeconds() >= 0) {
+            serverLatency.record((long) (result.getSpentSeconds() * 1e9));
+        }
+    }
+
+    public Histogram getPhaseLatency(Phase phase) {
+        return phases.get(phase);
+    }
+
+    public Histogram getSendLatency() {
+        return sendLatency;
+    }
+
+    public Histogram getServerLatency() {
+        return serverLatency;
+    }
+
+    public Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    @Override
+    public long getSends() {
+        return sendLatency.getCount();
+    }
+
+    @Override
+    public long getValues() {
+        return values.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public double getMeanBatchSize() {
+        return batchSizes.getMean();
+    }
+
+    @Override
+    public long getSendLatencyP50() {
+        return micros(sendLatency.getValueAtPercentile(50));
+    }
+
+    @Override
+    public long getSendLatencyP99() {
+        return micros(sendLatency.getValueAtPercentile(99));
+    }
+
+    @Override
+    public long getSendLatencyMax() {
+        return micros(sendLatency.getMax());
+    }
+
+    @Override
+    public long getServerLatencyP99() {
+        return micros(serverLatency.getValueAtPercentile(99));
+    }
+
+    @Override
+    public Map<String, Long> getPhaseLatencyP50() {
+        return byPhase(h -> h.getValueAtPercentile(50));
+    }
+
+    @Override
+    public Map<String, Long> getPhaseLatencyP99() {
+        return byPhase(h -> h.getValueAtPercentile(99));
+    }
+
+    @Override
+    public Map<String, Long> getPhaseLatencyMax() {
+        return byPhase(Histogram::getMax);
+    }
+
+    private Map<String, Long> byPhase(ToLongFunction<Histogram> statistic) {
+        Map<String, Long> latencies = new TreeMap<>();
+        phases.forEach((p, h) -> latencies.put(p.name(), micros(statistic.applyAsLong(h))));
+        return latencies;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    @Override
+    public Map<String, Long> getFailures() {
+        Map<String, Long> counts = new TreeMap<>();
+        failures.forEach((k, v) -> counts.put(k, v.sum()));
+        return counts;
+    }
+
+    @Override
+    public void reset() {
+        phases.values().forEach(Histogram::reset);
+        sendLatency.reset();
+        serverLatency.reset();
+        batchSizes.reset();
+        values.reset();
+        bytesWritten.reset();
+        bytesRead.reset();
+        failures.clear();
+    }
+
+    /**
+     * Register this instance in the platform MBean server, as <code>fr.loghub.zabbix:type=SenderMetrics,name=...</code>
+     *
+     * @param name the name of the sender
+     * @throws IllegalArgumentException if the name is not valid, or already used
+     */
+    public synchronized void register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("fr.loghub.zabbix:type=SenderMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            registeredName = objectName;
+        } catch (MalformedObjectNameException | InstanceAlreadyExistsException | MBeanRegistrationException | NotCompliantMBeanException ex) {
+            throw new IllegalArgumentException("Can't register metrics " + name + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (registeredName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(registeredName);
+            } catch (InstanceNotFoundException | MBeanRegistrationException ex) {
+                // Already removed
+            }
+            registeredName = null;
+        }
+    }
+
+}
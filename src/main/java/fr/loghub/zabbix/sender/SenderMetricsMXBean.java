@@ -0,0 +1,44 @@
+package fr.loghub.zabbix.sender;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link SenderMetrics}. Latencies are in microseconds, maps are indexed by phase name.
+ */
+public interface SenderMetricsMXBean {
+
+    long getSends();
+
+    long getValues();
+
+    long getBytesWritten();
+
+    long getBytesRead();
+
+    double getMeanBatchSize();
+
+    long getSendLatencyP50();
+
+    long getSendLatencyP99();
+
+    long getSendLatencyMax();
+
+    /**
+     * The time spent by the server, as reported in its responses.
+     */
+    long getServerLatencyP99();
+
+    Map<String, Long> getPhaseLatencyP50();
+
+    Map<String, Long> getPhaseLatencyP99();
+
+    Map<String, Long> getPhaseLatencyMax();
+
+    /**
+     * The failures, indexed by phase and exception class, like <code>CONNECT/java.net.ConnectException</code>.
+     */
+    Map<String, Long> getFailures();
+
+    void reset();
+
+}
@@ -1,5 +1,9 @@
 package fr.loghub.zabbix.sender;
 
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.Map;
+
 import lombok.Builder;
 import lombok.Data;
 import lombok.Getter;
@@ -9,7 +13,7 @@ import lombok.Getter;
  * @author hengyunabc
  *
  */
-@Builder @Data
+@Builder(toBuilder = true) @Data
 public class SenderResult {
 
     @Getter @Builder.Default
@@ -20,6 +24,27 @@ public class SenderResult {
     private final int total = -1;
     @Getter @Builder.Default
     private final float spentSeconds = -1.0f;
+    /**
+     * True if the request could not be sent and was stored in the spool.
+     */
+    @Getter @Builder.Default
+    private final boolean spooled = false;
+    /**
+     * The result of each endpoint, when sent with a {@link MultiZabbixSender}.
+     */
+    @Getter @Builder.Default
+    private final Map<SocketAddress, SenderResult> endpoints = Map.of();
+    /**
+     * The values found to be rejected by the server, when failure isolation is enabled.
+     */
+    @Getter @Builder.Default
+    private final List<DataObject> rejected = List.of();
+    /**
+     * The values of sub-batches with rejected values that could not be split further, because the limit of requests
+     * was reached or a request failed. They might have been accepted.
+     */
+    @Getter @Builder.Default
+    private final List<DataObject> unresolved = List.of();
 
     /**
      * if all sent data are processed, will return true, else return false.
@@ -0,0 +1,446 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * A durable spool of requests that could not be delivered, given to a {@link ZabbixSender} with
+ * <code>ZabbixSender.Builder.spool(Spool)</code>. Failed requests are appended to memory-mapped segment files, as Zabbix
+ * packets, and a background thread replays them when the server is reachable again.
+ * <p>
+ * The position of the last acknowledged request is saved, so replay resumes from it after a restart. Writes are left
+ * to the OS, so spooled requests survive a crash of the JVM, but not of the host.
+ */
+public class Spool implements Closeable {
+
+    public enum EvictionPolicy {
+        /**
+         * Delete the oldest segment to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Refuse new requests, the sender fails as if there was no spool.
+         */
+        DROP_NEWEST,
+    }
+
+    /**
+     * Send a spooled request body.
+     */
+    @FunctionalInterface
+    interface Replayer {
+        void replay(byte[] body) throws IOException;
+    }
+
+    @Accessors(fluent = true)
+    public static class Builder {
+        @Setter
+        private Path directory;
+        @Setter
+        private int segmentSize = 16 * 1024 * 1024;
+        @Setter
+        private long maxDiskUsage = 256L * 1024 * 1024;
+        @Setter
+        private EvictionPolicy evictionPolicy = EvictionPolicy.DROP_OLDEST;
+        /**
+         * The maximum number of replayed requests per second.
+         */
+        @Setter
+        private double replayRate = 10;
+        private long retryInterval = 5000;
+        @Setter
+        private String name = "ZabbixSpoolReplayer";
+
+        public Builder retryInterval(long value, TimeUnit unit) {
+            retryInterval = TimeUnit.MILLISECONDS.convert(value, unit);
+            if (retryInterval <= 0) {
+                throw new IllegalArgumentException("Out of range retry interval: " + retryInterval + "ms");
+            }
+            return this;
+        }
+
+        /**
+         * Open the spool, creating the directory if needed and loading existing segments.
+         */
+        public Spool open() throws IOException {
+            return new Spool(this);
+        }
+    }
+    public static Spool.Builder builder() {
+        return new Spool.Builder();
+    }
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("spool-(\\d{20})\\.log");
+    private static final byte[] MAGIC = {'Z', 'B', 'X', 'D'};
+    private static final int HEADER_SIZE = 13;
+    // Unmaps a buffer at once, instead of when it's garbage collected
+    private static final Consumer<ByteBuffer> UNMAPPER = unmapper();
+
+    private static Consumer<ByteBuffer> unmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            return b -> {
+                try {
+                    invokeCleaner.invoke(unsafe, b);
+                } catch (IllegalAccessException | InvocationTargetException ex) {
+                    // Left to the garbage collector
+                }
+            };
+        } catch (ClassNotFoundException | NoSuchFieldException | NoSuchMethodException | IllegalAccessException | RuntimeException ex) {
+            // Not available, left to the garbage collector
+            return b -> { };
+        }
+    }
+
+    private static class Segment {
+        private final long sequence;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        Segment(long sequence, Path path, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.path = path;
+            this.buffer = buffer;
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            this.writePosition = scan(buffer, 0);
+        }
+        int size() {
+            return buffer.capacity();
+        }
+        /**
+         * Unmap the segment, it must not be used any more.
+         */
+        void unmap() {
+            UNMAPPER.accept(buffer);
+        }
+    }
+
+    @Getter
+    private final Path directory;
+    @Getter
+    private final int segmentSize;
+    @Getter
+    private final long maxDiskUsage;
+    @Getter
+    private final EvictionPolicy evictionPolicy;
+    @Getter
+    private final double replayRate;
+    @Getter
+    private final long retryInterval;
+    private final String name;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final MappedByteBuffer offset;
+    private long readSequence;
+    private int readPosition;
+    // The position of the request returned by peek
+    private long peekedSequence = -1;
+    private int peekedPosition = -1;
+    private Thread replayer;
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private volatile boolean running = true;
+
+    private Spool(Builder builder) throws IOException {
+        if (builder.directory == null) {
+            throw new IllegalArgumentException("Missing spool directory");
+        }
+        if (builder.segmentSize <= HEADER_SIZE || builder.maxDiskUsage < builder.segmentSize || builder.replayRate <= 0) {
+            throw new IllegalArgumentException("Invalid spool definition");
+        }
+        directory = builder.directory;
+        segmentSize = builder.segmentSize;
+        maxDiskUsage = builder.maxDiskUsage;
+        evictionPolicy = builder.evictionPolicy;
+        replayRate = builder.replayRate;
+        retryInterval = builder.retryInterval;
+        name = builder.name;
+        Files.createDirectories(directory);
+        try (FileChannel fc = FileChannel.open(directory.resolve("spool.offset"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            offset = fc.map(FileChannel.MapMode.READ_WRITE, 0, 16);
+        }
+        offset.order(ByteOrder.LITTLE_ENDIAN);
+        readSequence = offset.getLong(0);
+        readPosition = offset.getInt(8);
+        List<Long> sequences = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "spool-*.log")) {
+            for (Path file: files) {
+                Matcher m = SEGMENT_NAME.matcher(file.getFileName().toString());
+                if (m.matches()) {
+                    sequences.add(Long.parseLong(m.group(1)));
+                }
+            }
+        }
+        sequences.sort(null);
+        for (long sequence: sequences) {
+            if (sequence < readSequence) {
+                // Fully acknowledged before a restart
+                Files.deleteIfExists(segmentPath(sequence));
+            } else {
+                segments.addLast(map(sequence, false));
+            }
+        }
+        if (! segments.isEmpty() && segments.peekFirst().sequence > readSequence) {
+            acknowledge(segments.peekFirst().sequence, 0);
+        }
+    }
+
+    private Path segmentPath(long sequence) {
+        return directory.resolve(String.format("spool-%020d.log", sequence));
+    }
+
+    private Segment map(long sequence, boolean create) throws IOException {
+        Path path = segmentPath(sequence);
+        try (FileChannel fc = create ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                                     : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = create ? segmentSize : fc.size();
+            return new Segment(sequence, path, fc.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    /**
+     * @return the position after the last complete packet.
+     */
+    private static int scan(ByteBuffer buffer, int position) {
+        while (hasPacket(buffer, position)) {
+            position += HEADER_SIZE + buffer.getInt(position + 5);
+        }
+        return position;
+    }
+
+    private static boolean hasPacket(ByteBuffer buffer, int position) {
+        if (position + HEADER_SIZE > buffer.capacity()) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(position + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        int size = buffer.getInt(position + 5);
+        return size >= 0 && size <= buffer.capacity() - position - HEADER_SIZE;
+    }
+
+    /**
+     * Append a request body.
+     * @return false if the request was refused, because it's too big or the spool is full.
+     */
+    synchronized boolean append(byte[] body, int bodyOffset, int length) throws IOException {
+        if (! running || length > segmentSize - HEADER_SIZE) {
+            return false;
+        }
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.writePosition + HEADER_SIZE + length > tail.size()) {
+            while ((segments.size() + 1L) * segmentSize > maxDiskUsage) {
+                if (evictionPolicy == EvictionPolicy.DROP_NEWEST) {
+                    return false;
+                }
+                evictOldest();
+            }
+            long sequence;
+            if (tail != null) {
+                sequence = tail.sequence + 1;
+            } else {
+                // The acknowledged position might be in a deleted segment
+                sequence = readPosition == 0 ? readSequence : readSequence + 1;
+                acknowledge(sequence, 0);
+            }
+            tail = map(sequence, true);
+            segments.addLast(tail);
+        }
+        ByteBuffer b = tail.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int position = tail.writePosition;
+        // The magic is written last, so a packet is visible only when complete
+        b.position(position + MAGIC.length);
+        b.put((byte) 0x01);
+        b.putInt(length);
+        b.putInt(0);
+        b.put(body, bodyOffset, length);
+        b.position(position);
+        b.put(MAGIC);
+        tail.writePosition = position + HEADER_SIZE + length;
+        spooled.incrementAndGet();
+        notifyAll();
+        return true;
+    }
+
+    private void evictOldest() throws IOException {
+        Segment oldest = segments.pollFirst();
+        if (oldest.sequence == readSequence) {
+            int position = readPosition;
+            while (hasPacket(oldest.buffer, position)) {
+                position += HEADER_SIZE + oldest.buffer.getInt(position + 5);
+                evicted.incrementAndGet();
+            }
+            acknowledge(oldest.sequence + 1, 0);
+        }
+        retire(oldest);
+    }
+
+    /**
+     * Unmap and delete a segment removed from the spool, the disk space of a deleted file is only freed once unmapped.
+     */
+    private void retire(Segment segment) throws IOException {
+        segment.unmap();
+        Files.deleteIfExists(segment.path);
+    }
+
+    /**
+     * @return the body of the oldest request not acknowledged, or null if none.
+     */
+    synchronized byte[] peek() throws IOException {
+        while (true) {
+            Segment head = segments.peekFirst();
+            if (head == null) {
+                return null;
+            } else if (hasPacket(head.buffer, readPosition)) {
+                byte[] body = new byte[head.buffer.getInt(readPosition + 5)];
+                head.buffer.duplicate().position(readPosition + HEADER_SIZE).get(body);
+                peekedSequence = readSequence;
+                peekedPosition = readPosition;
+                return body;
+            } else if (head == segments.peekLast()) {
+                return null;
+            } else {
+                // Segment fully replayed
+                segments.pollFirst();
+                acknowledge(head.sequence + 1, 0);
+                retire(head);
+            }
+        }
+    }
+
+    /**
+     * Acknowledge the request returned by {@link #peek()}, unless it was evicted since.
+     */
+    synchronized void acknowledge() {
+        Segment head = segments.peekFirst();
+        if (head != null && peekedSequence == readSequence && peekedPosition == readPosition && hasPacket(head.buffer, readPosition)) {
+            acknowledge(readSequence, readPosition + HEADER_SIZE + head.buffer.getInt(readPosition + 5));
+            replayed.incrementAndGet();
+        }
+    }
+
+    private void acknowledge(long sequence, int position) {
+        readSequence = sequence;
+        readPosition = position;
+        offset.putLong(0, sequence);
+        offset.putInt(8, position);
+    }
+
+    synchronized void start(Replayer replayer) {
+        if (this.replayer != null) {
+            throw new IllegalStateException("Spool already used");
+        }
+        this.replayer = new Thread(() -> replay(replayer), name);
+        this.replayer.setDaemon(true);
+        this.replayer.start();
+    }
+
+    private void replay(Replayer replayer) {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / replayRate);
+        while (running) {
+            try {
+                byte[] body;
+                synchronized (this) {
+                    body = peek();
+                    if (body == null) {
+                        wait(retryInterval);
+                        continue;
+                    }
+                }
+                try {
+                    replayer.replay(body);
+                    acknowledge();
+                    TimeUnit.NANOSECONDS.sleep(interval);
+                } catch (IOException ex) {
+                    // Server still not reachable
+                    Thread.sleep(retryInterval);
+                }
+            } catch (InterruptedException ex) {
+                // Closing
+                break;
+            } catch (IOException ex) {
+                // Failing to delete a replayed segment, try again later
+            }
+        }
+    }
+
+    /**
+     * @return the number of requests written to the spool.
+     */
+    public long getSpooled() {
+        return spooled.get();
+    }
+
+    /**
+     * @return the number of requests replayed.
+     */
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * @return the number of requests lost because the disk usage limit was reached.
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * Stop the replay, spooled requests are kept for the next time the spool is opened.
+     */
+    @Override
+    public void close() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = replayer;
+        }
+        if (current != null) {
+            current.interrupt();
+            try {
+                current.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            offset.force();
+            segments.forEach(s -> {
+                s.buffer.force();
+                s.unmap();
+            });
+            segments.clear();
+        }
+    }
+
+}
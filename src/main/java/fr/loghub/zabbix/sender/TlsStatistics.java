@@ -0,0 +1,31 @@
+package fr.loghub.zabbix.sender;
+
+import lombok.Builder;
+import lombok.Data;
+import lombok.Getter;
+
+/**
+ * A snapshot of the TLS handshakes done by a {@link ZabbixSender}.
+ */
+@Builder @Data
+public class TlsStatistics {
+
+    /**
+     * The total number of TLS handshakes.
+     */
+    @Getter
+    private final long handshakes;
+    /**
+     * The number of handshakes that resumed a cached session, using a session id or a TLS 1.3 ticket.
+     */
+    @Getter
+    private final long resumed;
+
+    /**
+     * @return the number of full handshakes, with the key exchange and the certificate verification.
+     */
+    public long getFull() {
+        return handshakes - resumed;
+    }
+
+}
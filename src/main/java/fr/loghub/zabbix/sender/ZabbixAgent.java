@@ -0,0 +1,272 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * A client of the active agent protocol. It gets the items of a host with <code>active checks</code> requests and
+ * sends values with <code>agent data</code> requests, using the connections of a {@link ZabbixSender}.
+ * <p>
+ * Each value gets an id in the session of the agent, and the server skips the ids it already received. So a request
+ * whose response was lost can be sent again without storing its values twice. A request that could not be sent is
+ * kept and sent again before the next values, and its values must not be given again. A request refused by the server
+ * is dropped. At most <code>maxPending</code> requests are kept, when they are all pending and still can't be
+ * sent, new values are refused with a {@link RequestNotSentException} and must be given again.
+ * <p>
+ * Requests are sent one at a time, in the order of the ids, as the server would skip the values of a request sent
+ * after a request with higher ids. Duplicates are skipped since Zabbix 4.4, the configuration revision and the item
+ * ids of active checks are only used since Zabbix 6.4.
+ */
+public class ZabbixAgent {
+
+    @Accessors(fluent = true)
+    public static class Builder {
+        @Setter
+        private ZabbixSender sender;
+        /**
+         * The host name, as configured in Zabbix.
+         */
+        @Setter
+        private String host;
+        @Setter
+        private String hostMetadata = null;
+        private long refreshInterval = 60000;
+        /**
+         * The number of times a request is sent again after a failed exchange.
+         */
+        @Setter
+        private int retries = 2;
+        /**
+         * The maximum number of requests kept to be sent again.
+         */
+        @Setter
+        private int maxPending = 1000;
+
+        /**
+         * How long the list of active checks is kept before asking the server again.
+         */
+        public Builder refreshInterval(long value, TimeUnit unit) {
+            refreshInterval = TimeUnit.MILLISECONDS.convert(value, unit);
+            if (refreshInterval < 0) {
+                throw new IllegalArgumentException("Out of range refresh interval: " + refreshInterval + "ms");
+            }
+            return this;
+        }
+
+        public ZabbixAgent build() {
+            return new ZabbixAgent(this);
+        }
+    }
+    public static ZabbixAgent.Builder builder() {
+        return new ZabbixAgent.Builder();
+    }
+
+    @Getter
+    private final ZabbixSender sender;
+    @Getter
+    private final String host;
+    @Getter
+    private final String hostMetadata;
+    @Getter
+    private final long refreshInterval;
+    @Getter
+    private final int retries;
+    @Getter
+    private final int maxPending;
+    /**
+     * The session of this agent, the server uses it with the ids of the values to skip duplicates.
+     */
+    @Getter
+    private final String session = UUID.randomUUID().toString().replace("-", "");
+    private final JsonHandler jhandler;
+    private final Object checksLock = new Object();
+    private volatile List<ActiveCheck> checks = null;
+    private volatile long refreshed;
+    private long configRevision = -1;
+    // Guarded by this
+    private final JsonEncoder encoder;
+    private final Deque<byte[]> pending = new ArrayDeque<>();
+    private long nextId = 1;
+
+    private ZabbixAgent(Builder builder) {
+        if (builder.sender == null) {
+            throw new IllegalArgumentException("Missing sender");
+        }
+        if (builder.host == null || builder.host.isBlank()) {
+            throw new IllegalArgumentException("Missing host");
+        }
+        if (builder.sender.getJhandler() == null) {
+            throw new IllegalArgumentException("Active checks require a JSON handler");
+        }
+        if (builder.retries < 0) {
+            throw new IllegalArgumentException("Invalid retries: " + builder.retries);
+        }
+        if (builder.maxPending <= 0) {
+            throw new IllegalArgumentException("Invalid max pending: " + builder.maxPending);
+        }
+        sender = builder.sender;
+        host = builder.host;
+        hostMetadata = builder.hostMetadata;
+        refreshInterval = builder.refreshInterval;
+        retries = builder.retries;
+        maxPending = builder.maxPending;
+        jhandler = sender.getJhandler();
+        encoder = new JsonEncoder(4096, jhandler::serialize);
+    }
+
+    /**
+     * @return the active checks of the host, asked to the server if they are older than the refresh interval.
+     * @throws IOException if the server can't be reached or refused the request
+     */
+    public List<ActiveCheck> getActiveChecks() throws IOException {
+        List<ActiveCheck> current = checks;
+        if (current != null && ! expired()) {
+            return current;
+        }
+        synchronized (checksLock) {
+            // Might have been refreshed while waiting
+            return checks != null && ! expired() ? checks : refresh();
+        }
+    }
+
+    private boolean expired() {
+        return System.nanoTime() - refreshed >= TimeUnit.MILLISECONDS.toNanos(refreshInterval);
+    }
+
+    /**
+     * Ask the server for the active checks of the host. When the server supports configuration revisions, the list is
+     * only sent again if it changed.
+     *
+     * @return the active checks of the host
+     * @throws IOException if the server can't be reached or refused the request
+     */
+    public List<ActiveCheck> refresh() throws IOException {
+        synchronized (checksLock) {
+            JsonEncoder request = new JsonEncoder(256, null).encodeActiveChecks(host, hostMetadata, session, configRevision);
+            byte[] response = sender.exchange(request.getBuffer(), request.getOffset(), request.getLength());
+            @SuppressWarnings("unchecked")
+            Map<String, Object> content = jhandler.deserialize(new String(response, StandardCharsets.UTF_8), Map.class);
+            if (content == null || ! "success".equals(content.get("response"))) {
+                throw new RequestRefusedException("Zabbix failure: " + content);
+            }
+            Object data = content.get("data");
+            Object revision = content.get("config_revision");
+            if (data instanceof List) {
+                List<ActiveCheck> received = new ArrayList<>();
+                for (Object entry: (List<?>) data) {
+                    received.add(parseCheck((Map<?, ?>) entry));
+                }
+                checks = List.copyOf(received);
+            } else if (checks == null || ! (revision instanceof Number)) {
+                checks = List.of();
+            }
+            // Without data and with a revision, the checks are unchanged
+            configRevision = revision instanceof Number ? ((Number) revision).longValue() : -1;
+            refreshed = System.nanoTime();
+            return checks;
+        }
+    }
+
+    private ActiveCheck parseCheck(Map<?, ?> entry) {
+        return ActiveCheck.builder()
+                          .key((String) entry.get("key"))
+                          .itemid(toLong(entry.get("itemid"), -1))
+                          .delay(entry.get("delay") != null ? entry.get("delay").toString() : null)
+                          .lastlogsize(toLong(entry.get("lastlogsize"), 0))
+                          .mtime(toLong(entry.get("mtime"), 0))
+                          .build();
+    }
+
+    private static long toLong(Object value, long defaultValue) {
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+
+    /**
+     * Send values, after the requests that could not be sent before. Values without a host get the host of the agent.
+     * The request clock is the time of each exchange, so the server can correct the clock of the values.
+     *
+     * @param values the values to send
+     * @return the result of the last request
+     * @throws RequestNotSentException if too many requests are pending and they still can't be sent, the values are not
+     * kept and must be given again
+     * @throws IOException if a request could not be sent, it will be sent again with the next values, or if it was
+     * refused by the server
+     */
+    public synchronized SenderResult send(DataObject... values) throws IOException {
+        if (values.length > 0) {
+            if (pending.size() >= maxPending) {
+                try {
+                    flush();
+                } catch (RequestRefusedException ex) {
+                    // The refused request was dropped, there is room for the values
+                } catch (IOException ex) {
+                    throw new RequestNotSentException(ex);
+                }
+            }
+            try {
+                encoder.encodeAgentData(session, host, Arrays.asList(values), nextId, Instant.now());
+                pending.add(encoder.toByteArray());
+            } finally {
+                encoder.reset();
+            }
+            nextId += values.length;
+        }
+        return flush();
+    }
+
+    /**
+     * Send the requests that could not be sent before, oldest first.
+     *
+     * @return the result of the last request, an empty result if there was none
+     * @throws IOException if a request could not be sent, or if it was refused by the server
+     */
+    public synchronized SenderResult flush() throws IOException {
+        SenderResult result = SenderResult.builder().processed(0).failed(0).total(0).build();
+        while (! pending.isEmpty()) {
+            byte[] response = exchange(pending.peek());
+            pending.remove();
+            result = sender.parseResponse(response);
+        }
+        return result;
+    }
+
+    private byte[] exchange(byte[] request) throws IOException {
+        IOException failure = null;
+        for (int i = 0; i <= retries; i++) {
+            try {
+                encoder.restamp(request, Instant.now());
+                return sender.exchange(encoder.getBuffer(), encoder.getOffset(), encoder.getLength());
+            } catch (IOException ex) {
+                if (failure == null) {
+                    failure = ex;
+                } else {
+                    failure.addSuppressed(ex);
+                }
+            } finally {
+                encoder.reset();
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * @return the number of requests waiting to be sent again.
+     */
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+}
@@ -1,28 +1,56 @@
 package fr.loghub.zabbix.sender;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
+import fr.loghub.zabbix.DirectBufferPool;
+import fr.loghub.zabbix.ZabbixChannel;
+import fr.loghub.zabbix.ZabbixConnection;
 import fr.loghub.zabbix.ZabbixProtocol;
+import fr.loghub.zabbix.sender.Instrumentation.Phase;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.Setter;
+import lombok.ToString;
 import lombok.experimental.Accessors;
 
 /**
@@ -31,10 +59,35 @@ import lombok.experimental.Accessors;
  *
  */
 @Data
-public class ZabbixSender {
+public class ZabbixSender implements Closeable {
 
     private static final Pattern PATTERN = Pattern.compile("([a-z][a-z ]*): (\\d[\\d.]*)(?:; |$)");
 
+    public enum Transport {
+        /**
+         * Blocking I/O using a {@link Socket} from the {@link SocketFactory}.
+         */
+        SOCKET,
+        /**
+         * Non-blocking I/O using a {@link java.nio.channels.SocketChannel}, TLS requires a {@link SSLContext}.
+         */
+        NIO,
+    }
+
+    /**
+     * How a send waits for the rate and connection limits.
+     */
+    private enum Throttle {
+        BLOCK,
+        TRY,
+        // The values were reserved and a connection permit acquired before the send
+        RESERVED,
+    }
+
+    private static final LongConsumer NO_LATENCY = l -> { };
+    // Bound to the TLS sessions already used, to detect resumptions
+    private static final String HANDSHAKE_MARKER = ZabbixSender.class.getName() + ".handshake";
+
     @Accessors(fluent = true)
     public static class Builder {
         private String host;
@@ -42,12 +95,97 @@ public class ZabbixSender {
         private SocketAddress address;
         private long connectTimeout = 3000;
         private long socketTimeout = 3000;
+        /**
+         * Only needed for values that are not strings, numbers, booleans, maps, collections or arrays, and for unusual
+         * responses.
+         */
         @Setter
         private JsonHandler jhandler;
-        @Setter
         private SocketFactory factory = SocketFactory.getDefault();
+        private SSLContext sslContext = null;
         @Setter
         private SSLParameters sslParameters = null;
+        /**
+         * The maximum number of pooled connections, 0 disable pooling.
+         */
+        @Setter
+        private int maxConnections = 0;
+        private long idleTimeout = 60000;
+        /**
+         * The maximum number of exchanges done with a pooled connection, 0 or less for no limit.
+         */
+        @Setter
+        private int maxRequestsPerConnection = 0;
+        /**
+         * Check that a pooled connection was not closed by the peer before reusing it. It can add up to 1 ms of latency.
+         */
+        @Setter
+        private boolean testOnBorrow = false;
+        /**
+         * The minimum size of a request to be compressed, a negative value disable compression.
+         */
+        @Setter
+        private int compressionThreshold = -1;
+        @Setter
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        /**
+         * Allows packets bigger than 1 GiB, using the large packet header.
+         */
+        @Setter
+        private boolean largePacket = false;
+        @Setter
+        private Transport transport = Transport.SOCKET;
+        /**
+         * The maximum number of concurrent sends done by {@link ZabbixSender#sendAsync(DataObject...)}, the other ones
+         * wait for their turn.
+         */
+        @Setter
+        private int maxConcurrentSends = 64;
+        /**
+         * Run asynchronous sends on virtual threads when the JVM provides them, instead of a pool of
+         * <code>maxConcurrentSends</code> platform threads.
+         */
+        @Setter
+        private boolean virtualThreads = true;
+        /**
+         * Keep requests that could not be sent, to send them later. The spool is closed with the sender. Only the
+         * requests that failed before being fully written are spooled, a request lost after that might have been
+         * stored by the server and is not sent again, so the values are never duplicated.
+         */
+        @Setter
+        private Spool spool = null;
+        /**
+         * Receive the duration of each phase of the sends, and their failures.
+         */
+        @Setter
+        private Instrumentation instrumentation = Instrumentation.NONE;
+        /**
+         * The size of the client session cache of the SSL context, 0 for no limit. The default size is kept if negative.
+         */
+        @Setter
+        private int tlsSessionCacheSize = -1;
+        /**
+         * When a send has rejected values, the maximum number of extra requests used to find them, 0 disables it. The
+         * rejected values are found by bisection, so the accepted values of a split sub-batch are sent again.
+         */
+        @Setter
+        private int maxIsolationRequests = 0;
+        /**
+         * Limit the number of values sent per second.
+         */
+        @Setter
+        private RateLimiter valueRateLimit = null;
+        /**
+         * Limit the number of request bytes sent per second, before compression.
+         */
+        @Setter
+        private RateLimiter byteRateLimit = null;
+        /**
+         * The maximum number of exchanges done at the same time, and so of connections used, 0 for no limit.
+         */
+        @Setter
+        private int maxConcurrentConnections = 0;
+        private long tlsSessionTimeout = -1;
 
         public Builder connectTimeout(long value, TimeUnit unit) {
             connectTimeout = TimeUnit.MILLISECONDS.convert(value, unit);
@@ -63,12 +201,34 @@ public class ZabbixSender {
             }
             return this;
         }
+        public Builder idleTimeout(long value, TimeUnit unit) {
+            idleTimeout = TimeUnit.MILLISECONDS.convert(value, unit);
+            if (idleTimeout < 0) {
+                throw new IllegalArgumentException("Out of range timeout: " + idleTimeout + "ms");
+            }
+            return this;
+        }
+        /**
+         * How long a TLS session is kept in the client session cache of the SSL context, to be resumed.
+         */
+        public Builder tlsSessionTimeout(long value, TimeUnit unit) {
+            tlsSessionTimeout = TimeUnit.SECONDS.convert(value, unit);
+            if (tlsSessionTimeout < 0 || tlsSessionTimeout > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Out of range timeout: " + tlsSessionTimeout + "s");
+            }
+            return this;
+        }
         public Builder sslContext(SSLContext sslContext) {
+            this.sslContext = sslContext;
             factory = sslContext.getSocketFactory();
             return this;
         }
+        public Builder factory(SocketFactory factory) {
+            return socketFactory(factory);
+        }
         public Builder socketFactory(SocketFactory factory) {
             this.factory = factory;
+            this.sslContext = null;
             return this;
         }
         public Builder host(String host) {
@@ -106,7 +266,51 @@ public class ZabbixSender {
     @Getter
     private final SocketFactory factory;
     @Getter
+    private final SSLContext sslContext;
+    @Getter
+    private final Transport transport;
+    @Getter
     private final SSLParameters sslParameters;
+    @Getter
+    private final int compressionThreshold;
+    @Getter
+    private final int compressionLevel;
+    @Getter
+    private final boolean largePacket;
+    @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude @ToString.Exclude
+    private final ConnectionPool pool;
+    // The direct buffers of the NIO connections
+    @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude @ToString.Exclude
+    private final DirectBufferPool bufferPool;
+    @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude @ToString.Exclude
+    private final ThreadLocal<JsonEncoder> encoders;
+    @Getter
+    private final int maxConcurrentSends;
+    @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude @ToString.Exclude
+    private final Semaphore sendPermits;
+    @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude @ToString.Exclude
+    private final ExecutorService executor;
+    @Getter @EqualsAndHashCode.Exclude @ToString.Exclude
+    private final Spool spool;
+    @Getter @EqualsAndHashCode.Exclude @ToString.Exclude
+    private final Instrumentation instrumentation;
+    @Getter
+    private final int maxIsolationRequests;
+    @Getter @EqualsAndHashCode.Exclude @ToString.Exclude
+    private final RateLimiter valueRateLimit;
+    @Getter @EqualsAndHashCode.Exclude @ToString.Exclude
+    private final RateLimiter byteRateLimit;
+    @Getter
+    private final int maxConcurrentConnections;
+    @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude @ToString.Exclude
+    private final Semaphore connectionPermits;
+    // Asynchronous sends waiting for a connection permit, guarded by itself
+    @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude @ToString.Exclude
+    private final Deque<Runnable> connectionWaiters = new ArrayDeque<>();
+    @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude @ToString.Exclude
+    private final AtomicLong tlsHandshakes = new AtomicLong();
+    @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude @ToString.Exclude
+    private final AtomicLong tlsResumed = new AtomicLong();
 
     private ZabbixSender(Builder builder) {
         if (builder.address != null) {
@@ -118,7 +322,85 @@ public class ZabbixSender {
         socketTimeout = builder.socketTimeout;
         jhandler = builder.jhandler;
         factory = builder.factory;
+        sslContext = builder.sslContext;
+        transport = builder.transport;
+        if (transport == Transport.NIO && factory instanceof SSLSocketFactory && sslContext == null) {
+            throw new IllegalArgumentException("NIO transport requires an SSL context for TLS");
+        }
         sslParameters = builder.sslParameters;
+        bufferPool = transport == Transport.NIO ? DirectBufferPool.builder().build() : null;
+        if (sslContext != null) {
+            // Shared by all the users of the context, sessions are cached by host and port
+            SSLSessionContext sessions = sslContext.getClientSessionContext();
+            if (builder.tlsSessionCacheSize >= 0) {
+                sessions.setSessionCacheSize(builder.tlsSessionCacheSize);
+            }
+            if (builder.tlsSessionTimeout >= 0) {
+                sessions.setSessionTimeout((int) builder.tlsSessionTimeout);
+            }
+        } else if (builder.tlsSessionCacheSize >= 0 || builder.tlsSessionTimeout >= 0) {
+            throw new IllegalArgumentException("TLS session cache settings require an SSL context");
+        }
+        if (builder.compressionLevel < Deflater.DEFAULT_COMPRESSION || builder.compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + builder.compressionLevel);
+        }
+        compressionThreshold = builder.compressionThreshold;
+        compressionLevel = builder.compressionLevel;
+        largePacket = builder.largePacket;
+        // The JSON handler is only needed for unusual values
+        encoders = ThreadLocal.withInitial(() -> new JsonEncoder(4096, jhandler != null ? jhandler::serialize : null));
+        if (builder.maxConnections > 0) {
+            pool = new ConnectionPool(this::connect, builder.maxConnections, builder.idleTimeout,
+                                      builder.maxRequestsPerConnection, builder.testOnBorrow,
+                                      connectTimeout);
+        } else {
+            pool = null;
+        }
+        if (builder.maxConcurrentSends <= 0) {
+            throw new IllegalArgumentException("Invalid concurrent sends limit: " + builder.maxConcurrentSends);
+        }
+        maxConcurrentSends = builder.maxConcurrentSends;
+        sendPermits = new Semaphore(maxConcurrentSends, true);
+        executor = newExecutor(builder.virtualThreads, maxConcurrentSends);
+        if (builder.maxIsolationRequests < 0) {
+            throw new IllegalArgumentException("Invalid isolation requests limit: " + builder.maxIsolationRequests);
+        }
+        maxIsolationRequests = builder.maxIsolationRequests;
+        valueRateLimit = builder.valueRateLimit;
+        byteRateLimit = builder.byteRateLimit;
+        if (builder.maxConcurrentConnections < 0) {
+            throw new IllegalArgumentException("Invalid concurrent connections limit: " + builder.maxConcurrentConnections);
+        }
+        maxConcurrentConnections = builder.maxConcurrentConnections;
+        connectionPermits = maxConcurrentConnections > 0 ? new Semaphore(maxConcurrentConnections) : null;
+        instrumentation = builder.instrumentation != null ? builder.instrumentation : Instrumentation.NONE;
+        spool = builder.spool;
+        if (spool != null) {
+            spool.start(this::replay);
+        }
+    }
+
+    /**
+     * Threads are only created when needed, so a sender that is never used asynchronously costs nothing.
+     */
+    private static ExecutorService newExecutor(boolean virtualThreads, int threads) {
+        if (virtualThreads) {
+            try {
+                // Java 21 and later
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+                // Not available, uses platform threads
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor platformExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                                                     new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "ZabbixSender/" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        platformExecutor.allowCoreThreadTimeOut(true);
+        return platformExecutor;
     }
 
     public SenderResult send(DataObject... dataObjectList) throws IOException {
@@ -126,6 +408,8 @@ public class ZabbixSender {
     }
 
     /**
+     * If some values are rejected and <code>maxIsolationRequests</code> is set, they are searched and listed in the
+     * <code>rejected</code> values of the {@link SenderResult}.
      *
      * @param clock
      * @param dataObjectList
@@ -133,27 +417,589 @@ public class ZabbixSender {
      * @throws IOException
      */
     public SenderResult send(Instant clock, DataObject... dataObjectList) throws IOException {
-        try (Socket socket = factory.createSocket();
-             ZabbixProtocol dialog = new ZabbixProtocol(socket)) {
+        return send(clock, dataObjectList, Throttle.BLOCK, NO_LATENCY);
+    }
+
+    /**
+     * @param latency gets the duration of a successful send, without the time spent waiting for the limits
+     */
+    SenderResult send(Instant clock, DataObject[] dataObjectList, LongConsumer latency) throws IOException {
+        return send(clock, dataObjectList, Throttle.BLOCK, latency);
+    }
+
+    public SenderResult trySend(DataObject... dataObjectList) throws IOException {
+        return trySend(Instant.now(), dataObjectList);
+    }
+
+    /**
+     * Send values only if the rate and connection limits allow it now, without waiting.
+     *
+     * @param clock
+     * @param dataObjectList
+     * @return
+     * @throws IOException
+     * @throws RejectedExecutionException if a limit is reached, nothing was sent
+     */
+    public SenderResult trySend(Instant clock, DataObject... dataObjectList) throws IOException {
+        return send(clock, dataObjectList, Throttle.TRY, NO_LATENCY);
+    }
+
+    private SenderResult send(Instant clock, DataObject[] dataObjectList, Throttle throttle, LongConsumer latency) throws IOException {
+        List<DataObject> values = Arrays.asList(dataObjectList);
+        SenderResult result = send(clock, values, spool != null, throttle, latency);
+        if (maxIsolationRequests > 0 && result.getFailed() > 0 && ! result.isSpooled()) {
+            // Only a blocking send can wait for the limits during the isolation
+            return isolate(values, result, throttle == Throttle.BLOCK ? Throttle.BLOCK : Throttle.TRY);
+        } else {
+            return result;
+        }
+    }
+
+    private SenderResult send(Instant clock, List<DataObject> values, boolean spooling, Throttle throttle, LongConsumer latency) throws IOException {
+        return send(values.size(), encoder -> encoder.encode(SenderRequest.builder().data(values).clock(clock).build()),
+                    spooling, throttle, latency);
+    }
+
+    /**
+     * Find the rejected values by bisection. Only the first half of a split sub-batch is sent, the failures of the
+     * second half are deduced from the counts. A sub-batch that can't be sent, because a limit is reached, is unresolved.
+     */
+    private SenderResult isolate(List<DataObject> values, SenderResult result, Throttle throttle) {
+        List<DataObject> rejected = new ArrayList<>();
+        List<DataObject> unresolved = new ArrayList<>();
+        // Sub-batches with their failed count
+        Deque<Map.Entry<List<DataObject>, Integer>> suspects = new ArrayDeque<>();
+        suspects.push(Map.entry(values, result.getFailed()));
+        int requests = 0;
+        while (! suspects.isEmpty()) {
+            Map.Entry<List<DataObject>, Integer> suspect = suspects.pop();
+            List<DataObject> batch = suspect.getKey();
+            int failed = suspect.getValue();
+            if (failed <= 0) {
+                continue;
+            } else if (failed >= batch.size()) {
+                rejected.addAll(batch);
+                continue;
+            } else if (requests >= maxIsolationRequests) {
+                unresolved.addAll(batch);
+                continue;
+            }
+            List<DataObject> left = batch.subList(0, batch.size() / 2);
+            List<DataObject> right = batch.subList(batch.size() / 2, batch.size());
+            requests++;
+            int leftFailed;
+            try {
+                // A new clock, like a replayed request, and never spooled
+                leftFailed = send(Instant.now(), left, false, throttle, NO_LATENCY).getFailed();
+            } catch (IOException | RuntimeException ex) {
+                leftFailed = -1;
+            }
+            if (leftFailed < 0 || leftFailed > failed) {
+                // The split can't be trusted
+                unresolved.addAll(batch);
+            } else {
+                suspects.push(Map.entry(right, failed - leftFailed));
+                suspects.push(Map.entry(left, leftFailed));
+            }
+        }
+        return result.toBuilder().rejected(rejected).unresolved(unresolved).build();
+    }
+
+    public SenderResult send(DataBatch batch) throws IOException {
+        return send(Instant.now(), batch);
+    }
+
+    /**
+     * Send a batch of numeric values, without creating an object for each value.
+     *
+     * @param clock
+     * @param batch
+     * @return
+     * @throws IOException
+     */
+    public SenderResult send(Instant clock, DataBatch batch) throws IOException {
+        return send(batch.size(), encoder -> encoder.encode(batch, clock), spool != null, Throttle.BLOCK, NO_LATENCY);
+    }
+
+    public SenderResult send(PreparedBatch batch) throws IOException {
+        return send(Instant.now(), batch);
+    }
+
+    /**
+     * Send the values of a prepared batch. Only the values and the clocks are encoded, the items were encoded once.
+     *
+     * @param clock the clock of the request, also used by the values without their own clock
+     * @param batch
+     * @return
+     * @throws IOException
+     */
+    public SenderResult send(Instant clock, PreparedBatch batch) throws IOException {
+        return send(batch.size(), encoder -> encoder.encode(batch, clock), spool != null, Throttle.BLOCK, NO_LATENCY);
+    }
+
+    private SenderResult send(int values, Consumer<JsonEncoder> request, boolean spooling, Throttle throttle, LongConsumer latency) throws IOException {
+        // A reserved send already holds a connection permit
+        boolean connected = throttle == Throttle.RESERVED;
+        long start = System.nanoTime();
+        JsonEncoder encoder = encoders.get().reset();
+        long throttled;
+        byte[] responseBuffer;
+        try {
+            try {
+                request.accept(encoder);
+            } catch (RuntimeException ex) {
+                instrumentation.failed(Phase.SERIALIZE, ex);
+                throw ex;
+            }
+            long serialized = System.nanoTime();
+            instrumentation.phase(Phase.SERIALIZE, serialized - start);
+            int bytes = encoder.getLength();
+            // All the waiting is done before the exchange, an interrupted send is never spooled
+            if (throttle == Throttle.BLOCK) {
+                throttle(values, bytes);
+                acquireConnection(true);
+            } else if (throttle == Throttle.TRY) {
+                tryThrottle(values, bytes);
+                try {
+                    acquireConnection(false);
+                } catch (RejectedExecutionException ex) {
+                    // No connection available, nothing was sent
+                    release(valueRateLimit, values);
+                    release(byteRateLimit, bytes);
+                    throw ex;
+                }
+            } else if (byteRateLimit != null) {
+                // Taken without waiting, the next sends will wait for them
+                byteRateLimit.reserve(bytes);
+            }
+            connected = true;
+            throttled = System.nanoTime() - serialized;
+            try {
+                responseBuffer = doExchange(encoder.getBuffer(), encoder.getOffset(), bytes);
+            } catch (IOException ex) {
+                // Once written, the server might have stored the values, spooling them could duplicate them
+                if (spooling && ex instanceof RequestNotSentException && spoolRequest(encoder, ex)) {
+                    return SenderResult.builder().spooled(true).build();
+                } else {
+                    throw ex;
+                }
+            }
+        } finally {
+            if (connected) {
+                releaseConnection();
+            }
+            // Don't keep a big buffer
+            encoder.reset();
+        }
+        SenderResult result = parseResponse(responseBuffer);
+        long elapsed = System.nanoTime() - start - throttled;
+        instrumentation.sent(values, result, elapsed);
+        latency.accept(elapsed);
+        return result;
+    }
+
+    /**
+     * @return the time spent waiting, in nanoseconds
+     */
+    private long throttle(RateLimiter limiter, long permits) throws IOException {
+        if (limiter == null) {
+            return 0;
+        }
+        try {
+            return limiter.acquire(permits);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while throttled", ex);
+        }
+    }
+
+    private void tryThrottle(int values, int bytes) {
+        if (valueRateLimit != null && ! valueRateLimit.tryAcquire(values)) {
+            throw new RejectedExecutionException("Value rate limit reached");
+        }
+        if (byteRateLimit != null && ! byteRateLimit.tryAcquire(bytes)) {
+            release(valueRateLimit, values);
+            throw new RejectedExecutionException("Byte rate limit reached");
+        }
+    }
+
+    private void release(RateLimiter limiter, long permits) {
+        if (limiter != null) {
+            limiter.release(permits);
+        }
+    }
+
+    private boolean spoolRequest(JsonEncoder encoder, IOException failure) {
+        try {
+            return spool.append(encoder.getBuffer(), encoder.getOffset(), encoder.getLength());
+        } catch (IOException ex) {
+            failure.addSuppressed(ex);
+            return false;
+        }
+    }
+
+    /**
+     * Send a spooled request. The request clock is set to now, as Zabbix uses it to correct the clock of the values.
+     * A request refused by the server is dropped, only an exchange that failed before the request was written is
+     * retried, as the server might have stored the values of a written request.
+     */
+    private void replay(byte[] request) throws IOException {
+        JsonEncoder encoder = encoders.get().reset();
+        byte[] responseBuffer;
+        try {
+            encoder.restamp(request, Instant.now());
+            responseBuffer = exchange(encoder.getBuffer(), encoder.getOffset(), encoder.getLength());
+        } catch (RequestNotSentException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            // Written, sending it again could duplicate the values
+            return;
+        } finally {
+            encoder.reset();
+        }
+        try {
+            parseResponse(responseBuffer);
+        } catch (IOException | RuntimeException ex) {
+            // Retrying would not help
+        }
+    }
+
+    SenderResult parseResponse(byte[] responseBuffer) throws IOException {
+        long start = System.nanoTime();
+        try {
+            SenderResult result = decodeResponse(responseBuffer);
+            instrumentation.phase(Phase.PARSE, System.nanoTime() - start);
+            return result;
+        } catch (IOException | RuntimeException ex) {
+            instrumentation.failed(Phase.PARSE, ex);
+            throw ex;
+        }
+    }
+
+    private SenderResult decodeResponse(byte[] responseBuffer) throws IOException {
+        SenderResult result = ResponseParser.parse(responseBuffer);
+        if (result != null) {
+            return result;
+        }
+        // A failure or an unusual response
+        String content = new String(responseBuffer, StandardCharsets.UTF_8);
+        if (jhandler == null) {
+            throw new RequestRefusedException("Zabbix failure: " + content);
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> responseObject = jhandler.deserialize(content, Map.class);
+
+        String response = (String) responseObject.get("response");
+        if (!"success".equals(response)) {
+            throw new RequestRefusedException("Zabbix failure: " + responseObject);
+        }
+        return parseResultsString(responseObject.get("info").toString());
+    }
+
+    public CompletableFuture<SenderResult> sendAsync(DataObject... dataObjectList) {
+        return sendAsync(Instant.now(), dataObjectList);
+    }
+
+    /**
+     * Send values without blocking the caller. At most <code>maxConcurrentSends</code> sends are done at the same
+     * time, the others wait in a queue. No thread is held while waiting for the limits: the values are reserved at
+     * once and the send only starts when they are available and a connection permit is free. As the size of the
+     * request is only known once encoded, its bytes are taken without waiting, and the next sends wait for them.
+     *
+     * @param clock
+     * @param dataObjectList
+     * @return the result of the send, it fails with the exception that {@link #send(Instant, DataObject...)} would throw
+     */
+    public CompletableFuture<SenderResult> sendAsync(Instant clock, DataObject... dataObjectList) {
+        CompletableFuture<SenderResult> result = new CompletableFuture<>();
+        long wait = valueRateLimit != null ? valueRateLimit.reserve(dataObjectList.length) : 0;
+        if (byteRateLimit != null) {
+            // Wait for the bytes already taken
+            wait = Math.max(wait, byteRateLimit.reserve(0));
+        }
+        if (wait > 0) {
+            instrumentation.phase(Phase.THROTTLE, wait);
+            CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS).execute(() -> submit(result, clock, dataObjectList));
+        } else {
+            submit(result, clock, dataObjectList);
+        }
+        return result;
+    }
+
+    private void submit(CompletableFuture<SenderResult> result, Instant clock, DataObject[] dataObjectList) {
+        acquireConnectionAsync(() -> {
+            try {
+                executor.execute(() -> {
+                    try {
+                        sendPermits.acquire();
+                    } catch (InterruptedException ex) {
+                        releaseConnection();
+                        Thread.currentThread().interrupt();
+                        result.completeExceptionally(new IOException("Interrupted while waiting to send", ex));
+                        return;
+                    }
+                    try {
+                        // The connection permit is released by the send
+                        result.complete(send(clock, dataObjectList, Throttle.RESERVED, NO_LATENCY));
+                    } catch (IOException | RuntimeException ex) {
+                        result.completeExceptionally(ex);
+                    } finally {
+                        sendPermits.release();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                releaseConnection();
+                result.completeExceptionally(ex);
+            }
+        });
+    }
+
+    /**
+     * @return a session that pipelines requests on a single connection, with at most 16 requests in flight.
+     */
+    public ZabbixSession session() {
+        return session(16);
+    }
+
+    /**
+     * @param maxInFlight the maximum number of requests sent and waiting for their response
+     * @return a session that pipelines requests on a single connection.
+     */
+    public ZabbixSession session(int maxInFlight) {
+        return new ZabbixSession(this, maxInFlight);
+    }
+
+    byte[] exchange(byte[] buffer, int offset, int length) throws IOException {
+        acquireConnection(true);
+        try {
+            return doExchange(buffer, offset, length);
+        } finally {
+            releaseConnection();
+        }
+    }
+
+    /**
+     * @param wait if false and no connection is available, a {@link RejectedExecutionException} is thrown
+     */
+    private void acquireConnection(boolean wait) throws IOException {
+        if (connectionPermits != null && ! connectionPermits.tryAcquire()) {
+            if (! wait) {
+                throw new RejectedExecutionException("Connection limit reached");
+            }
+            long start = System.nanoTime();
+            try {
+                connectionPermits.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while throttled", ex);
+            }
+            instrumentation.phase(Phase.THROTTLE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Run a task once a connection permit is available, without blocking. The task owns the permit and must release
+     * it.
+     */
+    private void acquireConnectionAsync(Runnable task) {
+        if (connectionPermits != null) {
+            synchronized (connectionWaiters) {
+                // Waiting tasks are served first
+                if (! connectionWaiters.isEmpty() || ! connectionPermits.tryAcquire()) {
+                    connectionWaiters.addLast(task);
+                    return;
+                }
+            }
+        }
+        task.run();
+    }
+
+    private void releaseConnection() {
+        if (connectionPermits != null) {
+            Runnable next;
+            synchronized (connectionWaiters) {
+                next = connectionWaiters.pollFirst();
+                if (next == null) {
+                    connectionPermits.release();
+                }
+            }
+            if (next != null) {
+                // The permit is handed over, the task only submits the send
+                next.run();
+            }
+        }
+    }
+
+    /**
+     * Wait for the rate limits, used by the requests that are not sent by this sender.
+     */
+    void throttle(int values, int bytes) throws IOException {
+        long throttled = throttle(valueRateLimit, values);
+        throttled += throttle(byteRateLimit, bytes);
+        if (throttled > 0) {
+            instrumentation.phase(Phase.THROTTLE, throttled);
+        }
+    }
+
+    /**
+     * Get a connection for many exchanges, counted by the connection limit and borrowed from the pool if pooling is
+     * enabled. It must be given back with {@link #giveBack(ZabbixConnection, boolean)}.
+     */
+    ZabbixConnection lease() throws IOException {
+        acquireConnection(true);
+        try {
+            return pool != null ? pool.borrow() : connect();
+        } catch (IOException | RuntimeException ex) {
+            releaseConnection();
+            throw ex;
+        }
+    }
+
+    /**
+     * @param reusable false if the connection failed, it's closed
+     */
+    void giveBack(ZabbixConnection connection, boolean reusable) {
+        try {
+            if (pool != null) {
+                pool.giveBack(connection, reusable);
+            } else {
+                connection.close();
+            }
+        } catch (IOException ex) {
+            // Nothing to do, it's discarded anyway
+        } finally {
+            releaseConnection();
+        }
+    }
+
+    private byte[] doExchange(byte[] buffer, int offset, int length) throws IOException {
+        if (pool != null) {
+            return pool.exchange(buffer, offset, length);
+        } else {
+            ZabbixConnection dialog;
+            try {
+                dialog = connect();
+            } catch (IOException ex) {
+                throw new RequestNotSentException(ex);
+            }
+            try (dialog) {
+                try {
+                    dialog.send(buffer, offset, length);
+                } catch (IOException ex) {
+                    throw new RequestNotSentException(ex);
+                }
+                return dialog.read();
+            }
+        }
+    }
+
+    ZabbixConnection connect() throws IOException {
+        ZabbixConnection connection = doConnect();
+        return instrumentation == Instrumentation.NONE ? connection : new InstrumentedConnection(connection, instrumentation);
+    }
+
+    private ZabbixConnection doConnect() throws IOException {
+        long start = System.nanoTime();
+        if (transport == Transport.NIO) {
+            ZabbixChannel channel;
+            try {
+                channel = ZabbixChannel.builder()
+                                       .address(address)
+                                       .sslContext(sslContext)
+                                       .sslParameters(sslParameters)
+                                       .connectTimeout((int) connectTimeout)
+                                       .socketTimeout((int) socketTimeout)
+                                       .compressionThreshold(compressionThreshold)
+                                       .compressionLevel(compressionLevel)
+                                       .largePacket(largePacket)
+                                       .bufferPool(bufferPool)
+                                       .connect();
+            } catch (IOException | RuntimeException ex) {
+                instrumentation.failed(Phase.CONNECT, ex);
+                throw ex;
+            }
+            long handshake = channel.getHandshakeNanos();
+            instrumentation.phase(Phase.CONNECT, System.nanoTime() - start - handshake);
+            if (channel.getEngine() != null) {
+                instrumentation.phase(Phase.HANDSHAKE, handshake);
+                countHandshake(channel.getEngine().getSession());
+            }
+            return channel;
+        }
+        Phase phase = Phase.CONNECT;
+        Socket socket = factory.createSocket();
+        try {
             socket.setSoTimeout((int)socketTimeout);
             if (socket instanceof SSLSocket && sslParameters != null) {
                 ((SSLSocket)socket).setSSLParameters(sslParameters);
             }
             socket.connect(address, (int)connectTimeout);
-            SenderRequest.SenderRequestBuilder builder = SenderRequest.builder();
-            Arrays.stream(dataObjectList).forEach(builder::data);
-            SenderRequest senderRequest = builder.clock(clock).build();
+            instrumentation.phase(Phase.CONNECT, System.nanoTime() - start);
+            if (socket instanceof SSLSocket) {
+                // Done explicitly, to be measured
+                phase = Phase.HANDSHAKE;
+                start = System.nanoTime();
+                ((SSLSocket)socket).startHandshake();
+                instrumentation.phase(Phase.HANDSHAKE, System.nanoTime() - start);
+                countHandshake(((SSLSocket)socket).getSession());
+            }
+            return ZabbixProtocol.builder()
+                                 .connection(socket)
+                                 .compressionThreshold(compressionThreshold)
+                                 .compressionLevel(compressionLevel)
+                                 .largePacket(largePacket)
+                                 .build();
+        } catch (IOException | RuntimeException ex) {
+            instrumentation.failed(phase, ex);
+            socket.close();
+            throw ex;
+        }
+    }
 
-            dialog.send(jhandler.serialize(senderRequest.getJsonObject()).getBytes(StandardCharsets.UTF_8));
-            byte[] responseBuffer = dialog.read();
-            @SuppressWarnings("unchecked")
-            Map<String, Object> responseObject = jhandler.deserialize(new String(responseBuffer, StandardCharsets.UTF_8), Map.class);
+    /**
+     * A full handshake creates a new session, without any bound value. A resumed session keeps the values bound to the
+     * original one, with TLS 1.3 too, where the JDK creates a new session with a new id when resuming.
+     */
+    private void countHandshake(SSLSession session) {
+        boolean resumed = session.getValue(HANDSHAKE_MARKER) != null;
+        session.putValue(HANDSHAKE_MARKER, Boolean.TRUE);
+        tlsHandshakes.incrementAndGet();
+        if (resumed) {
+            tlsResumed.incrementAndGet();
+        }
+    }
 
-            String response = (String) responseObject.get("response");
-            if (!"success".equals(response)) {
-                throw new IOException("Zabbix failure: " + responseObject);
-            }
-            return parseResultsString(responseObject.get("info").toString());
+    /**
+     * @return the TLS handshakes done, resumed or not.
+     */
+    public TlsStatistics getTlsStatistics() {
+        return TlsStatistics.builder().handshakes(tlsHandshakes.get()).resumed(tlsResumed.get()).build();
+    }
+
+    /**
+     * @return the pool activity, or null if pooling is disabled.
+     */
+    public PoolStatistics getPoolStatistics() {
+        return pool != null ? pool.getStatistics() : null;
+    }
+
+    /**
+     * Wait for the pending asynchronous sends and close all the pooled connections. Asynchronous sending is not
+     * possible any more, nor synchronous sending if pooling is enabled.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(connectTimeout + socketTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (spool != null) {
+            spool.close();
+        }
+        if (pool != null) {
+            pool.close();
         }
     }
 
@@ -0,0 +1,180 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import fr.loghub.zabbix.ConnectionClosedException;
+import fr.loghub.zabbix.ZabbixConnection;
+import lombok.Getter;
+
+/**
+ * A session that sends many requests on a single connection, without waiting for each response before writing the
+ * next request. Responses are matched to requests in order, at most <code>maxInFlight</code> requests are waiting for
+ * their response.
+ * <p>
+ * The connection is taken from the pool of the {@link ZabbixSender} if pooling is enabled, and counts for its
+ * concurrent connections limit until the session is closed. The requests are throttled by the rate limits of the
+ * sender.
+ * <p>
+ * For each call, the first request on a new connection is sent alone. If the peer closes the connection after its
+ * first response, like Zabbix servers do, the remaining requests of the call are sent using {@link ZabbixSender}, with
+ * a connection per request or from its pool. A request without a response when the connection was closed is sent
+ * again, so the peer might see it twice. After a read timeout, the requests are not sent again, as the peer might
+ * still process them.
+ * <p>
+ * A session is not thread safe and is not spooled. It's obtained with {@link ZabbixSender#session(int)}.
+ */
+public class ZabbixSession implements Closeable {
+
+    private final ZabbixSender sender;
+    @Getter
+    private final int maxInFlight;
+    private final JsonEncoder encoder;
+    private ZabbixConnection connection = null;
+    // Responses read from the current connection during the current call
+    private int answered = 0;
+    /**
+     * False if the peer was found to close the connection after each response during the last call.
+     */
+    @Getter
+    private boolean pipelined = true;
+
+    ZabbixSession(ZabbixSender sender, int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Invalid in-flight limit: " + maxInFlight);
+        }
+        this.sender = sender;
+        this.maxInFlight = maxInFlight;
+        JsonHandler jhandler = sender.getJhandler();
+        this.encoder = new JsonEncoder(4096, jhandler != null ? jhandler::serialize : null);
+    }
+
+    public List<SenderResult> send(List<? extends Collection<DataObject>> requests) throws IOException {
+        return send(Instant.now(), requests);
+    }
+
+    /**
+     * Send many requests, each one holding some values.
+     *
+     * @param clock the clock of all the requests
+     * @param requests the values of each request
+     * @return the result of each request, in the same order
+     * @throws IOException if a request failed or was refused
+     */
+    public List<SenderResult> send(Instant clock, List<? extends Collection<DataObject>> requests) throws IOException {
+        int count = requests.size();
+        byte[][] responses = new byte[count][];
+        // The start of each exchange, then its duration
+        long[] latencies = new long[count];
+        // The peer might have changed since the last call
+        pipelined = true;
+        answered = 0;
+        int done = 0;
+        try {
+            while (done < count) {
+                if (pipelined) {
+                    done = pipeline(clock, requests, responses, latencies, done);
+                } else {
+                    encode(clock, requests.get(done));
+                    latencies[done] = System.nanoTime();
+                    responses[done] = sender.exchange(encoder.getBuffer(), encoder.getOffset(), encoder.getLength());
+                    latencies[done] = System.nanoTime() - latencies[done];
+                    done++;
+                }
+            }
+        } finally {
+            // Don't keep a big buffer
+            encoder.reset();
+        }
+        List<SenderResult> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            SenderResult result = sender.parseResponse(responses[i]);
+            sender.getInstrumentation().sent(requests.get(i).size(), result, latencies[i]);
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Exchange requests on the current connection, until all are answered or the connection fails.
+     *
+     * @return the index of the first request without a response
+     */
+    private int pipeline(Instant clock, List<? extends Collection<DataObject>> requests, byte[][] responses, long[] latencies, int first) throws IOException {
+        boolean reused = connection != null;
+        if (! reused) {
+            connection = sender.lease();
+        }
+        int sent = first;
+        int received = first;
+        boolean written = true;
+        try {
+            while (received < requests.size()) {
+                // Wait for a response before trusting the peer with more requests
+                int window = answered == 0 ? 1 : maxInFlight;
+                while (sent < requests.size() && sent - received < window) {
+                    encode(clock, requests.get(sent));
+                    latencies[sent] = System.nanoTime();
+                    written = false;
+                    connection.send(encoder.getBuffer(), encoder.getOffset(), encoder.getLength());
+                    written = true;
+                    sent++;
+                }
+                responses[received] = connection.read();
+                latencies[received] = System.nanoTime() - latencies[received];
+                received++;
+                answered++;
+            }
+            return received;
+        } catch (SocketTimeoutException ex) {
+            // The peer might still process the requests, they are not sent again
+            closeConnection(false);
+            throw ex;
+        } catch (IOException ex) {
+            int connectionAnswered = answered;
+            closeConnection(false);
+            if (connectionAnswered == 0) {
+                if (reused && (! written || ex instanceof ConnectionClosedException)) {
+                    // A kept alive connection closed while idle, the request was not processed
+                    return received;
+                }
+                // Even a single request failed
+                throw ex;
+            } else if (connectionAnswered == 1 && ! reused) {
+                // The peer closes the connection after each response
+                pipelined = false;
+            }
+            // Otherwise the peer closed a kept alive connection, a new one will be used
+            return received;
+        }
+    }
+
+    private void encode(Instant clock, Collection<DataObject> values) throws IOException {
+        SenderRequest.SenderRequestBuilder builder = SenderRequest.builder();
+        values.forEach(builder::data);
+        encoder.reset().encode(builder.clock(clock).build());
+        sender.throttle(values.size(), encoder.getLength());
+    }
+
+    private void closeConnection(boolean reusable) {
+        if (connection != null) {
+            sender.giveBack(connection, reusable);
+            connection = null;
+        }
+        answered = 0;
+    }
+
+    /**
+     * Release the connection of the session, the sender is not closed.
+     */
+    @Override
+    public void close() {
+        closeConnection(true);
+    }
+
+}
@@ -0,0 +1,52 @@
+package fr.loghub.zabbix;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DirectBufferPoolTest {
+
+    @Test
+    public void testReuse() {
+        DirectBufferPool pool = DirectBufferPool.builder().maxPooled(1).build();
+        ByteBuffer first = pool.acquire(1000);
+        Assert.assertTrue(first.isDirect());
+        Assert.assertEquals(1024, first.capacity());
+        first.put((byte) 1);
+        pool.release(first);
+        ByteBuffer second = pool.acquire(1024);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(0, second.position());
+        Assert.assertEquals(1024, second.limit());
+        // Another capacity
+        Assert.assertEquals(2048, pool.acquire(1025).capacity());
+        Assert.assertEquals(2, pool.getAllocated());
+    }
+
+    @Test
+    public void testMaxPooled() {
+        DirectBufferPool pool = DirectBufferPool.builder().maxPooled(1).build();
+        ByteBuffer first = pool.acquire(16);
+        ByteBuffer second = pool.acquire(16);
+        pool.release(first);
+        // Dropped, one is already free
+        pool.release(second);
+        Assert.assertSame(first, pool.acquire(16));
+        Assert.assertNotSame(second, pool.acquire(16));
+        Assert.assertEquals(3, pool.getAllocated());
+        // Not allocated by a pool
+        pool.release(ByteBuffer.allocate(16));
+        pool.release(ByteBuffer.allocateDirect(17));
+        pool.acquire(16);
+        Assert.assertEquals(4, pool.getAllocated());
+    }
+
+    @Test
+    public void testInvalid() {
+        Assert.assertThrows(IllegalArgumentException.class, () -> DirectBufferPool.builder().maxPooled(-1).build());
+        DirectBufferPool pool = DirectBufferPool.builder().build();
+        Assert.assertThrows(IllegalArgumentException.class, () -> pool.acquire(-1));
+    }
+
+}
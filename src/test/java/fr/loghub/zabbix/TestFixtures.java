@@ -0,0 +1,46 @@
+package fr.loghub.zabbix;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import com.alibaba.fastjson.JSON;
+
+import fr.loghub.zabbix.receiver.ZabbixReceiver;
+import fr.loghub.zabbix.sender.JsonHandler;
+
+/**
+ * Shared fixtures for the tests, the benchmarks and the load generator.
+ */
+public class TestFixtures {
+
+    public static final JsonHandler JSON_HANDLER = new JsonHandler() {
+        @Override
+        public String serialize(Object data) {
+            return JSON.toJSONString(data);
+        }
+
+        @Override
+        public <T> T deserialize(String content, Class<T> clazz) {
+            return JSON.parseObject(content, clazz);
+        }
+    };
+
+    /**
+     * @return a receiver builder, listening on a free port of the loopback address.
+     */
+    public static ZabbixReceiver.Builder receiverBuilder(ZabbixReceiver.Sink sink) {
+        return ZabbixReceiver.builder()
+                             .address(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+                             .jhandler(JSON_HANDLER)
+                             .sink(sink);
+    }
+
+    public static ZabbixReceiver receiver(ZabbixReceiver.Sink sink) throws IOException {
+        return receiverBuilder(sink).bind();
+    }
+
+    private TestFixtures() {
+    }
+
+}
@@ -0,0 +1,93 @@
+package fr.loghub.zabbix;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZabbixChannelTest {
+
+    /**
+     * Send back each request, compressed if asked to.
+     */
+    private static Thread echo(ServerSocket server, int connections, boolean compressed) {
+        Thread t = new Thread(() -> {
+            for (int i = 0; i < connections; i++) {
+                try (Socket client = server.accept();
+                     ZabbixProtocol protocol = ZabbixProtocol.builder()
+                                                             .connection(client)
+                                                             .compressionThreshold(compressed ? 0 : -1)
+                                                             .build()) {
+                    while (true) {
+                        protocol.send(protocol.read());
+                    }
+                } catch (IOException ex) {
+                    // Next connection
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    @Test(timeout = 5000)
+    public void testBuffersReused() throws IOException {
+        DirectBufferPool pool = DirectBufferPool.builder().build();
+        for (boolean compressed: new boolean[]{false, true}) {
+            try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                echo(server, 4, compressed);
+                for (int i = 0; i < 4; i++) {
+                    try (ZabbixChannel channel = ZabbixChannel.builder()
+                                                              .address(server.getLocalSocketAddress())
+                                                              .bufferPool(pool)
+                                                              .connect()) {
+                        // Growing responses, and a smaller one again
+                        for (int size: new int[]{10, 1000, 100000, 10}) {
+                            byte[] request = "a".repeat(size).getBytes(StandardCharsets.UTF_8);
+                            channel.send(request);
+                            Assert.assertArrayEquals(request, channel.read());
+                        }
+                    }
+                }
+            }
+        }
+        // Only the header buffer of the first channel
+        Assert.assertEquals(1, pool.getAllocated());
+    }
+
+    @Test(timeout = 5000)
+    public void testInterrupted() throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             ZabbixChannel channel = ZabbixChannel.builder()
+                                                  .address(server.getLocalSocketAddress())
+                                                  .socketTimeout(0)
+                                                  .connect()) {
+            Thread reader = Thread.currentThread();
+            Thread interrupter = new Thread(() -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ex) {
+                    // Interrupt anyway
+                }
+                reader.interrupt();
+            });
+            interrupter.start();
+            try {
+                // Never answered
+                InterruptedIOException ex = Assert.assertThrows(InterruptedIOException.class, channel::read);
+                Assert.assertFalse(ex instanceof SocketTimeoutException);
+                Assert.assertTrue(Thread.currentThread().isInterrupted());
+            } finally {
+                Thread.interrupted();
+            }
+        }
+    }
+
+}
@@ -1,7 +1,18 @@
 package fr.loghub.zabbix;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Assert;
@@ -21,4 +32,258 @@ public class ZabbixProtocolTest {
             Assert.assertEquals(j, i);
         }
     }
+
+    private byte[] repetitive() {
+        return "{\"host\":\"localhost\",\"key\":\"compressed\",\"value\":1},".repeat(100).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test(timeout = 5000)
+    public void testCompressedRoundTrip() throws IOException {
+        byte[] request = repetitive();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+             Socket accepted = server.accept();
+             ZabbixProtocol sender = ZabbixProtocol.builder().connection(client).compressionThreshold(0).build();
+             ZabbixProtocol receiver = new ZabbixProtocol(accepted)) {
+            sender.send(request);
+            Assert.assertArrayEquals(request, receiver.read());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testCompressedHeader() throws IOException {
+        byte[] request = repetitive();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+             Socket accepted = server.accept();
+             ZabbixProtocol sender = ZabbixProtocol.builder().connection(client).compressionThreshold(1024).build()) {
+            sender.send(request);
+            InputStream is = accepted.getInputStream();
+            byte[] header = is.readNBytes(13);
+            Assert.assertEquals(ZabbixProtocol.FLAG_PROTOCOL | ZabbixProtocol.FLAG_COMPRESSION, header[4]);
+            int compressedSize = ZabbixProtocol.readInt(header, 5);
+            Assert.assertTrue(compressedSize * 5 < request.length);
+            Assert.assertEquals(request.length, ZabbixProtocol.readInt(header, 9));
+            Assert.assertEquals(compressedSize, is.readNBytes(compressedSize).length);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testBelowThreshold() throws IOException {
+        byte[] request = "{}".getBytes(StandardCharsets.UTF_8);
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+             Socket accepted = server.accept();
+             ZabbixProtocol sender = ZabbixProtocol.builder().connection(client).compressionThreshold(1024).build()) {
+            sender.send(request);
+            byte[] header = accepted.getInputStream().readNBytes(13);
+            Assert.assertEquals(ZabbixProtocol.FLAG_PROTOCOL, header[4]);
+            Assert.assertEquals(request.length, ZabbixProtocol.readInt(header, 5));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testStreamedRoundTrip() throws IOException {
+        byte[] request = repetitive();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+             Socket accepted = server.accept();
+             ZabbixProtocol sender = new ZabbixProtocol(client);
+             ZabbixProtocol receiver = new ZabbixProtocol(accepted)) {
+            sender.send(request.length, new ByteArrayInputStream(request));
+            Assert.assertArrayEquals(request, receiver.read());
+            IOException ex = Assert.assertThrows(IOException.class, () -> sender.send(request.length + 1, new ByteArrayInputStream(request)));
+            Assert.assertEquals("Truncated request body", ex.getMessage());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testOutputStream() throws IOException {
+        byte[] request = repetitive();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+             Socket accepted = server.accept();
+             ZabbixProtocol sender = new ZabbixProtocol(client);
+             ZabbixProtocol receiver = new ZabbixProtocol(accepted)) {
+            try (OutputStream body = sender.sendStream(request.length)) {
+                for (int i = 0; i < request.length; i += 100) {
+                    body.write(request, i, Math.min(100, request.length - i));
+                }
+            }
+            Assert.assertArrayEquals(request, receiver.read());
+            OutputStream longer = sender.sendStream(1);
+            longer.write('a');
+            IOException ex = Assert.assertThrows(IOException.class, () -> longer.write('b'));
+            Assert.assertEquals("Request body longer than announced", ex.getMessage());
+            OutputStream shorter = sender.sendStream(2);
+            shorter.write('a');
+            ex = Assert.assertThrows(IOException.class, shorter::close);
+            Assert.assertEquals("Truncated request body", ex.getMessage());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testDeferredOutputStream() throws IOException {
+        byte[] request = repetitive();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+             Socket accepted = server.accept();
+             ZabbixProtocol sender = ZabbixProtocol.builder().connection(client).compressionThreshold(0).build();
+             ZabbixProtocol receiver = new ZabbixProtocol(accepted)) {
+            // Kept in memory and compressed, then spilled to a file
+            for (int threshold: new int[] {request.length, 100}) {
+                try (OutputStream body = sender.sendDeferredStream(threshold)) {
+                    for (int i = 0; i < request.length; i += 7) {
+                        body.write(request, i, Math.min(7, request.length - i));
+                    }
+                }
+                Assert.assertArrayEquals(request, receiver.read());
+            }
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testInputStream() throws IOException {
+        byte[] request = repetitive();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+             Socket accepted = server.accept();
+             ZabbixProtocol sender = ZabbixProtocol.builder().connection(client).compressionThreshold(1024).build();
+             ZabbixProtocol receiver = new ZabbixProtocol(accepted)) {
+            // Compressed, not compressed, and a packet partially read
+            sender.send(request);
+            sender.send(request, 0, 100);
+            sender.send(request);
+            sender.send("{}".getBytes(StandardCharsets.UTF_8));
+            try (InputStream body = receiver.readStream()) {
+                Assert.assertArrayEquals(request, body.readAllBytes());
+            }
+            try (InputStream body = receiver.readStream()) {
+                Assert.assertArrayEquals(Arrays.copyOf(request, 100), body.readAllBytes());
+                Assert.assertEquals(-1, body.read());
+            }
+            try (InputStream body = receiver.readStream()) {
+                Assert.assertEquals('{', body.read());
+            }
+            Assert.assertEquals("{}", new String(receiver.read(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testOversize() {
+        ZabbixProtocol sender = new ZabbixProtocol(new Socket());
+        IllegalArgumentException ex = Assert.assertThrows(IllegalArgumentException.class, () -> sender.send(1L << 31, InputStream.nullInputStream()));
+        Assert.assertEquals("Oversize request", ex.getMessage());
+    }
+
+    private byte[] largePacket(byte[] body) {
+        return largePacket(body, body.length);
+    }
+
+    private byte[] largePacket(byte[] body, long announced) {
+        byte[] packet = new byte[21 + body.length];
+        System.arraycopy("ZBXD".getBytes(StandardCharsets.US_ASCII), 0, packet, 0, 4);
+        packet[4] = ZabbixProtocol.FLAG_PROTOCOL | ZabbixProtocol.FLAG_LARGE;
+        ZabbixProtocol.writeLong(announced, packet, 5);
+        ZabbixProtocol.writeLong(0, packet, 13);
+        System.arraycopy(body, 0, packet, 21, body.length);
+        return packet;
+    }
+
+    @Test(timeout = 5000)
+    public void testLargeHeader() throws IOException {
+        byte[] body = repetitive();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+             Socket accepted = server.accept();
+             ZabbixProtocol receiver = ZabbixProtocol.builder().connection(accepted).largePacket(true).build()) {
+            client.getOutputStream().write(largePacket(body));
+            Assert.assertArrayEquals(body, receiver.read());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testLargeHeaderOversizeArray() throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+             Socket accepted = server.accept();
+             ZabbixProtocol receiver = ZabbixProtocol.builder().connection(accepted).largePacket(true).build()) {
+            client.getOutputStream().write(largePacket(new byte[0], 3L << 30));
+            IOException ex = Assert.assertThrows(IOException.class, receiver::read);
+            Assert.assertEquals("Oversize response, it can only be read as a stream", ex.getMessage());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testLargeHeaderStream() throws IOException {
+        byte[] body = repetitive();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+             Socket accepted = server.accept();
+             ZabbixProtocol receiver = ZabbixProtocol.builder().connection(accepted).largePacket(true).build()) {
+            // Only the start of a body bigger than an array is sent
+            client.getOutputStream().write(largePacket(body, Integer.MAX_VALUE + 10L));
+            client.shutdownOutput();
+            InputStream stream = receiver.readStream();
+            Assert.assertArrayEquals(body, stream.readNBytes(body.length));
+            IOException ex = Assert.assertThrows(IOException.class, stream::read);
+            Assert.assertEquals("Connection closed", ex.getMessage());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testLargeHeaderRefused() throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+             Socket accepted = server.accept();
+             ZabbixProtocol receiver = new ZabbixProtocol(accepted)) {
+            client.getOutputStream().write(largePacket(repetitive()));
+            IOException ex = Assert.assertThrows(IOException.class, receiver::read);
+            Assert.assertEquals("Not supported Zabbix exchange", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testLongByteOrder() {
+        byte[] buffer = new byte[8];
+        for (long i: List.of(1L, 1L << 31, 1L << 32, Long.MAX_VALUE)) {
+            ZabbixProtocol.writeLong(i, buffer, 0);
+            Assert.assertEquals(i, ZabbixProtocol.readLong(buffer, 0));
+        }
+    }
+
+    @Test
+    public void testCodec() throws IOException {
+        byte[] body = repetitive();
+        byte[] compressed = ZabbixProtocol.compress(-1, body, 0, body.length);
+        int compressedSize = compressed.length - ZabbixProtocol.HEADER_SIZE;
+        ZabbixProtocol.writeHeader(ZabbixProtocol.FLAG_PROTOCOL | ZabbixProtocol.FLAG_COMPRESSION, compressedSize, body.length, compressed, 0);
+        ByteBuffer plain = ZabbixCodec.encode(body);
+        ByteBuffer empty = ZabbixCodec.encode(new byte[0]);
+        // Three packets sent together, received one byte at a time
+        ByteBuffer stream = ByteBuffer.allocate(plain.remaining() + empty.remaining() + compressed.length);
+        stream.put(plain).put(empty).put(compressed).flip();
+        ZabbixCodec codec = new ZabbixCodec(1024 * 1024, false);
+        List<byte[]> decoded = new ArrayList<>();
+        while (stream.hasRemaining()) {
+            byte[] packet = codec.decode(ByteBuffer.wrap(new byte[] {stream.get()}));
+            if (packet != null) {
+                decoded.add(packet);
+            }
+        }
+        Assert.assertFalse(codec.isPending());
+        Assert.assertEquals(3, decoded.size());
+        Assert.assertArrayEquals(body, decoded.get(0));
+        Assert.assertEquals(0, decoded.get(1).length);
+        Assert.assertArrayEquals(body, decoded.get(2));
+    }
+
+    @Test
+    public void testCodecOversize() {
+        ZabbixCodec codec = new ZabbixCodec(16, false);
+        ByteBuffer packet = ZabbixCodec.encode(repetitive());
+        IOException ex = Assert.assertThrows(IOException.class, () -> codec.decode(packet));
+        Assert.assertEquals("Oversize request", ex.getMessage());
+    }
+
 }
@@ -0,0 +1,182 @@
+package fr.loghub.zabbix.receiver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.loghub.zabbix.TestFixtures;
+import fr.loghub.zabbix.sender.DataBatch;
+import fr.loghub.zabbix.sender.DataObject;
+import fr.loghub.zabbix.sender.PreparedBatch;
+import fr.loghub.zabbix.sender.SenderResult;
+import fr.loghub.zabbix.sender.ZabbixSender;
+
+public class ZabbixReceiverTest {
+
+    private final ConcurrentLinkedQueue<DataObject> received = new ConcurrentLinkedQueue<>();
+
+    private ZabbixReceiver start(ZabbixReceiver.Sink sink) throws IOException {
+        return TestFixtures.receiverBuilder(sink).workers(2).bind();
+    }
+
+    private int store(List<DataObject> values) {
+        received.addAll(values);
+        return values.size();
+    }
+
+    private ZabbixSender.Builder sender(ZabbixReceiver receiver) {
+        return ZabbixSender.builder()
+                           .address(receiver.getAddress())
+                           .jhandler(TestFixtures.JSON_HANDLER);
+    }
+
+    @Test(timeout = 5000)
+    public void testSend() throws IOException {
+        Instant clock = Instant.ofEpochSecond(1700000000L, 123456789);
+        try (ZabbixReceiver receiver = start(this::store)) {
+            ZabbixSender sender = sender(receiver).build();
+            SenderResult result = sender.send(DataObject.builder().host("host").key("item", 1).value(1).clock(clock).build(),
+                                              DataObject.builder().host("host").key("item", 2).value("text").clock(clock).build());
+            Assert.assertTrue(result.success());
+            Assert.assertEquals(2, result.getProcessed());
+            Assert.assertEquals(0, result.getFailed());
+            List<DataObject> values = new ArrayList<>(received);
+            Assert.assertEquals(2, values.size());
+            Assert.assertEquals("host", values.get(0).getHost());
+            Assert.assertEquals("item[1]", values.get(0).getKey());
+            Assert.assertEquals(1, values.get(0).getValue());
+            Assert.assertEquals(clock, values.get(0).getClock());
+            Assert.assertEquals("text", values.get(1).getValue());
+            Assert.assertEquals(1, receiver.getRequests());
+            Assert.assertEquals(2, receiver.getValues());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testBatch() throws IOException {
+        Instant clock = Instant.ofEpochSecond(1700000000L, 5);
+        DataBatch batch = new DataBatch();
+        int host = batch.host("host");
+        int load = batch.key("system.cpu.load");
+        for (int i = 0; i < 1000; i++) {
+            batch.add(host, load, i / 4.0, clock.getEpochSecond(), clock.getNano());
+        }
+        try (ZabbixReceiver receiver = start(this::store)) {
+            SenderResult result = sender(receiver).build().send(batch);
+            Assert.assertEquals(1000, result.getProcessed());
+            DataObject last = new ArrayList<>(received).get(999);
+            Assert.assertEquals("system.cpu.load", last.getKey());
+            Assert.assertEquals(999 / 4.0, ((Number) last.getValue()).doubleValue(), 0);
+            Assert.assertEquals(clock, last.getClock());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testPreparedBatch() throws IOException {
+        Instant clock = Instant.ofEpochSecond(1700000000L, 5);
+        PreparedBatch batch = new PreparedBatch();
+        int[] items = new int[100];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = batch.item("host", "vfs.fs.size", "/fs" + i, "used");
+        }
+        try (ZabbixReceiver receiver = start(this::store); ZabbixSender sender = sender(receiver).build()) {
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < items.length; i++) {
+                    batch.set(items[i], round * 1000L + i);
+                }
+                Assert.assertEquals(100, sender.send(clock, batch).getProcessed());
+            }
+            Assert.assertEquals(200, received.size());
+            DataObject last = new ArrayList<>(received).get(199);
+            Assert.assertEquals("vfs.fs.size[/fs99,used]", last.getKey());
+            Assert.assertEquals(1099L, ((Number) last.getValue()).longValue());
+            Assert.assertEquals(clock, last.getClock());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testKeptAlive() throws IOException {
+        try (ZabbixReceiver receiver = start(this::store);
+             ZabbixSender sender = sender(receiver).maxConnections(1).compressionThreshold(0).build()) {
+            for (int i = 0; i < 3; i++) {
+                Assert.assertTrue(sender.send(DataObject.builder().host("host").key("item").value(i).build()).success());
+            }
+            Assert.assertEquals(1, receiver.getAccepted());
+            Assert.assertEquals(3, receiver.getRequests());
+            Assert.assertEquals(3, received.size());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testPartialFailure() throws IOException {
+        try (ZabbixReceiver receiver = start(v -> v.size() - 1)) {
+            SenderResult result = sender(receiver).build()
+                                                  .send(DataObject.builder().host("host").key("item").value(1).build(),
+                                                        DataObject.builder().host("host").key("item").value(2).build());
+            Assert.assertFalse(result.success());
+            Assert.assertEquals(1, result.getProcessed());
+            Assert.assertEquals(1, result.getFailed());
+            Assert.assertEquals(2, result.getTotal());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testSinkFailure() throws IOException {
+        try (ZabbixReceiver receiver = start(v -> {throw new IOException("Sink down");})) {
+            ZabbixSender sender = sender(receiver).build();
+            IOException ex = Assert.assertThrows(IOException.class, () -> sender.send(DataObject.builder().host("host").key("item").value(1).build()));
+            Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("Sink down"));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testInvalidPacket() throws IOException {
+        try (ZabbixReceiver receiver = start(this::store);
+             Socket socket = new Socket(receiver.getAddress().getAddress(), receiver.getAddress().getPort())) {
+            socket.getOutputStream().write("GET / HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            InputStream is = socket.getInputStream();
+            Assert.assertEquals(-1, is.read());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrent() throws IOException, InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try (ZabbixReceiver receiver = start(this::store)) {
+            ZabbixSender sender = sender(receiver).build();
+            List<CompletableFuture<SenderResult>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                int value = i;
+                results.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return sender.send(DataObject.builder().host("host").key("item").value(value).build());
+                    } catch (IOException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }, executor));
+            }
+            for (CompletableFuture<SenderResult> result: results) {
+                Assert.assertTrue(result.get().success());
+            }
+            Assert.assertEquals(200, receiver.getAccepted());
+            Assert.assertEquals(200, received.size());
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+    }
+
+}
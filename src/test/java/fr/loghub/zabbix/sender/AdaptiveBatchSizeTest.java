@@ -0,0 +1,76 @@
+package fr.loghub.zabbix.sender;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveBatchSizeTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(2);
+
+    private SenderResult result(float seconds) {
+        return SenderResult.builder().processed(1).failed(0).total(1).spentSeconds(seconds).build();
+    }
+
+    private AdaptiveBatchSize adaptive() {
+        return AdaptiveBatchSize.builder()
+                                .minSize(10)
+                                .maxSize(1000)
+                                .initialSize(100)
+                                .increment(100)
+                                .latencyTarget(1, TimeUnit.SECONDS)
+                                .build();
+    }
+
+    @Test
+    public void testIncrease() {
+        AdaptiveBatchSize adaptive = adaptive();
+        adaptive.sent(100, result(0.01f), FAST);
+        Assert.assertEquals(200, adaptive.getSize());
+        // A partial batch doesn't tell anything
+        adaptive.sent(50, result(0.01f), FAST);
+        Assert.assertEquals(200, adaptive.getSize());
+        for (int i = 0; i < 20; i++) {
+            adaptive.sent(adaptive.getSize(), result(-1), FAST);
+        }
+        Assert.assertEquals(1000, adaptive.getSize());
+        Assert.assertEquals(9, adaptive.getIncreases());
+    }
+
+    @Test
+    public void testDecrease() {
+        AdaptiveBatchSize adaptive = adaptive();
+        adaptive.sent(100, result(0.01f), SLOW);
+        Assert.assertEquals(50, adaptive.getSize());
+        adaptive.failed();
+        Assert.assertEquals(25, adaptive.getSize());
+        adaptive.sent(25, SenderResult.builder().spooled(true).build(), FAST);
+        Assert.assertEquals(12, adaptive.getSize());
+        adaptive.failed();
+        Assert.assertEquals(10, adaptive.getSize());
+        adaptive.failed();
+        Assert.assertEquals(10, adaptive.getSize());
+        Assert.assertEquals(4, adaptive.getDecreases());
+    }
+
+    @Test
+    public void testServerTime() {
+        AdaptiveBatchSize adaptive = adaptive();
+        // 7ms per value, the server can process 142 values in one second
+        adaptive.sent(100, result(0.7f), FAST);
+        Assert.assertEquals(142, adaptive.getSize());
+        adaptive.sent(142, result(0.994f), FAST);
+        Assert.assertEquals(142, adaptive.getSize());
+    }
+
+    @Test
+    public void testInvalid() {
+        Assert.assertThrows(IllegalArgumentException.class, () -> AdaptiveBatchSize.builder().initialSize(0).build());
+        Assert.assertThrows(IllegalArgumentException.class, () -> AdaptiveBatchSize.builder().maxSize(10).build());
+        Assert.assertThrows(IllegalArgumentException.class, () -> AdaptiveBatchSize.builder().decreaseFactor(1).build());
+        Assert.assertThrows(IllegalArgumentException.class, () -> AdaptiveBatchSize.builder().latencyTarget(0, TimeUnit.SECONDS).build());
+    }
+
+}
@@ -0,0 +1,135 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.loghub.zabbix.TestFixtures;
+import fr.loghub.zabbix.receiver.ZabbixReceiver;
+
+public class AggregatorTest {
+
+    private final Map<String, Number> received = new ConcurrentHashMap<>();
+
+    private ZabbixReceiver receiver() throws IOException {
+        return TestFixtures.receiver(values -> {
+            values.forEach(v -> received.put(v.getHost() + "/" + v.getKey(), (Number) v.getValue()));
+            return values.size();
+        });
+    }
+
+    @Test(timeout = 10000)
+    public void testAggregations() throws IOException, InterruptedException {
+        try (ZabbixReceiver receiver = receiver();
+             ZabbixSender sender = ZabbixSender.builder().address(receiver.getAddress()).jhandler(TestFixtures.JSON_HANDLER).build()) {
+            Aggregator aggregator = Aggregator.builder()
+                                              .sender(sender)
+                                              .window(1, TimeUnit.HOURS)
+                                              .aggregations(Aggregator.Aggregation.MIN, Aggregator.Aggregation.MAX,
+                                                            Aggregator.Aggregation.AVG, Aggregator.Aggregation.SUM,
+                                                            Aggregator.Aggregation.COUNT, Aggregator.Aggregation.LAST)
+                                              .build();
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(() -> {
+                    for (int i = 1; i <= 1000; i++) {
+                        aggregator.record("host", ItemKey.of("net.if.in", "eth0"), i);
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread t: threads) {
+                t.join();
+            }
+            aggregator.record(DataObject.builder().host("other").key("load").value(1000).build());
+            aggregator.close();
+            Assert.assertEquals(12, aggregator.getFlushed());
+            Assert.assertEquals(1.0, received.get("host/net.if.in.min[eth0]").doubleValue(), 0);
+            Assert.assertEquals(1000.0, received.get("host/net.if.in.max[eth0]").doubleValue(), 0);
+            Assert.assertEquals(500.5, received.get("host/net.if.in.avg[eth0]").doubleValue(), 0);
+            Assert.assertEquals(4 * 500500.0, received.get("host/net.if.in.sum[eth0]").doubleValue(), 0);
+            Assert.assertEquals(4000, received.get("host/net.if.in.count[eth0]").longValue());
+            Assert.assertEquals(1000.0, received.get("other/load.last").doubleValue(), 0);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testWindows() throws IOException, InterruptedException {
+        try (ZabbixReceiver receiver = receiver();
+             ZabbixSender sender = ZabbixSender.builder().address(receiver.getAddress()).jhandler(TestFixtures.JSON_HANDLER).build()) {
+            Aggregator aggregator = Aggregator.builder()
+                                              .sender(sender)
+                                              .window(50, TimeUnit.MILLISECONDS)
+                                              .build();
+            aggregator.record("host", "item", 1);
+            aggregator.record("host", "item", 2);
+            while (aggregator.getFlushed() < 1) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(2.0, received.get("host/item").doubleValue(), 0);
+            // Empty windows are not sent
+            Thread.sleep(150);
+            Assert.assertEquals(1, aggregator.getFlushed());
+            Assert.assertEquals(1, receiver.getRequests());
+            aggregator.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testConsistentWindows() throws IOException, InterruptedException {
+        AtomicLong counted = new AtomicLong();
+        Set<Number> extremes = ConcurrentHashMap.newKeySet();
+        try (ZabbixReceiver receiver = TestFixtures.receiver(values -> {
+                 for (DataObject v: values) {
+                     if (v.getKey().startsWith("item.count")) {
+                         counted.addAndGet(((Number) v.getValue()).longValue());
+                     } else {
+                         extremes.add((Number) v.getValue());
+                     }
+                 }
+                 return values.size();
+             });
+             ZabbixSender sender = ZabbixSender.builder().address(receiver.getAddress()).jhandler(TestFixtures.JSON_HANDLER).build()) {
+            Aggregator aggregator = Aggregator.builder()
+                                              .sender(sender)
+                                              .window(1, TimeUnit.MILLISECONDS)
+                                              .aggregations(Aggregator.Aggregation.MIN, Aggregator.Aggregation.MAX,
+                                                            Aggregator.Aggregation.COUNT)
+                                              .build();
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < 100000; i++) {
+                        aggregator.record("host", "item", 1);
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread t: threads) {
+                t.join();
+            }
+            aggregator.close();
+            Assert.assertEquals(0, aggregator.getFailures());
+            // No value lost between windows, and no window with a count but without a min or a max
+            Assert.assertEquals(400000, counted.get());
+            Assert.assertEquals(Set.of(1.0), extremes.stream().map(Number::doubleValue).collect(Collectors.toSet()));
+        }
+    }
+
+    @Test
+    public void testNotNumeric() {
+        try (ZabbixSender sender = ZabbixSender.builder().host("localhost").port(10051).build();
+             Aggregator aggregator = Aggregator.builder().sender(sender).build()) {
+            DataObject data = DataObject.builder().host("host").key("item").value("text").build();
+            Assert.assertThrows(IllegalArgumentException.class, () -> aggregator.record(data));
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.loghub.zabbix.TestFixtures;
+
+public class AsyncZabbixSenderTest {
+
+    private final AtomicInteger received = new AtomicInteger();
+    private final AtomicInteger queries = new AtomicInteger();
+
+    private void count(Socket s, byte[] data) {
+        Map<?, ?> content = TestFixtures.JSON_HANDLER.deserialize(new String(data, StandardCharsets.UTF_8), Map.class);
+        received.addAndGet(((List<?>) content.get("data")).size());
+        queries.incrementAndGet();
+    }
+
+    private DataObject value(int i) {
+        return DataObject.builder().host("localhost").key("async").value(i).build();
+    }
+
+    @Test(timeout = 5000)
+    public void testBatching() throws IOException, InterruptedException, ExecutionException {
+        try (ZabbixServer server = new ZabbixServer("response.blob", this::count)) {
+            Assert.assertTrue(server.waitStarted(1, TimeUnit.SECONDS));
+            ZabbixSender sender = ZabbixSender.builder()
+                                              .address(server.getAddress())
+                                              .jhandler(TestFixtures.JSON_HANDLER)
+                                              .build();
+            List<CompletableFuture<SenderResult>> results = new ArrayList<>();
+            try (AsyncZabbixSender async = AsyncZabbixSender.builder()
+                                                            .sender(sender)
+                                                            .batchSize(10)
+                                                            .linger(1, TimeUnit.SECONDS)
+                                                            .build()) {
+                for (int i = 0; i < 25; i++) {
+                    results.add(async.offer(value(i)));
+                }
+                Assert.assertTrue(results.get(0).get().success());
+                Assert.assertSame(results.get(0).get(), results.get(9).get());
+            }
+            for (CompletableFuture<SenderResult> r: results) {
+                Assert.assertTrue(r.get().success());
+            }
+            Assert.assertEquals(25, received.get());
+            Assert.assertEquals(3, queries.get());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testAdaptive() throws IOException, InterruptedException, ExecutionException {
+        try (ZabbixServer server = new ZabbixServer("response.blob", this::count)) {
+            Assert.assertTrue(server.waitStarted(1, TimeUnit.SECONDS));
+            ZabbixSender sender = ZabbixSender.builder()
+                                              .address(server.getAddress())
+                                              .jhandler(TestFixtures.JSON_HANDLER)
+                                              .build();
+            AdaptiveBatchSize adaptive = AdaptiveBatchSize.builder()
+                                                          .initialSize(2)
+                                                          .increment(2)
+                                                          .latencyTarget(10, TimeUnit.SECONDS)
+                                                          .build();
+            List<CompletableFuture<SenderResult>> results = new ArrayList<>();
+            try (AsyncZabbixSender async = AsyncZabbixSender.builder()
+                                                            .sender(sender)
+                                                            .adaptiveBatchSize(adaptive)
+                                                            .linger(1, TimeUnit.SECONDS)
+                                                            .build()) {
+                for (int i = 0; i < 20; i++) {
+                    results.add(async.offer(value(i)));
+                }
+                results.get(19).get();
+                // Batches of 2, 4, 6 and 8 values
+                Assert.assertEquals(10, async.getCurrentBatchSize());
+            }
+            Assert.assertEquals(20, received.get());
+            Assert.assertEquals(4, queries.get());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testDropNewest() throws IOException, InterruptedException, ExecutionException {
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch inSend = new CountDownLatch(1);
+        try (ZabbixServer server = new ZabbixServer("response.blob", (s, d) -> {
+            inSend.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        })) {
+            Assert.assertTrue(server.waitStarted(1, TimeUnit.SECONDS));
+            ZabbixSender sender = ZabbixSender.builder()
+                                              .address(server.getAddress())
+                                              .jhandler(TestFixtures.JSON_HANDLER)
+                                              .build();
+            try (AsyncZabbixSender async = AsyncZabbixSender.builder()
+                                                            .sender(sender)
+                                                            .batchSize(1)
+                                                            .queueCapacity(2)
+                                                            .overflowPolicy(AsyncZabbixSender.OverflowPolicy.DROP_NEWEST)
+                                                            .build()) {
+                CompletableFuture<SenderResult> first = async.offer(value(0));
+                Assert.assertTrue(inSend.await(1, TimeUnit.SECONDS));
+                CompletableFuture<SenderResult> second = async.offer(value(1));
+                CompletableFuture<SenderResult> third = async.offer(value(2));
+                CompletableFuture<SenderResult> dropped = async.offer(value(3));
+                ExecutionException ex = Assert.assertThrows(ExecutionException.class, dropped::get);
+                Assert.assertEquals(RejectedExecutionException.class, ex.getCause().getClass());
+                Assert.assertEquals(1, async.getDropped());
+                blocker.countDown();
+                Assert.assertTrue(first.get().success());
+                Assert.assertTrue(second.get().success());
+                Assert.assertTrue(third.get().success());
+            }
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testDropOldest() throws IOException, InterruptedException, ExecutionException {
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch inSend = new CountDownLatch(1);
+        try (ZabbixServer server = new ZabbixServer("response.blob", (s, d) -> {
+            inSend.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        })) {
+            Assert.assertTrue(server.waitStarted(1, TimeUnit.SECONDS));
+            ZabbixSender sender = ZabbixSender.builder()
+                                              .address(server.getAddress())
+                                              .jhandler(TestFixtures.JSON_HANDLER)
+                                              .build();
+            try (AsyncZabbixSender async = AsyncZabbixSender.builder()
+                                                            .sender(sender)
+                                                            .batchSize(1)
+                                                            .queueCapacity(2)
+                                                            .overflowPolicy(AsyncZabbixSender.OverflowPolicy.DROP_OLDEST)
+                                                            .build()) {
+                async.offer(value(0));
+                Assert.assertTrue(inSend.await(1, TimeUnit.SECONDS));
+                CompletableFuture<SenderResult> oldest = async.offer(value(1));
+                async.offer(value(2));
+                CompletableFuture<SenderResult> newest = async.offer(value(3));
+                ExecutionException ex = Assert.assertThrows(ExecutionException.class, oldest::get);
+                Assert.assertEquals(RejectedExecutionException.class, ex.getCause().getClass());
+                blocker.countDown();
+                Assert.assertTrue(newest.get().success());
+            }
+        }
+    }
+
+}
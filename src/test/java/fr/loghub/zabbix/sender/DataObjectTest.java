@@ -83,4 +83,10 @@ public class DataObjectTest {
         Assert.assertEquals("Invalid key definition", ex.getMessage());
     }
 
+    @Test
+    public void keybad5() {
+        IllegalArgumentException ex = Assert.assertThrows(IllegalArgumentException.class, () -> DataObject.builder().key("key", " "));
+        Assert.assertEquals("Invalid key definition", ex.getMessage());
+    }
+
 }
@@ -0,0 +1,39 @@
+package fr.loghub.zabbix.sender;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void testBuckets() {
+        for (long value: new long[] {0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE}) {
+            int index = Histogram.index(value);
+            Assert.assertTrue(Long.toString(value), value <= Histogram.highestValue(index));
+            if (index > 0) {
+                Assert.assertTrue(Long.toString(value), value > Histogram.highestValue(index - 1));
+            }
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000000, histogram.getMax());
+        Assert.assertEquals(500500.0, histogram.getMean(), 0);
+        long p50 = histogram.getValueAtPercentile(50);
+        Assert.assertTrue(Long.toString(p50), p50 >= 500000 && p50 <= 500000 * 1.07);
+        long p99 = histogram.getValueAtPercentile(99);
+        Assert.assertTrue(Long.toString(p99), p99 >= 990000 && p99 <= 1000000);
+        Assert.assertEquals(1000000, histogram.getValueAtPercentile(100));
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+}
@@ -0,0 +1,107 @@
+package fr.loghub.zabbix.sender;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ItemKeyTest {
+
+    @Test
+    public void testFormat() {
+        Assert.assertEquals("agent.ping", ItemKey.of("agent.ping").getKey());
+        Assert.assertEquals("net.if.in[eth0,bytes]", ItemKey.of("net.if.in", "eth0", "bytes").getKey());
+        Assert.assertEquals("key[1,,2]", ItemKey.of("key", 1, null, 2).getKey());
+        Assert.assertEquals(List.of("1", "", "2"), ItemKey.of("key", 1, null, 2).getParameters());
+    }
+
+    @Test
+    public void testQuoting() {
+        Assert.assertEquals("key[\"a,b\"]", ItemKey.of("key", "a,b").getKey());
+        Assert.assertEquals("key[\"a]b\"]", ItemKey.of("key", "a]b").getKey());
+        Assert.assertEquals("key[\"[a\"]", ItemKey.of("key", "[a").getKey());
+        Assert.assertEquals("key[\" a\"]", ItemKey.of("key", " a").getKey());
+        Assert.assertEquals("key[\"\\\"a\\\"\"]", ItemKey.of("key", "\"a\"").getKey());
+        // Only leading quotes need quoting
+        Assert.assertEquals("key[a\"b]", ItemKey.of("key", "a\"b").getKey());
+        Assert.assertEquals("key[a\\b]", ItemKey.of("key", "a\\b").getKey());
+        IllegalArgumentException ex = Assert.assertThrows(IllegalArgumentException.class, () -> ItemKey.of("key", "a,b\\"));
+        Assert.assertEquals("Invalid key parameter, it ends with a backslash: a,b\\", ex.getMessage());
+    }
+
+    @Test
+    public void testInvalidName() {
+        Assert.assertThrows(IllegalArgumentException.class, () -> ItemKey.of(null));
+        Assert.assertThrows(IllegalArgumentException.class, () -> ItemKey.of("", "a"));
+        Assert.assertThrows(IllegalArgumentException.class, () -> ItemKey.of("bad name", "a"));
+    }
+
+    @Test
+    public void testCached() {
+        Object[] parameters = {"eth0", "bytes"};
+        ItemKey key = ItemKey.of("net.if.in", parameters);
+        parameters[0] = "eth1";
+        Assert.assertSame(key, ItemKey.of("net.if.in", "eth0", "bytes"));
+        Assert.assertEquals("net.if.in[eth1,bytes]", ItemKey.of("net.if.in", parameters).getKey());
+        // Parameters are compared by their formatted values
+        StringBuilder mutable = new StringBuilder("eth0");
+        Assert.assertSame(key, ItemKey.of("net.if.in", mutable, "bytes"));
+        mutable.setCharAt(3, '2');
+        Assert.assertEquals("net.if.in[eth2,bytes]", ItemKey.of("net.if.in", mutable, "bytes").getKey());
+    }
+
+    @Test
+    public void testEvicted() {
+        ItemKey hot = ItemKey.of("hot", 0);
+        for (int i = 0; i < 20000; i++) {
+            ItemKey.of("cold", i);
+            Assert.assertSame(hot, ItemKey.of("hot", 0));
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testConcurrent() throws InterruptedException {
+        ItemKey hot = ItemKey.of("hot", "concurrent");
+        int threads = 8;
+        AtomicInteger errors = new AtomicInteger();
+        List<Thread> running = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            Thread worker = new Thread(() -> {
+                for (int i = 0; i < 50000; i++) {
+                    // Shared, then private to this thread, to fill the cache
+                    ItemKey shared = ItemKey.of("shared", i % 100);
+                    ItemKey own = ItemKey.of("own", thread, i);
+                    if (! shared.getKey().equals("shared[" + (i % 100) + "]")
+                        || ! own.getKey().equals("own[" + thread + "," + i + "]")
+                        || ItemKey.of("hot", "concurrent") != hot) {
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+            worker.start();
+            running.add(worker);
+        }
+        for (Thread worker: running) {
+            worker.join();
+        }
+        Assert.assertEquals(0, errors.get());
+        // Eviction is approximate with concurrent misses
+        Assert.assertTrue(ItemKey.cached() <= ItemKey.MAX_CACHED + threads);
+    }
+
+    @Test
+    public void testEncoded() {
+        ItemKey key = ItemKey.of("key", "\"é\"");
+        Assert.assertEquals("\"key[\\\"\\\\\\\"é\\\\\\\"\\\"]\"", new String(key.getJson(), StandardCharsets.UTF_8));
+        DataObject data = DataObject.builder().host("host").key(key).value(1).clock(Instant.ofEpochSecond(1)).build();
+        Assert.assertEquals(key.getKey(), data.getKey());
+        String encoded = new String(new JsonEncoder(16, null).encode(data).toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertEquals("{\"host\":\"host\",\"key\":\"key[\\\"\\\\\\\"é\\\\\\\"\\\"]\",\"value\":1,\"clock\":1,\"ns\":0}", encoded);
+    }
+
+}
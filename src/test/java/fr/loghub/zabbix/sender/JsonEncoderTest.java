@@ -0,0 +1,154 @@
+package fr.loghub.zabbix.sender;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.alibaba.fastjson.JSON;
+
+import fr.loghub.zabbix.ZabbixProtocol;
+
+public class JsonEncoderTest {
+
+    private String encode(Object value) {
+        JsonEncoder encoder = new JsonEncoder(16, null);
+        encoder.writeValue(value);
+        Assert.assertEquals(ZabbixProtocol.HEADER_SIZE, encoder.getOffset());
+        return new String(encoder.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testScalars() {
+        Assert.assertEquals("null", encode(null));
+        Assert.assertEquals("true", encode(true));
+        Assert.assertEquals("0", encode(0));
+        Assert.assertEquals("-42", encode(-42L));
+        Assert.assertEquals(Long.toString(Long.MIN_VALUE), encode(Long.MIN_VALUE));
+        Assert.assertEquals(Long.toString(Long.MAX_VALUE), encode(Long.MAX_VALUE));
+        Assert.assertEquals("1.5", encode(1.5));
+        Assert.assertEquals("2.0", encode(2.0));
+        Assert.assertEquals("0.1", encode(0.1f));
+        Assert.assertEquals("\"NaN\"", encode(Double.NaN));
+        Assert.assertEquals("[1,2]", encode(List.of(1, 2)));
+        Assert.assertEquals("[1,2]", encode(new int[] {1, 2}));
+        Assert.assertEquals("{\"a\":\"b\"}", encode(Map.of("a", "b")));
+    }
+
+    @Test
+    public void testStrings() {
+        String value = "quote\" backslash\\ control\n\u0001 accenté euro€ emoji😀";
+        String encoded = encode(value);
+        Assert.assertEquals("\"quote\\\" backslash\\\\ control\\n\\u0001 accenté euro€ emoji😀\"", encoded);
+        Assert.assertEquals(value, JSON.parse(encoded));
+        String big = "aé".repeat(10000);
+        Assert.assertEquals(big, JSON.parse(encode(big)));
+    }
+
+    @Test
+    public void testFallback() {
+        JsonEncoder encoder = new JsonEncoder(16, o -> "{\"custom\":1}");
+        encoder.writeValue(new Object());
+        Assert.assertEquals("{\"custom\":1}", new String(encoder.toByteArray(), StandardCharsets.UTF_8));
+        Assert.assertEquals("\"custom\"", encode(new Object() {
+            @Override
+            public String toString() {
+                return "custom";
+            }
+        }));
+    }
+
+    @Test
+    public void testRequest() {
+        Instant now = Instant.ofEpochSecond(1700000000L, 123456789);
+        DataObject data = DataObject.builder().host("host").key("key", "a", "b").value(1.5).clock(now).build();
+        SenderRequest request = SenderRequest.builder().data(data).data(data).clock(now).build();
+        JsonEncoder encoder = new JsonEncoder(16, null).encode(request);
+        Map<?, ?> expected = JSON.parseObject(JSON.toJSONString(request.getJsonObject()), Map.class);
+        Map<?, ?> encoded = JSON.parseObject(new String(encoder.toByteArray(), StandardCharsets.UTF_8), Map.class);
+        Assert.assertEquals(expected, encoded);
+        // The buffer is reused
+        byte[] buffer = encoder.getBuffer();
+        encoder.reset().encode(request);
+        Assert.assertSame(buffer, encoder.getBuffer());
+    }
+
+    @Test
+    public void testRestamp() {
+        Instant valueClock = Instant.ofEpochSecond(1000, 1);
+        SenderRequest request = SenderRequest.builder()
+                                             .clock(Instant.ofEpochSecond(2000, 2))
+                                             .data(DataObject.builder().host("host").key("key").value("],\"clock\":").clock(valueClock).build())
+                                             .build();
+        byte[] encoded = new JsonEncoder(16, null).encode(request).toByteArray();
+        String restamped = new String(new JsonEncoder(16, null).restamp(encoded, Instant.ofEpochSecond(3000, 3)).toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertEquals("{\"request\":\"sender data\",\"data\":[{\"host\":\"host\",\"key\":\"key\",\"value\":\"],\\\"clock\\\":\",\"clock\":1000,\"ns\":1}],\"clock\":3000,\"ns\":3}", restamped);
+    }
+
+    @Test
+    public void testBatch() {
+        Instant now = Instant.now();
+        DataBatch batch = new DataBatch(1);
+        int host = batch.host("host\"1");
+        int key = batch.key("key", "a", "b");
+        batch.add(host, key, 42L, now.getEpochSecond(), now.getNano());
+        batch.add(host, key, 1.5, now.getEpochSecond(), now.getNano());
+        batch.add("host2", "other", -1L, now);
+        Assert.assertEquals(3, batch.size());
+        Assert.assertEquals(host, batch.host("host\"1"));
+        SenderRequest request = SenderRequest.builder()
+                                             .data(DataObject.builder().host("host\"1").key("key", "a", "b").value(42L).clock(now).build())
+                                             .data(DataObject.builder().host("host\"1").key("key", "a", "b").value(1.5).clock(now).build())
+                                             .data(DataObject.builder().host("host2").key("other").value(-1L).clock(now).build())
+                                             .clock(now)
+                                             .build();
+        byte[] expected = new JsonEncoder(16, null).encode(request).toByteArray();
+        Assert.assertArrayEquals(expected, new JsonEncoder(16, null).encode(batch, now).toByteArray());
+        batch.clear();
+        Assert.assertTrue(batch.isEmpty());
+        Assert.assertThrows(IllegalArgumentException.class, () -> batch.add(5, key, 1L, 0, 0));
+    }
+
+    @Test
+    public void testPreparedBatch() {
+        Instant now = Instant.now();
+        Instant before = now.minusSeconds(10);
+        PreparedBatch batch = new PreparedBatch(1);
+        int first = batch.item("host\"1", "key", "a", "b");
+        int second = batch.item("host2", "other");
+        int third = batch.item("host2", "text");
+        int unset = batch.item("host2", "unset");
+        Assert.assertEquals(first, batch.item("host\"1", ItemKey.of("key", "a", "b")));
+        Assert.assertEquals(4, batch.items());
+        batch.set(first, 42L).set(second, 1.5, before.getEpochSecond(), before.getNano()).set(third, "a\nb");
+        Assert.assertEquals(3, batch.size());
+        SenderRequest request = SenderRequest.builder()
+                                             .data(DataObject.builder().host("host\"1").key("key", "a", "b").value(42L).clock(now).build())
+                                             .data(DataObject.builder().host("host2").key("other").value(1.5).clock(before).build())
+                                             .data(DataObject.builder().host("host2").key("text").value("a\nb").clock(now).build())
+                                             .clock(now)
+                                             .build();
+        byte[] expected = new JsonEncoder(16, null).encode(request).toByteArray();
+        Assert.assertArrayEquals(expected, new JsonEncoder(16, null).encode(batch, now).toByteArray());
+        // A new value drops the clock of the previous one
+        batch.set(second, 1.5);
+        batch.set(first, 42L);
+        Assert.assertEquals(3, batch.size());
+        request = SenderRequest.builder()
+                         .data(DataObject.builder().host("host\"1").key("key", "a", "b").value(42L).clock(now).build())
+                         .data(DataObject.builder().host("host2").key("other").value(1.5).clock(now).build())
+                         .data(DataObject.builder().host("host2").key("text").value("a\nb").clock(now).build())
+                         .clock(now)
+                         .build();
+        expected = new JsonEncoder(16, null).encode(request).toByteArray();
+        Assert.assertArrayEquals(expected, new JsonEncoder(16, null).encode(batch, now).toByteArray());
+        batch.clear();
+        Assert.assertTrue(batch.isEmpty());
+        Assert.assertEquals(4, batch.items());
+        Assert.assertThrows(IllegalArgumentException.class, () -> batch.set(unset + 1, 1L));
+    }
+
+}
@@ -0,0 +1,178 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.loghub.zabbix.TestFixtures;
+import fr.loghub.zabbix.receiver.ZabbixReceiver;
+
+public class MultiZabbixSenderTest {
+
+    // The receiver that got each host
+    private final Map<String, Integer> routes = new ConcurrentHashMap<>();
+    private final List<ZabbixReceiver> receivers = new ArrayList<>();
+
+    private ZabbixReceiver receiver(int id) throws IOException {
+        return receiver(id, false);
+    }
+
+    private ZabbixReceiver receiver(int id, boolean refusing) throws IOException {
+        ZabbixReceiver receiver = TestFixtures.receiverBuilder(values -> {
+            values.forEach(v -> routes.put(v.getHost(), id));
+            if (refusing) {
+                throw new IOException("Refused");
+            }
+            return values.size();
+        }).workers(1).bind();
+        receivers.add(receiver);
+        return receiver;
+    }
+
+    @After
+    public void stop() throws IOException {
+        for (ZabbixReceiver receiver: receivers) {
+            receiver.close();
+        }
+    }
+
+    private MultiZabbixSender sender() {
+        MultiZabbixSender.Builder builder = MultiZabbixSender.builder()
+                                                             .failureThreshold(1)
+                                                             .openDuration(1, TimeUnit.MINUTES);
+        for (ZabbixReceiver receiver: receivers) {
+            builder.sender(ZabbixSender.builder().address(receiver.getAddress()).jhandler(TestFixtures.JSON_HANDLER).build());
+        }
+        return builder.build();
+    }
+
+    private DataObject[] values(int count) {
+        DataObject[] values = new DataObject[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = DataObject.builder().host("host" + i).key("item").value(i).build();
+        }
+        return values;
+    }
+
+    @Test(timeout = 10000)
+    public void testRouting() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            receiver(i);
+        }
+        try (MultiZabbixSender sender = sender()) {
+            SenderResult result = sender.send(values(100));
+            Assert.assertEquals(100, result.getProcessed());
+            Assert.assertEquals(100, result.getTotal());
+            Assert.assertEquals(3, result.getEndpoints().size());
+            Assert.assertEquals(100, result.getEndpoints().values().stream().mapToInt(SenderResult::getProcessed).sum());
+            for (int i = 0; i < 3; i++) {
+                Assert.assertEquals(receivers.get(i).getValues(), result.getEndpoints().get(receivers.get(i).getAddress()).getProcessed());
+                Assert.assertTrue(receivers.get(i).getValues() > 0);
+            }
+            // Each host is always sent to the same receiver
+            Map<String, Integer> first = Map.copyOf(routes);
+            routes.clear();
+            sender.send(values(100));
+            Assert.assertEquals(first, routes);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testFailover() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            receiver(i);
+        }
+        try (MultiZabbixSender sender = sender()) {
+            sender.send(values(100));
+            Map<String, Integer> first = Map.copyOf(routes);
+            InetSocketAddress failed = receivers.get(0).getAddress();
+            receivers.get(0).close();
+            routes.clear();
+            SenderResult result = sender.send(values(100));
+            Assert.assertEquals(100, result.getProcessed());
+            Assert.assertFalse(result.getEndpoints().containsKey(failed));
+            Assert.assertFalse(sender.getAvailability().get(failed));
+            // Only the hosts of the failed receiver moved
+            first.forEach((host, id) -> {
+                if (id != 0) {
+                    Assert.assertEquals(id, routes.get(host));
+                } else {
+                    Assert.assertNotEquals(0, (int) routes.get(host));
+                }
+            });
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRefused() throws IOException {
+        receiver(0);
+        receiver(1, true);
+        try (MultiZabbixSender sender = sender()) {
+            SenderResult result = sender.send(values(100));
+            long refused = routes.values().stream().filter(id -> id == 1).count();
+            Assert.assertTrue(refused > 0);
+            // Refused values are not sent to the other endpoint, and the refusing endpoint is still used
+            Assert.assertEquals(100 - refused, result.getProcessed());
+            Assert.assertEquals(refused, result.getFailed());
+            Assert.assertEquals(100 - refused, receivers.get(0).getValues());
+            Assert.assertTrue(sender.getAvailability().values().stream().allMatch(b -> b));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testAllFailed() throws IOException {
+        receiver(0);
+        try (MultiZabbixSender sender = sender()) {
+            receivers.get(0).close();
+            Assert.assertThrows(IOException.class, () -> sender.send(values(10)));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testEndpointRejected() throws IOException {
+        receiver(0);
+        receiver(1);
+        List<ZabbixSender> senders = new ArrayList<>();
+        for (ZabbixReceiver receiver: receivers) {
+            senders.add(ZabbixSender.builder().address(receiver.getAddress()).jhandler(TestFixtures.JSON_HANDLER).build());
+        }
+        try (MultiZabbixSender sender = MultiZabbixSender.builder().senders(senders).failureThreshold(1).build()) {
+            // A closed sender rejects its sends
+            senders.get(1).close();
+            SenderResult result = sender.send(values(100));
+            Assert.assertEquals(100, result.getTotal());
+            Assert.assertEquals(receivers.get(0).getValues(), result.getProcessed());
+            Assert.assertEquals(100 - receivers.get(0).getValues(), result.getFailed());
+            Assert.assertTrue(result.getFailed() > 0);
+            Assert.assertFalse(sender.getAvailability().get(receivers.get(1).getAddress()));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testInterrupted() throws IOException {
+        receiver(0);
+        receiver(1);
+        try (MultiZabbixSender sender = sender()) {
+            Thread.currentThread().interrupt();
+            SenderResult result;
+            try {
+                result = sender.send(values(100));
+                Assert.assertTrue(Thread.currentThread().isInterrupted());
+            } finally {
+                Thread.interrupted();
+            }
+            // The sends already started are waited for
+            Assert.assertEquals(100, result.getTotal());
+            Assert.assertEquals(receivers.get(0).getValues() + receivers.get(1).getValues(), result.getProcessed());
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+package fr.loghub.zabbix.sender;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    @Test
+    public void testBurst() {
+        RateLimiter limiter = RateLimiter.builder().rate(10).burst(5).build();
+        Assert.assertTrue(limiter.tryAcquire(3));
+        Assert.assertTrue(limiter.tryAcquire(2));
+        Assert.assertFalse(limiter.tryAcquire(1));
+        Assert.assertEquals(1, limiter.getRejected());
+        Assert.assertEquals(0, limiter.getThrottled());
+    }
+
+    @Test
+    public void testOversized() {
+        RateLimiter limiter = RateLimiter.builder().rate(10).burst(5).build();
+        // More than the burst, allowed when the bucket is full
+        Assert.assertTrue(limiter.tryAcquire(20));
+        Assert.assertFalse(limiter.tryAcquire(1));
+    }
+
+    @Test(timeout = 5000)
+    public void testAcquire() throws InterruptedException {
+        RateLimiter limiter = RateLimiter.builder().rate(100).burst(10).build();
+        long start = System.nanoTime();
+        Assert.assertEquals(0, limiter.acquire(10));
+        long waited = 0;
+        for (int i = 0; i < 10; i++) {
+            waited += limiter.acquire(1);
+        }
+        long elapsed = System.nanoTime() - start;
+        // 10 permits after the burst, at 100 per second
+        Assert.assertTrue(Long.toString(elapsed), elapsed >= TimeUnit.MILLISECONDS.toNanos(95));
+        Assert.assertEquals(10, limiter.getThrottled());
+        Assert.assertEquals(waited, limiter.getThrottledNanos());
+    }
+
+    @Test(timeout = 5000)
+    public void testAsync() throws InterruptedException, ExecutionException {
+        RateLimiter limiter = RateLimiter.builder().rate(100).burst(1).build();
+        Assert.assertTrue(limiter.acquireAsync(1).isDone());
+        long start = System.nanoTime();
+        CompletableFuture<Void> delayed = limiter.acquireAsync(5);
+        Assert.assertFalse(delayed.isDone());
+        delayed.get();
+        Assert.assertTrue(System.nanoTime() - start >= limiter.getThrottledNanos());
+        Assert.assertEquals(1, limiter.getThrottled());
+    }
+
+    @Test(timeout = 5000)
+    public void testConcurrent() throws InterruptedException {
+        RateLimiter limiter = RateLimiter.builder().rate(1000).burst(1).build();
+        Thread[] threads = new Thread[4];
+        long start = System.nanoTime();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 50; j++) {
+                        limiter.acquire(1);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t: threads) {
+            t.join();
+        }
+        // 200 permits at 1000 per second, none lost
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(195));
+    }
+
+    @Test
+    public void testInvalid() {
+        Assert.assertThrows(IllegalArgumentException.class, () -> RateLimiter.builder().build());
+        Assert.assertThrows(IllegalArgumentException.class, () -> RateLimiter.builder().rate(Double.NaN).build());
+        Assert.assertThrows(IllegalArgumentException.class, () -> RateLimiter.builder().rate(1).burst(0).build());
+    }
+
+}
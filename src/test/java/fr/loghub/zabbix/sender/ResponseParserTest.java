@@ -0,0 +1,60 @@
+package fr.loghub.zabbix.sender;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResponseParserTest {
+
+    private SenderResult parse(String response) {
+        return ResponseParser.parse(response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSuccess() {
+        SenderResult result = parse("{\"response\":\"success\",\"info\":\"processed: 2; failed: 1; total: 3; seconds spent: 0.000052\"}");
+        Assert.assertEquals(2, result.getProcessed());
+        Assert.assertEquals(1, result.getFailed());
+        Assert.assertEquals(3, result.getTotal());
+        Assert.assertEquals(Float.parseFloat("0.000052"), result.getSpentSeconds(), 0);
+        Assert.assertFalse(result.success());
+    }
+
+    @Test
+    public void testLayout() {
+        SenderResult result = parse(" {\n  \"info\" : \"processed: 1; failed: 0; total: 1; seconds spent: 1\",\n  \"version\": 7.0,\n  \"response\": \"success\"\n}\n");
+        Assert.assertTrue(result.success());
+        Assert.assertEquals(1.0f, result.getSpentSeconds(), 0);
+        // Unknown entries are ignored
+        result = parse("{\"response\":\"success\",\"info\":\"processed: 1; skipped: 4; total: 1\"}");
+        Assert.assertTrue(result.success());
+        Assert.assertEquals(-1, result.getFailed());
+    }
+
+    @Test
+    public void testFallback() {
+        Assert.assertNull(parse("{\"response\":\"failed\",\"info\":\"processed: 0; failed: 1; total: 1; seconds spent: 0.1\"}"));
+        Assert.assertNull(parse("{\"response\":\"success\",\"info\":\"processed: 1\\u003b failed: 0\"}"));
+        Assert.assertNull(parse("{\"response\":\"success\",\"info\":\"processed: 1; failed: 0; total: 1; seconds spent: 0.0"));
+        Assert.assertNull(parse("{\"response\":\"success\",\"info\":\"processed: 99999999999\"}"));
+        Assert.assertNull(parse("{\"response\":\"success\",\"info\":\"processed: 1\",\"data\":[]}"));
+        Assert.assertNull(parse("{\"response\":\"success\"}"));
+        Assert.assertNull(parse("{}"));
+        Assert.assertNull(parse(""));
+        Assert.assertNull(parse("[]"));
+    }
+
+    @Test
+    public void testSeconds() {
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            String seconds = String.format(Locale.ROOT, "%." + random.nextInt(12) + "f", random.nextDouble() * Math.pow(10, random.nextInt(6) - 3));
+            SenderResult result = parse("{\"response\":\"success\",\"info\":\"processed: 1; failed: 0; total: 1; seconds spent: " + seconds + "\"}");
+            Assert.assertEquals(seconds, Float.parseFloat(seconds), result.getSpentSeconds(), 0);
+        }
+    }
+
+}
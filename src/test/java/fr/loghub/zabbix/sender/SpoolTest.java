@@ -0,0 +1,172 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.loghub.zabbix.TestFixtures;
+import fr.loghub.zabbix.ZabbixProtocol;
+import fr.loghub.zabbix.receiver.ZabbixReceiver;
+
+public class SpoolTest {
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("spool");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private boolean append(Spool spool, String value) throws IOException {
+        byte[] body = bytes(value);
+        return spool.append(body, 0, body.length);
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        try (Spool spool = Spool.builder().directory(directory).open()) {
+            Assert.assertTrue(append(spool, "first"));
+            Assert.assertTrue(append(spool, "second"));
+            Assert.assertTrue(append(spool, "third"));
+            Assert.assertArrayEquals(bytes("first"), spool.peek());
+            spool.acknowledge();
+        }
+        try (Spool spool = Spool.builder().directory(directory).open()) {
+            Assert.assertArrayEquals(bytes("second"), spool.peek());
+            spool.acknowledge();
+            Assert.assertTrue(append(spool, "fourth"));
+            Assert.assertArrayEquals(bytes("third"), spool.peek());
+            spool.acknowledge();
+            Assert.assertArrayEquals(bytes("fourth"), spool.peek());
+            spool.acknowledge();
+            Assert.assertNull(spool.peek());
+        }
+    }
+
+    @Test
+    public void testSegments() throws IOException {
+        try (Spool spool = Spool.builder().directory(directory).segmentSize(64).maxDiskUsage(1024).open()) {
+            for (int i = 0; i < 20; i++) {
+                Assert.assertTrue(append(spool, "value number " + i));
+            }
+            for (int i = 0; i < 20; i++) {
+                Assert.assertArrayEquals(bytes("value number " + i), spool.peek());
+                spool.acknowledge();
+            }
+            Assert.assertNull(spool.peek());
+            // Replayed segments are unmapped, their disk space is freed
+            Path maps = Path.of("/proc/self/maps");
+            if (Files.isReadable(maps)) {
+                Assert.assertEquals(1, Files.readAllLines(maps).stream().filter(l -> l.contains(directory.toString() + "/spool-")).count());
+            }
+        }
+        // Replayed segments are deleted
+        try (Stream<Path> files = Files.list(directory)) {
+            Assert.assertTrue(files.filter(p -> p.getFileName().toString().startsWith("spool-")).count() <= 1);
+        }
+    }
+
+    @Test
+    public void testDropOldest() throws IOException {
+        try (Spool spool = Spool.builder().directory(directory).segmentSize(64).maxDiskUsage(128).open()) {
+            for (int i = 0; i < 20; i++) {
+                Assert.assertTrue(append(spool, "value number " + i));
+            }
+            Assert.assertTrue(spool.getEvicted() > 0);
+            Assert.assertArrayEquals(bytes("value number " + spool.getEvicted()), spool.peek());
+        }
+    }
+
+    @Test
+    public void testDropNewest() throws IOException {
+        try (Spool spool = Spool.builder().directory(directory).segmentSize(64).maxDiskUsage(128).evictionPolicy(Spool.EvictionPolicy.DROP_NEWEST).open()) {
+            int accepted = 0;
+            while (append(spool, "value number " + accepted)) {
+                accepted++;
+            }
+            Assert.assertTrue(accepted > 0);
+            Assert.assertEquals(0, spool.getEvicted());
+            Assert.assertArrayEquals(bytes("value number 0"), spool.peek());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testReplay() throws IOException, InterruptedException {
+        ConcurrentLinkedQueue<DataObject> received = new ConcurrentLinkedQueue<>();
+        ZabbixReceiver.Builder receiverBuilder = TestFixtures.receiverBuilder(v -> {received.addAll(v); return v.size();});
+        // Find a free port
+        InetSocketAddress address;
+        try (ZabbixReceiver receiver = receiverBuilder.bind()) {
+            address = receiver.getAddress();
+        }
+        Instant clock = Instant.ofEpochSecond(1700000000L, 42);
+        Spool spool = Spool.builder().directory(directory).retryInterval(50, TimeUnit.MILLISECONDS).replayRate(1000).open();
+        try (ZabbixSender sender = ZabbixSender.builder().address(address).jhandler(TestFixtures.JSON_HANDLER).spool(spool).build()) {
+            SenderResult result = sender.send(DataObject.builder().host("host").key("item").value(1).clock(clock).build());
+            Assert.assertTrue(result.isSpooled());
+            Assert.assertFalse(result.success());
+            Assert.assertEquals(1, spool.getSpooled());
+            try (ZabbixReceiver receiver = receiverBuilder.address(address).bind()) {
+                Assert.assertEquals(address, receiver.getAddress());
+                while (spool.getReplayed() < 1) {
+                    Thread.sleep(10);
+                }
+                List<DataObject> values = List.copyOf(received);
+                Assert.assertEquals(1, values.size());
+                Assert.assertEquals(clock, values.get(0).getClock());
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testWrittenNotSpooled() throws IOException {
+        Spool spool = Spool.builder().directory(directory).open();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             ZabbixSender sender = ZabbixSender.builder()
+                                               .address(server.getLocalSocketAddress())
+                                               .jhandler(TestFixtures.JSON_HANDLER)
+                                               .spool(spool)
+                                               .build()) {
+            Thread lost = new Thread(() -> {
+                // The request is received, but the response is lost
+                try (Socket client = server.accept(); ZabbixProtocol protocol = new ZabbixProtocol(client)) {
+                    protocol.read();
+                } catch (IOException ex) {
+                    // The test will fail
+                }
+            });
+            lost.start();
+            DataObject value = DataObject.builder().host("host").key("item").value(1).build();
+            Assert.assertThrows(IOException.class, () -> sender.send(value));
+            Assert.assertEquals(0, spool.getSpooled());
+        }
+    }
+
+}
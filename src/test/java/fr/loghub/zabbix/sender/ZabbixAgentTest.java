@@ -0,0 +1,224 @@
+package fr.loghub.zabbix.sender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.loghub.zabbix.TestFixtures;
+import fr.loghub.zabbix.ZabbixProtocol;
+
+public class ZabbixAgentTest {
+
+    /**
+     * Answer one request per connection, no response is sent if the responder returns null.
+     */
+    private static class AgentServer extends Thread implements Closeable {
+        private final ServerSocket server;
+        private final Function<Map<?, ?>, String> responder;
+        private final List<Map<?, ?>> requests = new CopyOnWriteArrayList<>();
+
+        AgentServer(Function<Map<?, ?>, String> responder) throws IOException {
+            this.responder = responder;
+            this.server = new ServerSocket();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            while (! server.isClosed()) {
+                try (Socket client = server.accept(); ZabbixProtocol protocol = new ZabbixProtocol(client)) {
+                    Map<?, ?> request = TestFixtures.JSON_HANDLER.deserialize(new String(protocol.read(), StandardCharsets.UTF_8), Map.class);
+                    requests.add(request);
+                    String response = responder.apply(request);
+                    if (response != null) {
+                        protocol.send(response.getBytes(StandardCharsets.UTF_8));
+                    }
+                } catch (IOException ex) {
+                    // Next connection
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+
+    /**
+     * Stores values like a Zabbix server, skipping the ids already received in a session.
+     */
+    private static class Storage implements Function<Map<?, ?>, String> {
+        private final Map<Object, Long> lastIds = new HashMap<>();
+        private final List<Object> stored = new ArrayList<>();
+        private final AtomicInteger losses = new AtomicInteger();
+
+        @Override
+        public synchronized String apply(Map<?, ?> request) {
+            long lastId = lastIds.getOrDefault(request.get("session"), 0L);
+            int processed = 0;
+            List<?> data = (List<?>) request.get("data");
+            for (Object o: data) {
+                Map<?, ?> value = (Map<?, ?>) o;
+                long id = ((Number) value.get("id")).longValue();
+                if (id > lastId) {
+                    stored.add(value.get("value"));
+                    lastId = id;
+                    processed++;
+                }
+            }
+            lastIds.put(request.get("session"), lastId);
+            if (losses.getAndDecrement() > 0) {
+                return null;
+            }
+            return String.format("{\"response\":\"success\",\"info\":\"processed: %d; failed: 0; total: %d; seconds spent: 0.000100\"}", processed, data.size());
+        }
+    }
+
+    private ZabbixSender sender(AgentServer server) {
+        return ZabbixSender.builder()
+                           .address(server.server.getLocalSocketAddress())
+                           .socketTimeout(1, TimeUnit.SECONDS)
+                           .jhandler(TestFixtures.JSON_HANDLER)
+                           .build();
+    }
+
+    private DataObject value(int i) {
+        return DataObject.builder().key("agent.item").value(i).build();
+    }
+
+    @Test(timeout = 5000)
+    public void testActiveChecks() throws IOException {
+        AtomicInteger revision = new AtomicInteger(3);
+        try (AgentServer server = new AgentServer(r -> {
+                 if (r.get("config_revision") != null && ((Number) r.get("config_revision")).intValue() == revision.get()) {
+                     return "{\"response\":\"success\",\"config_revision\":" + revision.get() + "}";
+                 } else {
+                     return "{\"response\":\"success\",\"config_revision\":" + revision.get() + ",\"data\":["
+                            + "{\"key\":\"log[/var/log/app.log]\",\"itemid\":1234,\"delay\":\"30s\",\"lastlogsize\":42,\"mtime\":0},"
+                            + "{\"key\":\"agent.ping\",\"itemid\":1235,\"delay\":\"1m\",\"lastlogsize\":0,\"mtime\":0}]}";
+                 }
+             });
+             ZabbixSender sender = sender(server)) {
+            ZabbixAgent agent = ZabbixAgent.builder()
+                                           .sender(sender)
+                                           .host("agenthost")
+                                           .hostMetadata("Linux")
+                                           .refreshInterval(1, TimeUnit.HOURS)
+                                           .build();
+            List<ActiveCheck> checks = agent.getActiveChecks();
+            Assert.assertEquals(2, checks.size());
+            Assert.assertEquals("log[/var/log/app.log]", checks.get(0).getKey());
+            Assert.assertEquals(1234, checks.get(0).getItemid());
+            Assert.assertEquals("30s", checks.get(0).getDelay());
+            Assert.assertEquals(42, checks.get(0).getLastlogsize());
+            Map<?, ?> request = server.requests.get(0);
+            Assert.assertEquals("active checks", request.get("request"));
+            Assert.assertEquals("agenthost", request.get("host"));
+            Assert.assertEquals("Linux", request.get("host_metadata"));
+            Assert.assertEquals(agent.getSession(), request.get("session"));
+            Assert.assertNull(request.get("config_revision"));
+
+            // Cached
+            Assert.assertSame(checks, agent.getActiveChecks());
+            Assert.assertEquals(1, server.requests.size());
+
+            // Unchanged revision, no data sent
+            Assert.assertSame(checks, agent.refresh());
+            Assert.assertEquals(3, ((Number) server.requests.get(1).get("config_revision")).intValue());
+
+            revision.set(4);
+            List<ActiveCheck> updated = agent.refresh();
+            Assert.assertNotSame(checks, updated);
+            Assert.assertEquals(checks, updated);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testLostResponse() throws IOException {
+        Storage storage = new Storage();
+        try (AgentServer server = new AgentServer(storage); ZabbixSender sender = sender(server)) {
+            ZabbixAgent agent = ZabbixAgent.builder().sender(sender).host("agenthost").build();
+            storage.losses.set(1);
+            SenderResult result = agent.send(value(1), value(2));
+            // The first request was stored but its response was lost, the retry is skipped by the server
+            Assert.assertEquals(2, server.requests.size());
+            Assert.assertEquals(0, result.getProcessed());
+            Assert.assertEquals(List.of(1, 2), storage.stored);
+            Assert.assertEquals(server.requests.get(0).get("data"), server.requests.get(1).get("data"));
+
+            result = agent.send(value(3));
+            Assert.assertEquals(1, result.getProcessed());
+            Assert.assertEquals(List.of(1, 2, 3), storage.stored);
+            Map<?, ?> request = server.requests.get(2);
+            Assert.assertEquals("agent data", request.get("request"));
+            Assert.assertEquals(agent.getSession(), request.get("session"));
+            Map<?, ?> value = (Map<?, ?>) ((List<?>) request.get("data")).get(0);
+            Assert.assertEquals("agenthost", value.get("host"));
+            Assert.assertEquals(3, ((Number) value.get("id")).intValue());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testPending() throws IOException {
+        Storage storage = new Storage();
+        try (AgentServer server = new AgentServer(storage); ZabbixSender sender = sender(server)) {
+            ZabbixAgent agent = ZabbixAgent.builder().sender(sender).host("agenthost").retries(0).build();
+            storage.losses.set(1);
+            Assert.assertThrows(IOException.class, () -> agent.send(value(1)));
+            Assert.assertEquals(1, agent.getPending());
+            SenderResult result = agent.send(value(2));
+            Assert.assertEquals(0, agent.getPending());
+            Assert.assertEquals(1, result.getProcessed());
+            Assert.assertEquals(List.of(1, 2), storage.stored);
+            Assert.assertEquals(3, server.requests.size());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testMaxPending() throws IOException {
+        Storage storage = new Storage();
+        try (AgentServer server = new AgentServer(storage); ZabbixSender sender = sender(server)) {
+            ZabbixAgent agent = ZabbixAgent.builder().sender(sender).host("agenthost").retries(0).maxPending(1).build();
+            storage.losses.set(2);
+            Assert.assertThrows(IOException.class, () -> agent.send(value(1)));
+            Assert.assertEquals(1, agent.getPending());
+            // Full and still failing, the values are refused
+            Assert.assertThrows(RequestNotSentException.class, () -> agent.send(value(2)));
+            Assert.assertEquals(1, agent.getPending());
+            SenderResult result = agent.send(value(2));
+            Assert.assertEquals(0, agent.getPending());
+            Assert.assertEquals(1, result.getProcessed());
+            Assert.assertEquals(List.of(1, 2), storage.stored);
+            Assert.assertEquals(4, server.requests.size());
+        }
+    }
+
+    @Test
+    public void testInvalid() {
+        try (ZabbixSender noJson = ZabbixSender.builder().host("localhost").port(10051).build();
+             ZabbixSender sender = ZabbixSender.builder().host("localhost").port(10051).jhandler(TestFixtures.JSON_HANDLER).build()) {
+            Assert.assertThrows(IllegalArgumentException.class, () -> ZabbixAgent.builder().sender(noJson).host("agenthost").build());
+            Assert.assertThrows(IllegalArgumentException.class, () -> ZabbixAgent.builder().sender(sender).build());
+            Assert.assertThrows(IllegalArgumentException.class, () -> ZabbixAgent.builder().sender(sender).host("agenthost").maxPending(0).build());
+        }
+    }
+
+}
@@ -1,8 +1,11 @@
 package fr.loghub.zabbix.sender;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.SocketChannel;
@@ -14,39 +17,38 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.zip.Deflater;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 import org.bouncycastle.operator.OperatorCreationException;
 import org.junit.Assert;
 import org.junit.Test;
 
-import com.alibaba.fastjson.JSON;
-
 import fr.loghub.zabbix.AutoCA;
+import fr.loghub.zabbix.TestFixtures;
+import fr.loghub.zabbix.ZabbixProtocol;
+import fr.loghub.zabbix.receiver.ZabbixReceiver;
 
 public class ZabbixSenderTest {
 
-    private static final JsonHandler jhandler = new JsonHandler() {
-        @Override
-        public String serialize(Object data) {
-            return JSON.toJSONString(data);
-        }
-
-        @Override
-        public <T> T deserialize(String content, Class<T> clazz) {
-            return JSON.parseObject(content, clazz);
-        }
-    };
-
     private final CompletableFuture<byte[]> queryProcessor = new CompletableFuture<>();
     private final CompletableFuture<Socket> socketProcessor = new CompletableFuture<>();
 
@@ -65,7 +67,7 @@ public class ZabbixSenderTest {
         SenderResult result = zabbixClient.send(dataObject);
         Assert.assertTrue(result.success());
         byte[] query = queryProcessor.get();
-        Map<?, ?> content = jhandler.deserialize(new String(query, StandardCharsets.UTF_8), Map.class);
+        Map<?, ?> content = TestFixtures.JSON_HANDLER.deserialize(new String(query, StandardCharsets.UTF_8), Map.class);
         Assert.assertEquals("sender data", content.get("request"));
         @SuppressWarnings("unchecked")
         Map<?, ?> objectMap = ((List<Map<?, ?>>)content.get("data")).get(0);
@@ -87,7 +89,102 @@ public class ZabbixSenderTest {
             Assert.assertTrue(server.waitStarted(1, TimeUnit.SECONDS));
             ZabbixSender zabbixClient = ZabbixSender.builder()
                                                     .address(server.getAddress())
-                                                    .jhandler(jhandler)
+                                                    .jhandler(TestFixtures.JSON_HANDLER)
+                                                    .build();
+            runTest(zabbixClient);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testWithoutJsonHandler() throws IOException, InterruptedException {
+        try (ZabbixServer server = startServer(new ZabbixServer("response.blob", this::complete))) {
+            ZabbixSender zabbixClient = ZabbixSender.builder()
+                                                    .address(server.getAddress())
+                                                    .build();
+            SenderResult result = zabbixClient.send(DataObject.builder().host("localhost").key("item").value(List.of(1, 2)).build());
+            Assert.assertTrue(result.success());
+            Assert.assertEquals(1, result.getProcessed());
+            Assert.assertEquals(0.000052f, result.getSpentSeconds(), 0);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testPooled() throws IOException, InterruptedException {
+        try (ZabbixServer server = startServer(new ZabbixServer("response.blob", this::complete).keepAlive(true));
+             ZabbixSender zabbixClient = ZabbixSender.builder()
+                                                     .address(server.getAddress())
+                                                     .jhandler(TestFixtures.JSON_HANDLER)
+                                                     .maxConnections(2)
+                                                     .maxRequestsPerConnection(3)
+                                                     .testOnBorrow(true)
+                                                     .build()) {
+            for (int i = 0; i < 5; i++) {
+                DataObject dataObject = DataObject.builder().host("localhost").key("pooled").value(i).build();
+                Assert.assertTrue(zabbixClient.send(dataObject).success());
+            }
+            PoolStatistics stats = zabbixClient.getPoolStatistics();
+            Assert.assertEquals(5, stats.getBorrowed());
+            Assert.assertEquals(2, stats.getCreated());
+            Assert.assertEquals(1, stats.getEvicted());
+            Assert.assertEquals(1, stats.getIdle());
+            Assert.assertEquals(0, stats.getActive());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testPooledReconnect() throws IOException, InterruptedException {
+        // The server close the connection after each response, the pool must reconnect
+        try (ZabbixServer server = startServer(new ZabbixServer("response.blob", this::complete));
+             ZabbixSender zabbixClient = ZabbixSender.builder()
+                                                     .address(server.getAddress())
+                                                     .jhandler(TestFixtures.JSON_HANDLER)
+                                                     .maxConnections(1)
+                                                     .build()) {
+            for (int i = 0; i < 3; i++) {
+                DataObject dataObject = DataObject.builder().host("localhost").key("pooled").value(i).build();
+                Assert.assertTrue(zabbixClient.send(dataObject).success());
+            }
+            Assert.assertEquals(3, server.getConnections());
+            Assert.assertEquals(3, zabbixClient.getPoolStatistics().getBorrowed());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testPooledTimeoutNotRetried() throws IOException, InterruptedException {
+        // The second query is answered too late, it might have been stored so it must not be sent again
+        AtomicInteger queries = new AtomicInteger();
+        BiConsumer<Socket, byte[]> slowSecond = (s, b) -> {
+            if (queries.incrementAndGet() == 2) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try (ZabbixServer server = startServer(new ZabbixServer("response.blob", slowSecond).keepAlive(true));
+             ZabbixSender zabbixClient = ZabbixSender.builder()
+                                                     .address(server.getAddress())
+                                                     .jhandler(TestFixtures.JSON_HANDLER)
+                                                     .maxConnections(1)
+                                                     .socketTimeout(200, TimeUnit.MILLISECONDS)
+                                                     .build()) {
+            Assert.assertTrue(zabbixClient.send(DataObject.builder().host("localhost").key("pooled").value(1).build()).success());
+            Assert.assertThrows(SocketTimeoutException.class, () -> zabbixClient.send(DataObject.builder().host("localhost").key("pooled").value(2).build()));
+            Thread.sleep(700);
+            Assert.assertEquals(2, queries.get());
+            Assert.assertEquals(1, server.getConnections());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testCompressed() throws IOException, ExecutionException, InterruptedException {
+        try (ZabbixServer server = startServer(new ZabbixServer("response.blob", this::complete))) {
+            ZabbixSender zabbixClient = ZabbixSender.builder()
+                                                    .address(server.getAddress())
+                                                    .jhandler(TestFixtures.JSON_HANDLER)
+                                                    .compressionThreshold(0)
+                                                    .compressionLevel(Deflater.BEST_SPEED)
                                                     .build();
             runTest(zabbixClient);
         }
@@ -105,7 +202,7 @@ public class ZabbixSenderTest {
         try (ZabbixServer secureserver = startServer(new ZabbixServer("response.blob", this::complete, ctx.getServerSocketFactory()))) {
              ZabbixSender zabbixClient = ZabbixSender.builder()
                                                      .address(secureserver.getAddress())
-                                                     .jhandler(jhandler)
+                                                     .jhandler(TestFixtures.JSON_HANDLER)
                                                      .sslParameters(params)
                                                      .sslContext(ctx)
                                                      .build();
@@ -115,6 +212,193 @@ public class ZabbixSenderTest {
         }
      }
 
+    @Test(timeout = 5000)
+    public void testNio() throws IOException, ExecutionException, InterruptedException {
+        try (ZabbixServer server = startServer(new ZabbixServer("response.blob", this::complete))) {
+            ZabbixSender zabbixClient = ZabbixSender.builder()
+                                                    .address(server.getAddress())
+                                                    .jhandler(TestFixtures.JSON_HANDLER)
+                                                    .transport(ZabbixSender.Transport.NIO)
+                                                    .build();
+            runTest(zabbixClient);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testNioPooled() throws IOException, InterruptedException {
+        try (ZabbixServer server = startServer(new ZabbixServer("response.blob", this::complete).keepAlive(true));
+             ZabbixSender zabbixClient = ZabbixSender.builder()
+                                                     .address(server.getAddress())
+                                                     .jhandler(TestFixtures.JSON_HANDLER)
+                                                     .transport(ZabbixSender.Transport.NIO)
+                                                     .compressionThreshold(0)
+                                                     .maxConnections(1)
+                                                     .testOnBorrow(true)
+                                                     .build()) {
+            for (int i = 0; i < 3; i++) {
+                DataObject dataObject = DataObject.builder().host("localhost").key("pooled").value(i).build();
+                Assert.assertTrue(zabbixClient.send(dataObject).success());
+            }
+            Assert.assertEquals(1, server.getConnections());
+        }
+    }
+
+    // AutoCA is quite slow
+    @Test(timeout = 10000)
+    public void testNioWithSSL() throws CertificateException, NoSuchAlgorithmException, IOException, KeyStoreException,
+                                                OperatorCreationException, UnrecoverableKeyException,
+                                                KeyManagementException, ExecutionException, InterruptedException {
+        KeyStore ks = AutoCA.getKeyStore("cn=localhost", InetAddress.getLoopbackAddress());
+        SSLContext ctx = AutoCA.createSSLContext(ks);
+        try (ZabbixServer secureserver = startServer(new ZabbixServer("response.blob", this::complete, ctx.getServerSocketFactory()))) {
+            ZabbixSender zabbixClient = ZabbixSender.builder()
+                                                    .address(secureserver.getAddress())
+                                                    .jhandler(TestFixtures.JSON_HANDLER)
+                                                    .sslContext(ctx)
+                                                    .transport(ZabbixSender.Transport.NIO)
+                                                    .build();
+            runTest(zabbixClient);
+            SSLSocket socket = (SSLSocket) socketProcessor.get();
+            Assert.assertEquals("TLSv1.3", socket.getSession().getProtocol());
+        }
+    }
+
+    // AutoCA is quite slow
+    @Test(timeout = 20000)
+    public void testTlsResumption() throws CertificateException, NoSuchAlgorithmException, IOException, KeyStoreException,
+                                                   OperatorCreationException, UnrecoverableKeyException,
+                                                   KeyManagementException, InterruptedException {
+        KeyStore ks = AutoCA.getKeyStore("cn=localhost", InetAddress.getLoopbackAddress());
+        for (ZabbixSender.Transport transport: ZabbixSender.Transport.values()) {
+            for (String protocol: List.of("TLSv1.2", "TLSv1.3")) {
+                // A new context, for an empty session cache
+                SSLContext ctx = AutoCA.createSSLContext(ks);
+                SSLParameters params = ctx.getDefaultSSLParameters();
+                params.setProtocols(new String[]{protocol});
+                try (ZabbixServer secureserver = startServer(new ZabbixServer("response.blob", this::complete, ctx.getServerSocketFactory()));
+                     ZabbixSender zabbixClient = ZabbixSender.builder()
+                                                             .address(secureserver.getAddress())
+                                                             .jhandler(TestFixtures.JSON_HANDLER)
+                                                             .sslContext(ctx)
+                                                             .sslParameters(params)
+                                                             .transport(transport)
+                                                             .tlsSessionCacheSize(16)
+                                                             .tlsSessionTimeout(1, TimeUnit.HOURS)
+                                                             .build()) {
+                    for (int i = 0; i < 4; i++) {
+                        DataObject dataObject = DataObject.builder().host("localhost").key("resumed").value(i).build();
+                        Assert.assertTrue(zabbixClient.send(dataObject).success());
+                    }
+                    TlsStatistics stats = zabbixClient.getTlsStatistics();
+                    String message = transport + "/" + protocol;
+                    Assert.assertEquals(message, 4, stats.getHandshakes());
+                    Assert.assertEquals(message, 3, stats.getResumed());
+                    Assert.assertEquals(message, 1, stats.getFull());
+                    Assert.assertEquals(16, ctx.getClientSessionContext().getSessionCacheSize());
+                }
+            }
+        }
+    }
+
+    // AutoCA is quite slow
+    @Test(timeout = 20000)
+    public void testTlsConcurrentFull() throws CertificateException, NoSuchAlgorithmException, IOException, KeyStoreException,
+                                                       OperatorCreationException, UnrecoverableKeyException,
+                                                       KeyManagementException, InterruptedException {
+        KeyStore ks = AutoCA.getKeyStore("cn=localhost", InetAddress.getLoopbackAddress());
+        String response = "{\"response\":\"success\",\"info\":\"processed: 1; failed: 0; total: 1; seconds spent: 0.000100\"}";
+        int clients = 4;
+        for (ZabbixSender.Transport transport: ZabbixSender.Transport.values()) {
+            for (String protocol: List.of("TLSv1.2", "TLSv1.3")) {
+                SSLContext ctx = AutoCA.createSSLContext(ks);
+                SSLParameters params = ctx.getDefaultSSLParameters();
+                params.setProtocols(new String[]{protocol});
+                try (ServerSocket server = ctx.getServerSocketFactory().createServerSocket(0, clients, InetAddress.getLoopbackAddress());
+                     ZabbixSender zabbixClient = ZabbixSender.builder()
+                                                             .address(server.getLocalSocketAddress())
+                                                             .jhandler(TestFixtures.JSON_HANDLER)
+                                                             .sslContext(ctx)
+                                                             .sslParameters(params)
+                                                             .transport(transport)
+                                                             .build()) {
+                    AtomicInteger sent = new AtomicInteger();
+                    List<Thread> threads = new ArrayList<>();
+                    for (int i = 0; i < clients; i++) {
+                        DataObject dataObject = DataObject.builder().host("localhost").key("concurrent").value(i).build();
+                        Thread t = new Thread(() -> {
+                            try {
+                                if (zabbixClient.send(dataObject).success()) {
+                                    sent.incrementAndGet();
+                                }
+                            } catch (IOException ex) {
+                                // Counted as not sent
+                            }
+                        });
+                        t.start();
+                        threads.add(t);
+                    }
+                    // All the clients are connected before any handshake is answered, so none can resume a session
+                    List<Socket> sockets = new ArrayList<>();
+                    for (int i = 0; i < clients; i++) {
+                        sockets.add(server.accept());
+                    }
+                    for (Socket socket: sockets) {
+                        new Thread(() -> {
+                            try (ZabbixProtocol zprotocol = new ZabbixProtocol(socket)) {
+                                zprotocol.read();
+                                zprotocol.send(response.getBytes(StandardCharsets.UTF_8));
+                            } catch (IOException ex) {
+                                // The client will fail
+                            }
+                        }).start();
+                    }
+                    for (Thread t: threads) {
+                        t.join();
+                    }
+                    String message = transport + "/" + protocol;
+                    Assert.assertEquals(message, clients, sent.get());
+                    TlsStatistics stats = zabbixClient.getTlsStatistics();
+                    Assert.assertEquals(message, clients, stats.getHandshakes());
+                    Assert.assertEquals(message, 0, stats.getResumed());
+                }
+            }
+        }
+    }
+
+    // AutoCA is quite slow
+    @Test(timeout = 10000)
+    public void testNioWithSSLPooled() throws CertificateException, NoSuchAlgorithmException, IOException, KeyStoreException,
+                                                      OperatorCreationException, UnrecoverableKeyException,
+                                                      KeyManagementException, InterruptedException {
+        KeyStore ks = AutoCA.getKeyStore("cn=localhost", InetAddress.getLoopbackAddress());
+        SSLContext ctx = AutoCA.createSSLContext(ks);
+        try (ZabbixServer secureserver = startServer(new ZabbixServer("response.blob", this::complete, ctx.getServerSocketFactory()).keepAlive(true));
+             ZabbixSender zabbixClient = ZabbixSender.builder()
+                                                     .address(secureserver.getAddress())
+                                                     .jhandler(TestFixtures.JSON_HANDLER)
+                                                     .sslContext(ctx)
+                                                     .transport(ZabbixSender.Transport.NIO)
+                                                     .maxConnections(1)
+                                                     .testOnBorrow(true)
+                                                     .build()) {
+            for (int i = 0; i < 3; i++) {
+                DataObject dataObject = DataObject.builder().host("localhost").key("pooled").value(i).build();
+                Assert.assertTrue(zabbixClient.send(dataObject).success());
+            }
+            Assert.assertEquals(1, secureserver.getConnections());
+        }
+    }
+
+    @Test
+    public void testNioWithSSLFactory() {
+        IllegalArgumentException ex = Assert.assertThrows(IllegalArgumentException.class, () -> ZabbixSender.builder()
+                                                                                                        .host("localhost")
+                                                                                                        .socketFactory(SSLSocketFactory.getDefault())
+                                                                                                        .transport(ZabbixSender.Transport.NIO)
+                                                                                                        .build());
+        Assert.assertEquals("NIO transport requires an SSL context for TLS", ex.getMessage());
+    }
+
     @Test
     public void testFailure1() throws IOException, InterruptedException {
         testFailure(bb -> bb.put((byte) 0), "Connection closed");
@@ -170,19 +454,368 @@ public class ZabbixSenderTest {
         }, "Not a Zabbix connection");
     }
 
-    private void testFailure(Consumer<ByteBuffer> filler, String message) throws IOException, InterruptedException {
-        ZabbixServer serverkeep;
+    @Test(timeout = 10000)
+    public void testAsyncPlatform() throws IOException, InterruptedException, ExecutionException {
+        testAsync(false);
+    }
+
+    @Test(timeout = 10000)
+    public void testAsyncVirtual() throws IOException, InterruptedException, ExecutionException {
+        testAsync(true);
+    }
+
+    private void testAsync(boolean virtualThreads) throws IOException, InterruptedException, ExecutionException {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        ZabbixReceiver.Sink sink = values -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+            }
+            return values.size();
+        };
+        try (ZabbixReceiver receiver = TestFixtures.receiverBuilder(sink).workers(16).bind();
+             ZabbixSender sender = ZabbixSender.builder()
+                                               .address(receiver.getAddress())
+                                               .jhandler(TestFixtures.JSON_HANDLER)
+                                               .maxConcurrentSends(4)
+                                               .virtualThreads(virtualThreads)
+                                               .build()) {
+            List<CompletableFuture<SenderResult>> results = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                results.add(sender.sendAsync(DataObject.builder().host("host").key("item").value(i).build()));
+            }
+            for (CompletableFuture<SenderResult> result: results) {
+                Assert.assertTrue(result.get().success());
+            }
+            Assert.assertEquals(50, receiver.getValues());
+            Assert.assertTrue(maxRunning.get() <= 4);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testAsyncFailure() throws IOException, InterruptedException {
+        ZabbixSender sender;
+        try (ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            sender = ZabbixSender.builder()
+                                 .address(closed.getLocalSocketAddress())
+                                 .jhandler(TestFixtures.JSON_HANDLER)
+                                 .build();
+        }
+        CompletableFuture<SenderResult> result = sender.sendAsync(DataObject.builder().host("host").key("item").value(1).build());
+        ExecutionException ex = Assert.assertThrows(ExecutionException.class, result::get);
+        Assert.assertTrue(ex.getCause() instanceof IOException);
+        sender.close();
+        Assert.assertTrue(sender.sendAsync().isCompletedExceptionally());
+    }
+
+    private List<List<DataObject>> sessionRequests(int count) {
+        List<List<DataObject>> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            requests.add(List.of(DataObject.builder().host("host").key("item").value(i).build()));
+        }
+        return requests;
+    }
+
+    @Test(timeout = 5000)
+    public void testSession() throws IOException {
+        List<Object> received = new ArrayList<>();
+        try (ZabbixReceiver receiver = TestFixtures.receiver(v -> {
+                 synchronized (received) {
+                     v.forEach(d -> received.add(d.getValue()));
+                 }
+                 return v.size();
+             });
+             ZabbixSender sender = ZabbixSender.builder().address(receiver.getAddress()).jhandler(TestFixtures.JSON_HANDLER).build();
+             ZabbixSession session = sender.session(4)) {
+            for (int round = 0; round < 2; round++) {
+                List<SenderResult> results = session.send(sessionRequests(50));
+                Assert.assertEquals(50, results.size());
+                Assert.assertTrue(results.stream().allMatch(SenderResult::success));
+            }
+            Assert.assertTrue(session.isPipelined());
+            Assert.assertEquals(1, receiver.getAccepted());
+            Assert.assertEquals(100, receiver.getRequests());
+            synchronized (received) {
+                Assert.assertEquals(100, received.size());
+                Assert.assertEquals(49, received.get(49));
+            }
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testSessionOneShot() throws IOException, InterruptedException {
+        // The server close the connection after each response
         try (ZabbixServer server = startServer(new ZabbixServer("response.blob", this::complete));
-            SocketChannel client = SocketChannel.open(server.getAddress())) {
-            ByteBuffer bad = ByteBuffer.allocate(13);
-            bad.order(ByteOrder.LITTLE_ENDIAN);
-            filler.accept(bad);
-            bad.flip();
-            client.write(bad);
-            serverkeep = server;
-        }
-        ExecutionException failure = Assert.assertThrows(ExecutionException.class, () -> serverkeep.waitStopped(1, TimeUnit.SECONDS));
-        Assert.assertEquals(IOException.class, failure.getCause().getClass());
-        Assert.assertEquals(message, failure.getCause().getMessage());
+             ZabbixSender sender = ZabbixSender.builder().address(server.getAddress()).jhandler(TestFixtures.JSON_HANDLER).build();
+             ZabbixSession session = sender.session()) {
+            List<SenderResult> results = session.send(sessionRequests(5));
+            Assert.assertEquals(5, results.size());
+            Assert.assertTrue(results.stream().allMatch(SenderResult::success));
+            Assert.assertFalse(session.isPipelined());
+            Assert.assertEquals(5, server.getConnections());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testSessionLimits() throws IOException {
+        SenderMetrics metrics = new SenderMetrics();
+        try (ZabbixReceiver receiver = TestFixtures.receiver(List::size);
+             ZabbixSender sender = ZabbixSender.builder()
+                                               .address(receiver.getAddress())
+                                               .jhandler(TestFixtures.JSON_HANDLER)
+                                               .maxConcurrentConnections(1)
+                                               .instrumentation(metrics)
+                                               .build()) {
+            try (ZabbixSession session = sender.session(4)) {
+                session.send(sessionRequests(10));
+                Assert.assertEquals(10, metrics.getSends());
+                // The connection of the session is counted
+                DataObject data = DataObject.builder().host("host").key("item").value(1).build();
+                Assert.assertThrows(RejectedExecutionException.class, () -> sender.trySend(data));
+            }
+            Assert.assertTrue(sender.trySend(DataObject.builder().host("host").key("item").value(1).build()).success());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testSessionTimeoutNotReplayed() throws IOException, InterruptedException {
+        AtomicInteger queries = new AtomicInteger();
+        BiConsumer<Socket, byte[]> slowSecond = (s, b) -> {
+            if (queries.incrementAndGet() == 2) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try (ZabbixServer server = startServer(new ZabbixServer("response.blob", slowSecond).keepAlive(true));
+             ZabbixSender sender = ZabbixSender.builder()
+                                               .address(server.getAddress())
+                                               .jhandler(TestFixtures.JSON_HANDLER)
+                                               .socketTimeout(200, TimeUnit.MILLISECONDS)
+                                               .build();
+             ZabbixSession session = sender.session(1)) {
+            Assert.assertThrows(SocketTimeoutException.class, () -> session.send(sessionRequests(3)));
+            Thread.sleep(700);
+            Assert.assertEquals(2, queries.get());
+            Assert.assertEquals(1, server.getConnections());
+            // Pipelining is detected again at each call
+            Assert.assertEquals(2, session.send(sessionRequests(2)).size());
+            Assert.assertTrue(session.isPipelined());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testInstrumentation() throws IOException, JMException {
+        SenderMetrics metrics = new SenderMetrics();
+        try (ZabbixReceiver receiver = TestFixtures.receiver(List::size);
+             ZabbixSender sender = ZabbixSender.builder()
+                                               .address(receiver.getAddress())
+                                               .jhandler(TestFixtures.JSON_HANDLER)
+                                               .instrumentation(metrics)
+                                               .build()) {
+            for (int i = 0; i < 3; i++) {
+                sender.send(DataObject.builder().host("host").key("item").value(i).build(),
+                            DataObject.builder().host("host").key("item").value(i).build());
+            }
+            Assert.assertEquals(3, metrics.getSends());
+            Assert.assertEquals(6, metrics.getValues());
+            Assert.assertEquals(2.0, metrics.getMeanBatchSize(), 0);
+            Assert.assertTrue(metrics.getBytesWritten() > 0);
+            Assert.assertTrue(metrics.getBytesRead() > 0);
+            for (Instrumentation.Phase phase: List.of(Instrumentation.Phase.CONNECT, Instrumentation.Phase.SERIALIZE,
+                                                      Instrumentation.Phase.WRITE, Instrumentation.Phase.READ,
+                                                      Instrumentation.Phase.PARSE)) {
+                Assert.assertEquals(phase.name(), 3, metrics.getPhaseLatency(phase).getCount());
+            }
+            Assert.assertEquals(0, metrics.getPhaseLatency(Instrumentation.Phase.HANDSHAKE).getCount());
+            Assert.assertEquals(3, metrics.getServerLatency().getCount());
+
+            metrics.register("test");
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName("fr.loghub.zabbix:type=SenderMetrics,name=\"test\"");
+                Assert.assertEquals(3L, server.getAttribute(name, "Sends"));
+            } finally {
+                metrics.unregister();
+            }
+        }
+        ZabbixSender refused;
+        try (ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            refused = ZabbixSender.builder().address(closed.getLocalSocketAddress()).instrumentation(metrics).build();
+        }
+        Assert.assertThrows(IOException.class, () -> refused.send(DataObject.builder().host("host").key("item").value(1).build()));
+        Assert.assertEquals(Map.of("CONNECT/java.net.ConnectException", 1L), metrics.getFailures());
+    }
+
+    private ZabbixReceiver rejectingReceiver() throws IOException {
+        return TestFixtures.receiver(v -> (int) v.stream().filter(d -> ! "bad".equals(d.getKey())).count());
+    }
+
+    private DataObject[] withRejected(int size, int... bad) {
+        DataObject[] values = new DataObject[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = DataObject.builder().host("host").key("good").value(i).build();
+        }
+        for (int i: bad) {
+            values[i] = DataObject.builder().host("host").key("bad").value(i).build();
+        }
+        return values;
+    }
+
+    @Test(timeout = 5000)
+    public void testIsolation() throws IOException {
+        try (ZabbixReceiver receiver = rejectingReceiver();
+             ZabbixSender sender = ZabbixSender.builder().address(receiver.getAddress()).jhandler(TestFixtures.JSON_HANDLER).maxIsolationRequests(100).build()) {
+            DataObject[] values = withRejected(64, 3, 4, 40);
+            SenderResult result = sender.send(values);
+            Assert.assertEquals(61, result.getProcessed());
+            Assert.assertEquals(3, result.getFailed());
+            Assert.assertEquals(List.of(values[3], values[4], values[40]), result.getRejected());
+            Assert.assertEquals(List.of(), result.getUnresolved());
+            // Far less than a request for each value
+            Assert.assertTrue(Long.toString(receiver.getRequests()), receiver.getRequests() <= 16);
+
+            // All rejected, nothing to split
+            long requests = receiver.getRequests();
+            values = withRejected(2, 0, 1);
+            Assert.assertEquals(List.of(values), sender.send(values).getRejected());
+            Assert.assertEquals(requests + 1, receiver.getRequests());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testIsolationLimit() throws IOException {
+        try (ZabbixReceiver receiver = rejectingReceiver();
+             ZabbixSender limited = ZabbixSender.builder().address(receiver.getAddress()).jhandler(TestFixtures.JSON_HANDLER).maxIsolationRequests(2).build();
+             ZabbixSender disabled = ZabbixSender.builder().address(receiver.getAddress()).jhandler(TestFixtures.JSON_HANDLER).build()) {
+            DataObject[] values = withRejected(64, 1, 63);
+            SenderResult result = limited.send(values);
+            Assert.assertEquals(3, receiver.getRequests());
+            Assert.assertEquals(List.of(), result.getRejected());
+            // The first quarter and the second half
+            Assert.assertEquals(48, result.getUnresolved().size());
+            Assert.assertTrue(result.getUnresolved().contains(values[1]));
+            Assert.assertTrue(result.getUnresolved().contains(values[63]));
+
+            result = disabled.send(values);
+            Assert.assertEquals(2, result.getFailed());
+            Assert.assertEquals(List.of(), result.getRejected());
+            Assert.assertEquals(4, receiver.getRequests());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testIsolationNotBlocking() throws IOException {
+        try (ZabbixReceiver receiver = rejectingReceiver();
+             ZabbixSender sender = ZabbixSender.builder()
+                                               .address(receiver.getAddress())
+                                               .jhandler(TestFixtures.JSON_HANDLER)
+                                               .maxIsolationRequests(100)
+                                               .valueRateLimit(RateLimiter.builder().rate(1).burst(64).build())
+                                               .build()) {
+            // The whole burst is used by the first request, a try send can't wait for the isolation requests
+            DataObject[] values = withRejected(64, 3);
+            SenderResult result = sender.trySend(values);
+            Assert.assertEquals(1, result.getFailed());
+            Assert.assertEquals(64, result.getUnresolved().size());
+            Assert.assertEquals(1, receiver.getRequests());
+        }
+    }
+
+    private void testFailure(Consumer<ByteBuffer> filler, String message) throws IOException, InterruptedException {
+        try (ZabbixServer server = startServer(new ZabbixServer("response.blob", this::complete))) {
+            try (SocketChannel client = SocketChannel.open(server.getAddress())) {
+                ByteBuffer bad = ByteBuffer.allocate(13);
+                bad.order(ByteOrder.LITTLE_ENDIAN);
+                filler.accept(bad);
+                bad.flip();
+                client.write(bad);
+            }
+            // The server must be left running until it processed the bad query
+            ExecutionException failure = Assert.assertThrows(ExecutionException.class, () -> server.waitStopped(1, TimeUnit.SECONDS));
+            Assert.assertEquals(IOException.class, failure.getCause().getClass());
+            Assert.assertEquals(message, failure.getCause().getMessage());
+        }
+    }
+
+    private DataObject[] values(int size) {
+        DataObject[] values = new DataObject[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = DataObject.builder().host("host").key("item").value(i).build();
+        }
+        return values;
+    }
+
+    @Test(timeout = 5000)
+    public void testThrottle() throws IOException, InterruptedException, ExecutionException {
+        SenderMetrics metrics = new SenderMetrics();
+        RateLimiter limiter = RateLimiter.builder().rate(20).burst(10).build();
+        try (ZabbixReceiver receiver = TestFixtures.receiver(List::size);
+             ZabbixSender sender = ZabbixSender.builder()
+                                               .address(receiver.getAddress())
+                                               .jhandler(TestFixtures.JSON_HANDLER)
+                                               .instrumentation(metrics)
+                                               .valueRateLimit(limiter)
+                                               .build()) {
+            DataObject[] values = values(10);
+            // The first send is slow, classes are loaded
+            try (ZabbixSender warmup = ZabbixSender.builder().address(receiver.getAddress()).jhandler(TestFixtures.JSON_HANDLER).build()) {
+                warmup.send(values);
+            }
+            Assert.assertTrue(sender.trySend(values).success());
+            Assert.assertThrows(RejectedExecutionException.class, () -> sender.trySend(values));
+            Assert.assertEquals(2, receiver.getRequests());
+
+            // Waits for 10 values at 20 per second
+            Assert.assertTrue(sender.send(values).success());
+            Assert.assertEquals(1, metrics.getPhaseLatency(Instrumentation.Phase.THROTTLE).getCount());
+            Assert.assertEquals(limiter.getThrottledNanos(), metrics.getPhaseLatency(Instrumentation.Phase.THROTTLE).getMax());
+
+            CompletableFuture<SenderResult> delayed = sender.sendAsync(values);
+            Assert.assertFalse(delayed.isDone());
+            Assert.assertTrue(delayed.get().success());
+            Assert.assertEquals(4, receiver.getRequests());
+            Assert.assertEquals(2, limiter.getThrottled());
+            Assert.assertEquals(1, limiter.getRejected());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testConnectionLimit() throws IOException, InterruptedException, ExecutionException {
+        CountDownLatch inSink = new CountDownLatch(1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        try (ZabbixReceiver receiver = TestFixtures.receiver(v -> {
+                 inSink.countDown();
+                 try {
+                     blocker.await();
+                 } catch (InterruptedException ex) {
+                     Thread.currentThread().interrupt();
+                 }
+                 return v.size();
+             });
+             ZabbixSender sender = ZabbixSender.builder()
+                                               .address(receiver.getAddress())
+                                               .jhandler(TestFixtures.JSON_HANDLER)
+                                               .maxConcurrentConnections(1)
+                                               .build()) {
+            CompletableFuture<SenderResult> first = sender.sendAsync(values(1));
+            Assert.assertTrue(inSink.await(1, TimeUnit.SECONDS));
+            Assert.assertThrows(RejectedExecutionException.class, () -> sender.trySend(values(1)));
+            // Waits for the connection of the first send
+            CompletableFuture<SenderResult> second = sender.sendAsync(values(1));
+            Assert.assertFalse(second.isDone());
+            blocker.countDown();
+            Assert.assertTrue(first.get().success());
+            Assert.assertTrue(second.get().success());
+            Assert.assertTrue(sender.trySend(values(1)).success());
+            Assert.assertEquals(3, receiver.getRequests());
+        }
     }
 }
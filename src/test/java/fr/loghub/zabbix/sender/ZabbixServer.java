@@ -18,6 +18,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
 
@@ -32,6 +33,8 @@ public class ZabbixServer extends Thread implements Thread.UncaughtExceptionHand
     private final ServerSocketFactory socketFactory;
     private final AtomicReference<ServerSocket> socketHolder = new AtomicReference<>();
     private final URL dataurl;
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean keepAlive = false;
 
     public ZabbixServer(String datapath, BiConsumer<Socket, byte[]> queryProcessor) {
         this(datapath, queryProcessor, ServerSocketFactory.getDefault());
@@ -60,11 +63,26 @@ public class ZabbixServer extends Thread implements Thread.UncaughtExceptionHand
                 try (Socket client = serverSocket.accept();
                      ZabbixProtocol handler = new ZabbixProtocol(client)
                 ) {
-                    byte[] queryData = handler.read();
-                    queryProcessor.accept(client, queryData);
-                    try (InputStream datastream = dataurl.openStream()) {
-                        client.getOutputStream().write(datastream.readAllBytes());
-                    }
+                    connections.incrementAndGet();
+                    int served = 0;
+                    do {
+                        byte[] queryData;
+                        try {
+                            queryData = handler.read();
+                        } catch (IOException ex) {
+                            // A kept alive connection closed by the client
+                            if (served > 0 && "Connection closed".equals(ex.getMessage())) {
+                                break;
+                            } else {
+                                throw ex;
+                            }
+                        }
+                        queryProcessor.accept(client, queryData);
+                        try (InputStream datastream = dataurl.openStream()) {
+                            client.getOutputStream().write(datastream.readAllBytes());
+                        }
+                        served++;
+                    } while (keepAlive);
                 } catch (SocketException | SocketTimeoutException ex) {
                     /* do loop */
                 }
@@ -111,6 +129,18 @@ public class ZabbixServer extends Thread implements Thread.UncaughtExceptionHand
         }
     }
 
+    /**
+     * Don't close the connection after a response, but wait for another query
+     */
+    public ZabbixServer keepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
     public SocketAddress getAddress() throws InterruptedException {
         started.await();
         return socketHolder.get().getLocalSocketAddress();